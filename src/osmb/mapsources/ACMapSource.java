@@ -3,6 +3,10 @@ package osmb.mapsources;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlTransient;
@@ -16,11 +20,12 @@ import osmb.program.tiles.IfTileProvider;
 import osmb.program.tiles.MemoryTileCache;
 import osmb.program.tiles.Tile;
 import osmb.program.tiles.TileException;
+import osmb.program.tiles.TileFuture;
 import osmb.program.tiles.TileImageType;
+import osmb.program.tilestore.ACNTileStore;
 import osmb.program.tilestore.ACTileStore;
 import osmb.program.tilestore.TileStoreException;
 import osmb.program.tilestore.berkeleydb.SiBerkeleyDbTileStore;
-import osmb.program.tilestore.sqlitedb.SQLiteDbTileStore;
 import osmb.utilities.OSMBStrs;
 
 @XmlJavaTypeAdapter(MapSourceAdapter.class)
@@ -29,13 +34,19 @@ public abstract class ACMapSource implements IfTileProvider
 	// static/class data
 	protected static Logger log = Logger.getLogger(ACMapSource.class);
 
+	/**
+	 * The internal IDs handed out so far. Map sources are identified by name, so all instances with the same name share one ID.
+	 */
+	private static final ConcurrentHashMap<String, Integer> sIDs = new ConcurrentHashMap<String, Integer>();
+	private static final AtomicInteger sNextID = new AtomicInteger(1);
+
 	// instance data
 	protected boolean initialized = false;
-	protected int mID = 0;
+	protected volatile int mID = 0;
 	protected MemoryTileCache mMTC = null;
 	// for testing use both tile stores
 	protected SiBerkeleyDbTileStore mTS = SiBerkeleyDbTileStore.getInstance();
-	protected SQLiteDbTileStore mNTS = null;
+	protected ACNTileStore mNTS = null;
 	protected MapSourceLoaderInfo mLoaderInfo = null;
 
 	@XmlElement(name = "name", nillable = false, defaultValue = "Custom")
@@ -84,8 +95,7 @@ public abstract class ACMapSource implements IfTileProvider
 						}
 						if (mNTS == null)
 						{
-							SQLiteDbTileStore.initializeCommonDB();
-							mNTS = SQLiteDbTileStore.prepareTileStore(this);
+							mNTS = ACNTileStore.openTileStore(this);
 						}
 						initialized = true;
 						log.trace("Map source has been initialized");
@@ -115,17 +125,17 @@ public abstract class ACMapSource implements IfTileProvider
 		return mTS;
 	}
 
-	public SQLiteDbTileStore getNTileStore()
+	public ACNTileStore getNTileStore()
 	{
 		if ((mNTS == null) || (!mNTS.isInitialized()))
 		{
 			try
 			{
-				mNTS = SQLiteDbTileStore.prepareTileStore(this);
+				mNTS = ACNTileStore.openTileStore(this);
 			}
 			catch (TileStoreException e)
 			{
-				log.error("exception while 'reinitializing' SQLite tile store");
+				log.error("exception while 'reinitializing' tile store");
 				e.printStackTrace();
 			}
 		}
@@ -150,11 +160,20 @@ public abstract class ACMapSource implements IfTileProvider
 	/**
 	 * The map source has an internally used ID to avoid string compares with the map source name.
 	 * 
-	 * @return ID of this map source as used internally, esp. by the tile store.
+	 * The ID is assigned on first use, it is unique within the running program, but it is not persistent.
+	 * 
+	 * @return ID of this map source as used internally, esp. by the memory tile cache.
 	 */
 	public int getID()
 	{
-		return mID;
+		int id = mID;
+		if (id == 0)
+		{
+			Integer newID = sNextID.getAndIncrement();
+			Integer oldID = sIDs.putIfAbsent(getName(), newID);
+			mID = id = (oldID != null) ? oldID : newID;
+		}
+		return id;
 	}
 
 	@XmlTransient
@@ -282,6 +301,29 @@ public abstract class ACMapSource implements IfTileProvider
 		return tile;
 	}
 
+	/**
+	 * Retrieves the tile asynchronously by {@link #loadTile(TileAddress)}, executed by <code>executor</code>.
+	 * 
+	 * @param tAddr
+	 *          The tiles address.
+	 * @param executor
+	 *          The executor to run the load, usually a {@link osmb.program.JobDispatcher}.
+	 * @return The future delivering the tile, or null if no tile is currently available.
+	 */
+	public TileFuture loadTileAsync(final TileAddress tAddr, Executor executor)
+	{
+		TileFuture future = new TileFuture(new Callable<Tile>()
+		{
+			@Override
+			public Tile call() throws IOException
+			{
+				return loadTile(tAddr);
+			}
+		});
+		executor.execute(future);
+		return future;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -19,27 +19,46 @@ package osmb.mapsources;
 import java.awt.AlphaComposite;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
 import javax.imageio.ImageIO;
 
 import org.apache.log4j.Logger;
 
 import osmb.program.ACSettings;
+import osmb.program.JobDispatcher;
 import osmb.program.tiles.Tile;
+import osmb.program.tiles.Tile.TileOpacity;
 import osmb.program.tiles.Tile.TileState;
 import osmb.program.tiles.TileException;
+import osmb.program.tiles.TileFuture;
 import osmb.program.tiles.TileImageType;
 import osmb.program.tilestore.ACTileStore;
 import osmb.utilities.OSMBStrs;
 
 public abstract class ACMultiLayerMapSource extends ACMapSource implements Iterable<ACMapSource>
 {
+	/**
+	 * The dispatcher loading layer tiles, see {@link #getLayerDispatcher()}.
+	 */
+	private static JobDispatcher sLayerDispatcher = null;
+
+	/**
+	 * The expiration time [ms] of a tile composed without all of its layers. Such a tile is not stored.
+	 */
+	protected static final long INCOMPLETE_EXPIRATION = 60000;
+
 	protected ACMapSource[] mapSources;
 
 	protected ACMultiLayerMapSource()
@@ -107,8 +126,8 @@ public abstract class ACMultiLayerMapSource extends ACMapSource implements Itera
 	}
 
 	/**
-	 * This loads the image via {@link IfMapSource.getTileImage}() for each layer in this multi layer map source.
-	 * When all layer images are loaded, they were combined via Graphics2D.drawImage().
+	 * This loads the tiles of all layers concurrently by {@link #loadLayerTiles(TileAddress, boolean)}. When all layer tiles are available, they are combined
+	 * by {@link #composeTile(Tile, List)}.
 	 * 
 	 * @throws IOException
 	 */
@@ -116,196 +135,446 @@ public abstract class ACMultiLayerMapSource extends ACMapSource implements Itera
 	public Tile loadTile(TileAddress tAddr) throws IOException
 	{
 		log.trace(OSMBStrs.RStr("START"));
-		Tile tile = new Tile(this, tAddr);
-		BufferedImage image = null;
-		Graphics2D g2 = null;
-		try
+		return composeTile(new Tile(this, tAddr), loadLayerTiles(tAddr, false));
+	}
+
+	/**
+	 * This loads the tiles of all layers concurrently. Layer tiles found in the memory tile cache are used as they are, the others are loaded in the
+	 * {@link #getLayerDispatcher() layer dispatcher}. The calling thread does not idle meanwhile, it loads every layer tile not yet taken up by the dispatcher
+	 * itself.
+	 * 
+	 * @param tAddr
+	 *          The address of the tiles.
+	 * @param revalidate
+	 *          If false, missing layer tiles are loaded by {@link ACMapSource#loadTile(TileAddress)}. If true, the layer tiles are taken from the layers tile
+	 *          stores and only expired ones are revalidated by {@link ACMapSource#updateTile(Tile)}, see {@link #revalidateLayerTile(ACMapSource, TileAddress, Tile)}.
+	 * @return The available layer tiles, bottom layer first.
+	 * @throws IOException
+	 */
+	protected List<Tile> loadLayerTiles(final TileAddress tAddr, boolean revalidate) throws IOException
+	{
+		TileFuture[] layerFutures = new TileFuture[mapSources.length];
+		for (int i = 0; i < mapSources.length; i++)
 		{
-			ArrayList<Tile> layerTiles = new ArrayList<Tile>(mapSources.length);
-			int maxSize = MP2MapSpace.getTileSize();
-			for (int i = 0; i < mapSources.length; i++)
+			final ACMapSource layerMapSource = mapSources[i];
+			// try to load the layer tile from mtc
+			Tile layerTile = null;
+			if (mMTC != null)
 			{
-				ACMapSource layerMapSource = mapSources[i];
-				// try to load the layer tile from mtc
-				Tile layerTile = null;
-				if (mMTC != null)
+				layerTile = mMTC.getTile(layerMapSource, tAddr);
+				if ((layerTile != null) && (layerTile.getTileState() == TileState.TS_LOADING))
+					log.debug("'loading' tile found in mtc: " + layerTile);
+			}
+			if (isUsableLayerTile(layerTile) && !(revalidate && layerTile.isExpired()))
+				layerFutures[i] = TileFuture.completed(layerTile);
+			else if (revalidate)
+			{
+				final Tile cachedTile = layerTile;
+				layerFutures[i] = new TileFuture(new Callable<Tile>()
 				{
-					layerTile = mMTC.getTile(layerMapSource, tAddr);
-					if (layerTile.getTileState() == TileState.TS_LOADING)
-						log.debug("'loading' tile found in mtc: " + layerTile);
-				}
-				while (layerTile == null)
+					@Override
+					public Tile call() throws IOException
+					{
+						return revalidateLayerTile(layerMapSource, tAddr, cachedTile);
+					}
+				});
+				getLayerDispatcher().execute(layerFutures[i]);
+			}
+			else
+			{
+				// not loadTileAsync(): a multi layer source would return a future composing its layers, which must not be run by this thread
+				layerFutures[i] = new TileFuture(new Callable<Tile>()
 				{
-					// try to load the tile from the tile store
-					layerTile = layerMapSource.loadTile(tAddr);
-					if (layerTile != null)
+					@Override
+					public Tile call() throws IOException
 					{
-						log.debug("Multi layer loaded: '" + layerMapSource.getName() + "' (" + tAddr + ") into Layer=" + i);
-						layerTiles.add(layerTile);
-						if (layerTile.getTileState() == TileState.TS_LOADING)
-							log.debug("'loading' tile found in ts: " + layerTile + " for " + layerMapSource.getName());
+						return layerMapSource.loadTile(tAddr);
 					}
-					else
-						log.warn("Multi layer empty: " + layerMapSource.getName() + "' (" + tAddr + ") into Layer=" + i + ", wait and retry");
-					// tile.wait(20000);
-				}
+				});
+				getLayerDispatcher().execute(layerFutures[i]);
 			}
-			if (layerTiles.size() > 0)
+		}
+		ArrayList<Tile> layerTiles = new ArrayList<Tile>(mapSources.length);
+		try
+		{
+			for (int i = 0; i < layerFutures.length; i++)
 			{
-				image = new BufferedImage(MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, BufferedImage.TYPE_3BYTE_BGR);
-				g2 = image.createGraphics();
-				g2.setColor(getBackgroundColor());
-				g2.fillRect(0, 0, maxSize, maxSize);
-				Date tMod = new Date();
-				// Wie lange sollen neu erzeugte Kacheln gültig sein?
-				// Date tExp = new Date(System.currentTimeMillis() + ACSettings.getInstance().getTileMaxExpirationTime());
-				Date tExp = new Date(System.currentTimeMillis() + 14 * 24 * 3600 * 1000); // max. 14Tage
-
-				for (int i = 0; i < layerTiles.size(); i++)
+				// each future wraps a plain load, and a FutureTask runs only once, so this is a no-op if the dispatcher already took up the layer
+				layerFutures[i].run();
+				Tile layerTile = layerFutures[i].get();
+				if (layerTile != null)
 				{
-					BufferedImage layerImage = layerTiles.get(i).getImage();
-					g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, getLayerAlpha(i)));
-					g2.drawImage(layerImage, 0, 0, maxSize, maxSize, null);
-					if (tMod.before(layerTiles.get(i).getMod()))
-						tMod = layerTiles.get(i).getMod();
-					if (tExp.after(layerTiles.get(i).getExp()))
-						tExp = layerTiles.get(i).getExp();
-					log.debug("Multi layer added: Alpha=" + getLayerAlpha(i) + "; Layer=" + i);
+					log.debug("Multi layer loaded: '" + mapSources[i].getName() + "' (" + tAddr + ") into Layer=" + i);
+					layerTiles.add(layerTile);
+					if (layerTile.getTileState() == TileState.TS_LOADING)
+						log.debug("'loading' tile found in ts: " + layerTile + " for " + mapSources[i].getName());
 				}
-
-				ByteArrayOutputStream buf = new ByteArrayOutputStream(32000);
-				ImageIO.write(image, mTileType.getFileExt(), buf);
-				log.trace("composed image written into buffer:(" + tAddr + ")");
-				tile.loadImage(buf.toByteArray());
-				tile.setMod(tMod);
-				tile.setExp(tExp);
-				tile.setTileState(TileState.TS_LOADED);
-				// long timeExpires = timeLastModified + ACSettings.getTileDefaultExpirationTime();
-				log.trace("put composed " + tile + " into tile store, exp=" + tExp);
-				getNTileStore().putTile(tile);
-				return tile;
+				else
+					log.warn("Multi layer empty: " + mapSources[i].getName() + "' (" + tAddr + ") into Layer=" + i);
 			}
+		}
+		catch (InterruptedException e)
+		{
+			for (TileFuture layerFuture : layerFutures)
+				layerFuture.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while loading layers of " + tAddr);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+		return layerTiles;
+	}
+
+	/**
+	 * Provides an up to date tile of one layer. The tile is taken from the memory tile cache or the layers tile store. Only if it has expired, it is
+	 * revalidated by {@link ACMapSource#updateTile(Tile)}, which asks the server by a conditional request. A missing tile is loaded.
+	 * 
+	 * @param layerMapSource
+	 *          The map source of the layer.
+	 * @param tAddr
+	 *          The address of the tile.
+	 * @param cachedTile
+	 *          The layer tile found in the memory tile cache, or null.
+	 * @return The layer tile, or null if it is not available.
+	 * @throws IOException
+	 */
+	protected Tile revalidateLayerTile(ACMapSource layerMapSource, TileAddress tAddr, Tile cachedTile) throws IOException
+	{
+		Tile layerTile = cachedTile;
+		if (!isUsableLayerTile(layerTile) && (layerMapSource.getNTileStore() != null))
+			layerTile = layerMapSource.getNTileStore().getTile(tAddr);
+		// the tile stores deliver a 'loading' tile for missing tiles
+		if (!isUsableLayerTile(layerTile))
+			return layerMapSource.loadTile(tAddr);
+		if (!layerTile.isExpired())
+			return layerTile;
+		log.debug("revalidate expired layer " + layerTile);
+		Tile updatedTile = layerMapSource.updateTile(layerTile);
+		return (updatedTile != null) ? updatedTile : layerTile;
+	}
+
+	/**
+	 * @return TRUE if the tile holds a real image of the layer, FALSE for null, 'loading' and error tiles.
+	 */
+	protected static boolean isUsableLayerTile(Tile layerTile)
+	{
+		if ((layerTile == null) || ((layerTile.getTileState() != TileState.TS_LOADED) && (layerTile.getTileState() != TileState.TS_EXPIRED)))
+			return false;
+		if (layerTile.hasImageData())
+			return true;
+		// a composed tile holds its image only
+		return layerTile.isImageDecoded() && (layerTile.getImage() != Tile.LOADING_IMAGE) && (layerTile.getImage() != Tile.ERROR_IMAGE);
+	}
+
+	/**
+	 * The version of a composed tile is made up of the names and versions of its layer tiles, their ETag or, without one, their modification time. It is stored as the
+	 * ETag of the composed tile, so {@link #updateTile(Tile)} recognizes if any layer has changed since the tile has been composed.
+	 * 
+	 * @param layerTiles
+	 *          The layer tiles, bottom layer first.
+	 * @return The version of the composed tile.
+	 */
+	protected static String getLayerVersion(List<Tile> layerTiles)
+	{
+		StringBuilder sb = new StringBuilder("ML");
+		for (Tile layerTile : layerTiles)
+		{
+			sb.append(';').append(layerTile.getSource().getName()).append(':');
+			String eTag = layerTile.getETag();
+			if ((eTag != null) && (eTag.length() > 0) && !eTag.equals("-"))
+				sb.append(eTag);
 			else
-			{
-				log.warn(tAddr + " empty for" + this.getName());
-				return null;
-			}
+				sb.append(layerTile.getMod().getTime());
 		}
-		// catch (InterruptedException e)
-		// {
-		// // TODO Auto-generated catch block
-		// e.printStackTrace();
-		// }
-		finally
+		return sb.toString();
+	}
+
+	/**
+	 * A composed tile expires with the first of its layer tiles.
+	 * 
+	 * @param layerTiles
+	 *          The layer tiles, bottom layer first.
+	 * @return The expiration time of the composed tile.
+	 */
+	protected static Date getLayerExpiration(List<Tile> layerTiles)
+	{
+		Date tExp = null;
+		for (Tile layerTile : layerTiles)
 		{
-			if (g2 != null)
-			{
-				g2.dispose();
-			}
+			if ((tExp == null) || tExp.after(layerTile.getExp()))
+				tExp = layerTile.getExp();
 		}
-		// return null;
+		return tExp;
 	}
 
 	/**
-	 * This loads the image via {@link IfMapSource.getTileImage}() for each layer in this multi layer map source.
-	 * When all layer images are loaded, they were combined via Graphics2D.drawImage().
+	 * @return The dispatcher loading the layer tiles in {@link #loadTile(TileAddress)}. It is shared by all multi layer map sources and separate from the
+	 *         dispatchers loading the composed tiles, so a composed tile never waits for a thread of its own pool.
+	 */
+	protected static synchronized Executor getLayerDispatcher()
+	{
+		if (sLayerDispatcher == null)
+		{
+			sLayerDispatcher = JobDispatcher.createLayerDispatcher();
+		}
+		return sLayerDispatcher;
+	}
+
+	/**
+	 * This loads the tiles of all layers asynchronously by {@link ACMapSource#loadTileAsync(TileAddress, Executor)}. As soon as all layer tiles are available,
+	 * they are combined by {@link #composeTile(Tile, List)} in the thread which finished the last layer. No thread is blocked waiting for the layers.
 	 */
 	@Override
-	public Tile updateTile(Tile tile)
+	public TileFuture loadTileAsync(final TileAddress tAddr, Executor executor)
+	{
+		return loadTileAsync(tAddr, executor, null);
+	}
+
+	/**
+	 * Like {@link #loadTileAsync(TileAddress, Executor)}, but the layer tiles are loaded by <code>executor</code> and composed by <code>composeExecutor</code>,
+	 * usually a {@link osmb.program.JobDispatcher#createComputeDispatcher() compute dispatcher}.
+	 * 
+	 * @param composeExecutor
+	 *          The executor for the composition, or null to compose in the thread finishing the last layer.
+	 */
+	public TileFuture loadTileAsync(final TileAddress tAddr, Executor executor, Executor composeExecutor)
 	{
 		log.trace(OSMBStrs.RStr("START"));
-		BufferedImage image = null;
-		Graphics2D g2 = null;
-		try
+		final TileFuture[] layerFutures = new TileFuture[mapSources.length];
+		for (int i = 0; i < mapSources.length; i++)
+			layerFutures[i] = mapSources[i].loadTileAsync(tAddr, executor);
+		return TileFuture.whenAll(layerFutures, new Callable<Tile>()
 		{
-			ArrayList<Tile> layerTiles = new ArrayList<Tile>(mapSources.length);
-			int maxSize = MP2MapSpace.getTileSize();
-			for (int i = 0; i < mapSources.length; i++)
+			@Override
+			public Tile call() throws IOException
 			{
-				ACMapSource layerMapSource = mapSources[i];
-				// try to load the layer tiles from mtc
-				Tile layerTile = null;
-				if (mMTC != null)
+				ArrayList<Tile> layerTiles = new ArrayList<Tile>(layerFutures.length);
+				for (int i = 0; i < layerFutures.length; i++)
 				{
-					layerTile = mMTC.getTile(layerMapSource, tile.getAddress());
-					if (layerTile.getTileState() == TileState.TS_LOADING)
-						log.debug("'loading' tile found in mtc: " + layerTile);
-				}
-				while (layerTile == null)
-				{
-					// try to load the tile from the online source
-					layerTile = layerMapSource.updateTile(tile);
+					Tile layerTile = layerFutures[i].getNow();
 					if (layerTile != null)
-					{
-						log.debug("Multi layer loaded: '" + layerMapSource.getName() + "' (" + tile.getAddress() + ") into Layer=" + i);
 						layerTiles.add(layerTile);
-						if (layerTile.getTileState() == TileState.TS_LOADING)
-							log.debug("'loading' tile found in ts: " + layerTile + " for " + layerMapSource.getName());
-					}
 					else
-						log.warn("Multi layer empty: " + layerMapSource.getName() + "' (" + tile.getAddress() + ") into Layer=" + i + ", wait and retry");
-					// tile.wait(20000);
+						log.warn("Multi layer empty: " + mapSources[i].getName() + "' (" + tAddr + ") into Layer=" + i);
 				}
+				return composeTile(new Tile(ACMultiLayerMapSource.this, tAddr), layerTiles);
 			}
-			if (layerTiles.size() > 0)
-			{
-				image = new BufferedImage(MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, BufferedImage.TYPE_3BYTE_BGR);
-				g2 = image.createGraphics();
-				g2.setColor(getBackgroundColor());
-				g2.fillRect(0, 0, maxSize, maxSize);
-				Date tMod = new Date();
-				// Wie lange sollen neu erzeugte Kacheln gültig sein?
-				// Date tExp = new Date(System.currentTimeMillis() + ACSettings.getInstance().getTileMaxExpirationTime());
-				Date tExp = new Date(System.currentTimeMillis() + 14 * 24 * 3600 * 1000); // max. 14Tage
+		}, composeExecutor);
+	}
+
+	/**
+	 * This blends the images of the layer tiles into the image of <code>tile</code> and puts the tile into the tile store.<br>
+	 * Layers which contribute nothing by their {@link Tile#getOpacity() opacity}, i.e. transparent ones and those hidden by an opaque layer above, are skipped.
+	 * If only an opaque base layer remains, its encoded data are taken over verbatim without any decoding or blending.<br>
+	 * If layer tiles are missing, the composed tile expires after {@link #INCOMPLETE_EXPIRATION} and is not put into the tile store.<br>
+	 * The layers are blended by {@link #blendLayer(int[], int[], int)} directly on the pixel array of the composed image, starting with the background color.
+	 * The composed image is kept in the tile as it is. It is encoded only once, when the tile store asks for {@link Tile#getImageData()}.<br>
+	 * The composed tile expires with the first of its layers and keeps the versions of its layers as ETag, see {@link #getLayerVersion(List)}.
+	 * 
+	 * @param tile
+	 *          The tile to receive the composed image.
+	 * @param layerTiles
+	 *          The layer tiles, bottom layer first.
+	 * @return The composed tile, or null if there are no layer tiles.
+	 * @throws IOException
+	 */
+	protected Tile composeTile(Tile tile, List<Tile> layerTiles) throws IOException
+	{
+		if (layerTiles.size() == 0)
+		{
+			log.warn(tile.getAddress() + " empty for" + this.getName());
+			return null;
+		}
+		Date tMod = new Date();
 
-				for (int i = 0; i < layerTiles.size(); i++)
+		// find the layers contributing to the composed image: transparent layers add nothing and an opaque layer hides all layers below it
+		int nLayers = layerTiles.size();
+		int[] layerAlpha = new int[nLayers];
+		boolean[] visible = new boolean[nLayers];
+		int first = 0;
+		for (int i = 0; i < nLayers; i++)
+		{
+			Tile layerTile = layerTiles.get(i);
+			TileOpacity opacity = layerTile.getOpacity();
+			layerAlpha[i] = Math.round(getLayerAlpha(i) * 255);
+			visible[i] = (layerAlpha[i] > 0) && (opacity != TileOpacity.TO_TRANSPARENT);
+			if ((opacity == TileOpacity.TO_OPAQUE) && (layerAlpha[i] >= 255))
+				first = i;
+			if (tMod.before(layerTile.getMod()))
+				tMod = layerTile.getMod();
+		}
+		Date tExp = getLayerExpiration(layerTiles);
+		int nVisible = 0;
+		for (int i = first; i < nLayers; i++)
+		{
+			if (visible[i])
+				nVisible++;
+		}
+
+		int size = MP2MapSpace.TECH_TILESIZE;
+		Tile baseTile = layerTiles.get(first);
+		// if only the opaque base layer contributes, its image is the composed image
+		boolean passThrough = (nVisible == 1) && visible[first] && (layerAlpha[first] >= 255) && (baseTile.getOpacity() == TileOpacity.TO_OPAQUE);
+		if (passThrough && baseTile.hasImageData() && (baseTile.getSource().getTileImageType() == mTileType))
+		{
+			log.debug("Multi layer passed through: Layer=" + first);
+			tile.loadImage(baseTile.getImageData());
+		}
+		else if (passThrough && (baseTile.getImage().getWidth() == size) && (baseTile.getImage().getHeight() == size))
+		{
+			log.debug("Multi layer image passed through: Layer=" + first);
+			tile.setImage(baseTile.getImage());
+		}
+		else
+		{
+			BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+			int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+			Arrays.fill(pixels, getBackgroundColor().getRGB() | 0xFF000000);
+			int[] layerPixels = null;
+			for (int i = first; i < nLayers; i++)
+			{
+				if (!visible[i])
 				{
-					BufferedImage layerImage = layerTiles.get(i).getImage();
-					g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, getLayerAlpha(i)));
-					g2.drawImage(layerImage, 0, 0, maxSize, maxSize, null);
-					if (tMod.before(layerTiles.get(i).getMod()))
-						tMod = layerTiles.get(i).getMod();
-					if (tExp.after(layerTiles.get(i).getExp()))
-						tExp = layerTiles.get(i).getExp();
-					log.debug("Multi layer added: Alpha=" + getLayerAlpha(i) + "; Layer=" + i);
+					log.debug("Multi layer skipped: Layer=" + i);
+					continue;
 				}
+				layerPixels = getLayerPixels(layerTiles.get(i).getImage(), size, layerPixels);
+				blendLayer(pixels, layerPixels, layerAlpha[i]);
+				log.debug("Multi layer added: Alpha=" + getLayerAlpha(i) + "; Layer=" + i);
+			}
+			tile.setImage(image);
+		}
+		tile.setMod(tMod);
+		tile.setTileState(TileState.TS_LOADED);
+		if (layerTiles.size() < mapSources.length)
+		{
+			// a layer is missing, so the tile is shown for now, but not stored
+			tile.setExp(new Date(System.currentTimeMillis() + INCOMPLETE_EXPIRATION));
+			tile.setETag("-");
+			log.warn("composed " + tile + " with " + layerTiles.size() + " of " + mapSources.length + " layers, not stored");
+			return tile;
+		}
+		tile.setExp(tExp);
+		tile.setETag(getLayerVersion(layerTiles));
+		log.trace("put composed " + tile + " into tile store, exp=" + tExp);
+		getNTileStore().putTile(tile);
+		return tile;
+	}
 
-				ByteArrayOutputStream buf = new ByteArrayOutputStream(32000);
-				ImageIO.write(image, mTileType.getFileExt(), buf);
-				log.trace("composed image written into buffer:(" + tile.getAddress() + ")");
-				tile.loadImage(buf.toByteArray());
-				tile.setMod(tMod);
-				tile.setExp(tExp);
+	/**
+	 * Provides the ARGB pixels of a layer image in the size of the composed image. Images of type {@link BufferedImage#TYPE_INT_ARGB} in the right size are
+	 * used without copying, other types are converted and images of another size are scaled.
+	 * 
+	 * @param layerImage
+	 *          The image of the layer tile.
+	 * @param size
+	 *          The width and height of the composed image.
+	 * @param buf
+	 *          A pixel array to be reused, may be null.
+	 * @return The layer pixels, row by row. This is either the image's own array or <code>buf</code>, which must not be modified.
+	 */
+	protected static int[] getLayerPixels(BufferedImage layerImage, int size, int[] buf)
+	{
+		if ((layerImage.getWidth() == size) && (layerImage.getHeight() == size))
+		{
+			if ((layerImage.getType() == BufferedImage.TYPE_INT_ARGB) && (layerImage.getRaster().getDataBuffer() instanceof DataBufferInt))
+				return ((DataBufferInt) layerImage.getRaster().getDataBuffer()).getData();
+			if ((buf == null) || (buf.length != size * size))
+				buf = new int[size * size];
+			return layerImage.getRGB(0, 0, size, size, buf, 0, size);
+		}
+		BufferedImage scaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2 = scaled.createGraphics();
+		try
+		{
+			g2.drawImage(layerImage, 0, 0, size, size, null);
+		}
+		finally
+		{
+			g2.dispose();
+		}
+		return ((DataBufferInt) scaled.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * Blends the ARGB pixels <code>src</code> over the opaque RGB pixels <code>dst</code> (alpha over). Fully transparent source pixels are skipped and fully
+	 * opaque ones are copied, so only the edges of overlay symbols need the arithmetic.
+	 * 
+	 * @param dst
+	 *          The pixels of the composed image, modified in place.
+	 * @param src
+	 *          The pixels of the layer, same length as <code>dst</code>.
+	 * @param layerAlpha
+	 *          The opacity of the layer, 0..255.
+	 */
+	protected static void blendLayer(int[] dst, int[] src, int layerAlpha)
+	{
+		if (layerAlpha <= 0)
+			return;
+		if (layerAlpha > 255)
+			layerAlpha = 255;
+		for (int p = 0; p < dst.length; p++)
+		{
+			int s = src[p];
+			int a = s >>> 24;
+			if (layerAlpha < 255)
+				a = (a * layerAlpha + 127) / 255;
+			if (a == 0)
+				continue;
+			if (a == 255)
+			{
+				dst[p] = s | 0xFF000000;
+				continue;
+			}
+			int d = dst[p];
+			int na = 255 - a;
+			int r = (((s >> 16) & 0xFF) * a + ((d >> 16) & 0xFF) * na + 127) / 255;
+			int g = (((s >> 8) & 0xFF) * a + ((d >> 8) & 0xFF) * na + 127) / 255;
+			int b = ((s & 0xFF) * a + (d & 0xFF) * na + 127) / 255;
+			dst[p] = 0xFF000000 | (r << 16) | (g << 8) | b;
+		}
+	}
+
+	/**
+	 * This brings an expired composed tile up to date. The layer tiles are revalidated independently by {@link #loadLayerTiles(TileAddress, boolean)}, each
+	 * only if it has expired itself. If no layer tile has changed since the tile has been composed, see {@link #getLayerVersion(List)}, only the expiration of
+	 * the composed tile is updated. Otherwise it is composed again.
+	 */
+	@Override
+	public Tile updateTile(Tile tile)
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		try
+		{
+			List<Tile> layerTiles = loadLayerTiles(tile.getAddress(), true);
+			boolean hasImage = tile.hasImageData() || (tile.isImageDecoded() && (tile.getImage() != Tile.LOADING_IMAGE) && (tile.getImage() != Tile.ERROR_IMAGE));
+			if (hasImage && (layerTiles.size() < mapSources.length))
+			{
+				log.warn("layers missing, keep composed " + tile + " for now");
+				tile.setExp(new Date(System.currentTimeMillis() + INCOMPLETE_EXPIRATION));
 				tile.setTileState(TileState.TS_LOADED);
-				// long timeExpires = timeLastModified + ACSettings.getTileDefaultExpirationTime();
-				log.trace("put composed " + tile + " into tile store, exp=" + tExp);
-				getNTileStore().putTile(tile);
 				return tile;
 			}
-			else
+			if (hasImage && (layerTiles.size() > 0) && getLayerVersion(layerTiles).equals(tile.getETag()))
 			{
-				log.warn(tile.getAddress() + " empty for" + this.getName());
-				return null;
+				Date tExp = getLayerExpiration(layerTiles);
+				log.debug("layers unchanged, keep composed " + tile + ", exp=" + tExp);
+				tile.setMod(new Date());
+				tile.setExp(tExp);
+				tile.setTileState(TileState.TS_LOADED);
+				getNTileStore().updateTileExpiration(tile.getAddress(), tExp.getTime());
+				return tile;
 			}
+			return composeTile(tile, layerTiles);
 		}
-		// catch (InterruptedException e)
-		// {
-		// // TODO Auto-generated catch block
-		// e.printStackTrace();
-		// }
 		catch (IOException e)
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		finally
-		{
-			if (g2 != null)
-			{
-				g2.dispose();
-			}
+			log.error("update of " + tile + " failed", e);
 		}
-		// return null;
 		return tile;
 	}
 
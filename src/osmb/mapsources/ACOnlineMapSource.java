@@ -25,9 +25,12 @@ import java.net.URL;
 import javax.imageio.ImageIO;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlList;
+import javax.xml.bind.annotation.XmlTransient;
 
 import org.apache.log4j.Logger;
 
+import osmb.program.tiles.HttpTileTransport;
+import osmb.program.tiles.IfTileTransport;
 import osmb.program.tiles.Tile;
 //import osmb.mapsources.mapspace.MercatorPower2MapSpace; // W #mapSpace
 //import osmb.program.map.IfMapSpace; // W #mapSpace
@@ -62,6 +65,14 @@ public abstract class ACOnlineMapSource extends ACMapSource implements IfOnlineM
 	@XmlElement(name = "ignoreErrors", required = false, defaultValue = "false")
 	protected boolean mIgnoreErrors = false;
 
+	/**
+	 * The maximum number of concurrent requests to the tile server.
+	 */
+	@XmlElement(name = "maxConnections", required = false, defaultValue = "4")
+	protected int mMaxConnections = HttpTileTransport.DEFAULT_MAX_CONNECTIONS;
+
+	protected IfTileTransport mTransport = null;
+
 	public ACOnlineMapSource(String name, int minZoom, int maxZoom, TileImageType tileType)
 	{
 		this(name, minZoom, maxZoom, tileType, IfOnlineMapSource.TileUpdate.None);
@@ -104,11 +115,34 @@ public abstract class ACOnlineMapSource extends ACMapSource implements IfOnlineM
 		String url = getTileUrl(tAddr);
 		if (url == null)
 			return null;
-		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		HttpURLConnection conn = getTransport().openConnection(new URL(url));
 		prepareTileUrlConnection(conn);
 		return conn;
 	}
 
+	/**
+	 * @return The transport used to download tiles from this map source. If none has been set, it is the shared {@link HttpTileTransport#getDefault()}.
+	 */
+	@XmlTransient
+	public IfTileTransport getTransport()
+	{
+		return (mTransport != null) ? mTransport : HttpTileTransport.getDefault();
+	}
+
+	public void setTransport(IfTileTransport transport)
+	{
+		mTransport = transport;
+	}
+
+	/**
+	 * @return The maximum number of concurrent requests to the tile server of this map source. If several map sources share a host, the smallest limit of those
+	 *         requesting from it applies, see {@link HttpTileTransport}.
+	 */
+	public int getMaxConnections()
+	{
+		return mMaxConnections;
+	}
+
 	@Override
 	public String getTileUrl(TileAddress tAddr)
 	{
@@ -150,17 +184,14 @@ public abstract class ACOnlineMapSource extends ACMapSource implements IfOnlineM
 		Tile tile = null;
 		try
 		{
+			// the tile store is updated by the down loader, if not modified only the expiration is written
 			tile = TileDownLoader.updateTile(tTile, this);
+			log.debug("updated " + tile + " in TS " + mNTS);
 		}
 		catch (UnrecoverableDownloadException | IOException e)
 		{
 			log.error("download timeout " + tTile);
 		}
-		if (tile != null)
-		{
-			mNTS.putTile(tile);
-			log.debug("put " + tile + " into TS " + mNTS);
-		}
 		return tile;
 	}
 
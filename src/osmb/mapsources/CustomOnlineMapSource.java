@@ -59,7 +59,7 @@ public class CustomOnlineMapSource extends ACOnlineMapSource
 		String url = getTileUrl(tAddr);
 		if (url == null)
 			return null;
-		return (HttpURLConnection) new URL(url).openConnection();
+		return getTransport().openConnection(new URL(url));
 	}
 
 	@Override
@@ -28,6 +28,27 @@ public class TileAddress
 {
 	// private static final Logger log = Logger.getLogger(TileAddr.class);
 
+	/**
+	 * Number of bits used for the zoom level in a packed tile key, see {@link #getKey(int, int, int)}.
+	 */
+	public static final int KEY_ZOOM_BITS = 5;
+	/**
+	 * Number of bits used for each of the x and y indices in a packed tile key, see {@link #getKey(int, int, int)}.
+	 */
+	public static final int KEY_IDX_BITS = 29;
+	private static final long KEY_IDX_MASK = (1L << KEY_IDX_BITS) - 1;
+
+	/**
+	 * Packs the tile address into a single long: zoom in the upper {@value #KEY_ZOOM_BITS} bits, followed by x and y with {@value #KEY_IDX_BITS} bits each.
+	 * This covers all zoom levels up to {@link MP2MapSpace#MAX_TECH_ZOOM} without loss.
+	 * 
+	 * @return The packed key, it is unique for each tile address within one map source.
+	 */
+	public static long getKey(int tileXIdx, int tileYIdx, int zoom)
+	{
+		return ((long) zoom << (2 * KEY_IDX_BITS)) | ((tileXIdx & KEY_IDX_MASK) << KEY_IDX_BITS) | (tileYIdx & KEY_IDX_MASK);
+	}
+
 	private int mX = 0;
 	private int mY = 0;
 	private int mZoom = 0;
@@ -104,6 +125,14 @@ public class TileAddress
 	// return new MP2Pixel(mX * MP2MapSpace.TECH_TILESIZE, mY * MP2MapSpace.TECH_TILESIZE, mZoom);
 	// }
 
+	/**
+	 * @return The packed key of this address, see {@link #getKey(int, int, int)}.
+	 */
+	public long getKey()
+	{
+		return getKey(mX, mY, mZoom);
+	}
+
 	/**
 	 * @return The address of the pixel at the upper left corner of this tile.
 	 */
@@ -122,6 +151,24 @@ public class TileAddress
 	// return new MP2Corner((mX + 1) * MP2MapSpace.TECH_TILESIZE, (mY + 1) * MP2MapSpace.TECH_TILESIZE, mZoom);
 	// }
 
+	@Override
+	public int hashCode()
+	{
+		long key = getKey();
+		return (int) (key ^ (key >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+			return true;
+		if (!(obj instanceof TileAddress))
+			return false;
+		TileAddress other = (TileAddress) obj;
+		return (mX == other.mX) && (mY == other.mY) && (mZoom == other.mZoom);
+	}
+
 	@Override
 	public String toString()
 	{
@@ -16,6 +16,7 @@ import org.apache.log4j.Logger;
 
 import osmb.program.jaxb.DimensionAdapter;
 import osmb.program.tiles.TileImageFormat;
+import osmb.program.tilestore.TileStoreFormat;
 import osmb.utilities.UnitSystem;
 import osmb.utilities.geo.CoordinateStringFormat;
 
@@ -119,7 +120,23 @@ public abstract class ACSettings implements IfSettings
 	 * Use tilestore or not
 	 */
 	protected boolean cfgTileStoreEnabled = true;
+	/**
+	 * Storage format of the tile stores
+	 */
+	protected TileStoreFormat cfgTileStoreFormat = TileStoreFormat.SQLITE;
+	/**
+	 * Number of threads for I/O bound work, i.e. concurrent downloads
+	 */
 	protected int cfgDownloadThreadCount = 2;
+	/**
+	 * Number of threads for CPU bound work, i.e. decoding and composing tiles. 0 means one per available processor.
+	 */
+	protected int cfgComputeThreadCount = 0;
+	/**
+	 * Number of threads loading the layer tiles of multi layer map sources. These mostly wait for downloads of all composed tiles at once, so the pool is
+	 * larger than the download pool.
+	 */
+	protected int cfgLayerThreadCount = 16;
 	protected int cfgDownloadRetryCount = 1;
 	protected CoordinateStringFormat cfgCoordinateNumberFormat = CoordinateStringFormat.DEG_LOCAL;
 	/**
@@ -346,6 +363,16 @@ public abstract class ACSettings implements IfSettings
 		this.cfgTileStoreEnabled = tileStoreEnabled;
 	}
 
+	public TileStoreFormat getTileStoreFormat()
+	{
+		return cfgTileStoreFormat;
+	}
+
+	public void setTileStoreFormat(TileStoreFormat tileStoreFormat)
+	{
+		this.cfgTileStoreFormat = tileStoreFormat;
+	}
+
 	public int getDownloadThreadCount()
 	{
 		return cfgDownloadThreadCount;
@@ -356,6 +383,31 @@ public abstract class ACSettings implements IfSettings
 		this.cfgDownloadThreadCount = downloadThreadCount;
 	}
 
+	/**
+	 * @return The number of threads for CPU bound work, at least one.
+	 */
+	public int getComputeThreadCount()
+	{
+		if (cfgComputeThreadCount > 0)
+			return cfgComputeThreadCount;
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	public void setComputeThreadCount(int computeThreadCount)
+	{
+		this.cfgComputeThreadCount = computeThreadCount;
+	}
+
+	public int getLayerThreadCount()
+	{
+		return cfgLayerThreadCount;
+	}
+
+	public void setLayerThreadCount(int layerThreadCount)
+	{
+		this.cfgLayerThreadCount = layerThreadCount;
+	}
+
 	/**
 	 * @return The maximum expiration time [ms] of a tile. If this time has already expired, the server will be asked for the tile to download regardless of its
 	 *         expiration time, if any was specified by the server..
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmb.program;
+
+/**
+ * A job that is scheduled by the {@link JobDispatcher} according to its priority. Jobs of a higher priority class are executed first, within one class the
+ * job with the lower rank is executed first. Jobs of equal priority and rank are executed in the order they have been submitted.
+ * 
+ * @author humbach
+ */
+public interface IfPrioritizedJob extends Runnable
+{
+	/**
+	 * The priority classes, highest first.
+	 */
+	public enum JobPriority
+	{
+		/**
+		 * Needed for the currently visible viewport.
+		 */
+		VIEWPORT,
+		/**
+		 * Prefetching around the viewport.
+		 */
+		PREFETCH,
+		/**
+		 * Background work, e.g. filling the tile store for a bundle.
+		 */
+		BACKFILL
+	}
+
+	/**
+	 * @return The priority class of this job.
+	 */
+	JobPriority getPriority();
+
+	/**
+	 * Changes the priority class of this job. A job already queued in a {@link JobDispatcher} has to be re-queued to be affected, see
+	 * {@link JobDispatcher#reprioritizeJobs(osmb.mapsources.ACMapSource, JobPriority)} and {@link JobDispatcher#requeueJob(IfPrioritizedJob)}.
+	 */
+	void setPriority(JobPriority priority);
+
+	/**
+	 * Called by the {@link JobDispatcher} queueing this job, so the job knows where to be re-queued when its priority changes.
+	 */
+	void setDispatcher(JobDispatcher dispatcher);
+
+	/**
+	 * @return The rank of this job within its priority class, lower first. For tile jobs this is the zoom level.
+	 */
+	int getRank();
+}
@@ -16,16 +16,28 @@
  ******************************************************************************/
 package osmb.program;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
+import osmb.mapsources.ACMapSource;
+import osmb.mapsources.TileAddress;
+import osmb.program.IfPrioritizedJob.JobPriority;
+import osmb.program.tiles.IfTileJob;
+
 /**
- * Not a singleton any longer. This is done because we have to handle different separate pools, i.e. for layer and map, or downloader etc...
+ * Not a singleton any longer. This is done because we have to handle different separate pools, i.e. for layer and map, or downloader etc...<br>
+ * Waiting jobs are kept in a priority queue. {@link IfPrioritizedJob}s are executed by priority class and rank, all other jobs are treated as
+ * {@link JobPriority#PREFETCH}. Within the same priority and rank jobs are executed in the order of submission. Queued {@link IfTileJob}s can be cancelled or
+ * reprioritized by map source or by region, so after panning the tiles now visible are loaded before the stale ones.
  * 
  * @author humbach
  */
@@ -46,33 +58,253 @@ public class JobDispatcher extends ThreadPoolExecutor implements ThreadFactory,
 	 */
 	private int WORKER_THREAD_ID = 1;
 
+	/**
+	 * The thread name prefix
+	 */
+	private volatile String mNamePref = "Thread";
+
+	/**
+	 * The order of the waiting jobs: priority class, rank, submission.
+	 */
+	private static final Comparator<Runnable> QUEUE_ORDER = new Comparator<Runnable>()
+	{
+		@Override
+		public int compare(Runnable r1, Runnable r2)
+		{
+			QueuedJob j1 = (QueuedJob) r1;
+			QueuedJob j2 = (QueuedJob) r2;
+			int cmp = j1.mPriority.compareTo(j2.mPriority);
+			if (cmp == 0)
+				cmp = Integer.compare(j1.mRank, j2.mRank);
+			if (cmp == 0)
+				cmp = Long.compare(j1.mSeq, j2.mSeq);
+			return cmp;
+		}
+	};
+
+	/**
+	 * Submission counter, keeps the order of jobs with equal priority.
+	 */
+	private final AtomicLong mSeq = new AtomicLong();
+
+	/**
+	 * The dispatcher owning the current worker thread, set in {@link #beforeExecute(Thread, Runnable)}.
+	 */
+	private static final ThreadLocal<JobDispatcher> sCurrentDispatcher = new ThreadLocal<JobDispatcher>();
+
+	/**
+	 * @return The dispatcher executing the current thread's job, or null if the current thread is not a worker thread of a {@link JobDispatcher}.
+	 */
+	public static JobDispatcher getCurrentDispatcher()
+	{
+		return sCurrentDispatcher.get();
+	}
+
 	/**
 	 * Removes all jobs from the queue that are currently not being processed.
 	 */
 	public void cancelOutstandingJobs()
 	{
 		log.debug("waiting jobs=" + getQueue().size());
-		getQueue().clear();
+		ArrayList<Runnable> jobs = new ArrayList<Runnable>(getQueue().size());
+		getQueue().drainTo(jobs);
+		for (Runnable job : jobs)
+			cancelJob(((QueuedJob) job).mJob);
 		purge();
 		log.debug("remaining jobs=" + getQueue().size());
 	}
 
+	/**
+	 * Removes all waiting jobs for tiles of the specified map source from the queue.
+	 * 
+	 * @return The number of cancelled jobs.
+	 */
+	public int cancelJobs(final ACMapSource mapSource)
+	{
+		return selectJobs(new JobSelector()
+		{
+			@Override
+			boolean matches(IfTileJob job)
+			{
+				return job.getMapSource() == mapSource;
+			}
+		}, null);
+	}
+
+	/**
+	 * Removes all waiting jobs for tiles outside of the specified region from the queue. The region is given in tile indices at zoom level <code>zoom</code>,
+	 * jobs at other zoom levels are compared to the region scaled to their zoom level.
+	 * 
+	 * @return The number of cancelled jobs.
+	 */
+	public int cancelJobsOutside(int zoom, int minX, int minY, int maxX, int maxY)
+	{
+		return selectJobs(new OutsideSelector(zoom, minX, minY, maxX, maxY), null);
+	}
+
+	/**
+	 * Moves all waiting jobs for tiles of the specified map source into the priority class <code>priority</code>.
+	 * 
+	 * @return The number of reprioritized jobs.
+	 */
+	public int reprioritizeJobs(final ACMapSource mapSource, JobPriority priority)
+	{
+		return selectJobs(new JobSelector()
+		{
+			@Override
+			boolean matches(IfTileJob job)
+			{
+				return job.getMapSource() == mapSource;
+			}
+		}, priority);
+	}
+
+	/**
+	 * Moves all waiting jobs for tiles outside of the specified region into the priority class <code>priority</code>, see
+	 * {@link #cancelJobsOutside(int, int, int, int, int)}.
+	 * 
+	 * @return The number of reprioritized jobs.
+	 */
+	public int reprioritizeJobsOutside(int zoom, int minX, int minY, int maxX, int maxY, JobPriority priority)
+	{
+		return selectJobs(new OutsideSelector(zoom, minX, minY, maxX, maxY), priority);
+	}
+
+	/**
+	 * Moves the job, if it is still waiting, to the place given by its current priority. It keeps its submission order within the priority class.
+	 * 
+	 * @return TRUE if the job has been re-queued.
+	 */
+	public boolean requeueJob(IfPrioritizedJob job)
+	{
+		for (Runnable queued : getQueue().toArray(new Runnable[0]))
+		{
+			QueuedJob qj = (QueuedJob) queued;
+			if (qj.mJob != job)
+				continue;
+			if ((qj.mPriority == job.getPriority()) || !getQueue().remove(qj))
+				return false;
+			getQueue().offer(new QueuedJob(job, qj.mSeq));
+			log.debug("requeued " + job);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Cancels or reprioritizes all waiting tile jobs matched by <code>selector</code>. A job taken by a worker meanwhile is left alone.
+	 * 
+	 * @param priority
+	 *          The new priority class, or null to cancel the jobs.
+	 * @return The number of affected jobs.
+	 */
+	protected int selectJobs(JobSelector selector, JobPriority priority)
+	{
+		int count = 0;
+		for (Runnable queued : getQueue().toArray(new Runnable[0]))
+		{
+			QueuedJob qj = (QueuedJob) queued;
+			if (!(qj.mJob instanceof IfTileJob) || !selector.matches((IfTileJob) qj.mJob))
+				continue;
+			if ((priority != null) && (qj.mPriority == priority))
+				continue;
+			if (!getQueue().remove(qj))
+				continue;
+			++count;
+			if (priority == null)
+				cancelJob(qj.mJob);
+			else
+			{
+				((IfTileJob) qj.mJob).setPriority(priority);
+				getQueue().offer(new QueuedJob(qj.mJob, qj.mSeq));
+			}
+		}
+		log.debug((priority == null ? "cancelled jobs=" : "reprioritized jobs=") + count + ", remaining jobs=" + getQueue().size());
+		return count;
+	}
+
+	/**
+	 * A removed job that is a {@link Future} is cancelled, so anyone waiting for it is released.
+	 */
+	private static void cancelJob(Runnable job)
+	{
+		if (job instanceof Future)
+			((Future<?>) job).cancel(false);
+	}
+
 	/**
 	 * Default constructor with no special values
 	 */
 	public JobDispatcher()
 	{
-		super(WORKER_THREAD_INIT_COUNT, WORKER_THREAD_MAX_COUNT, WORKER_THREAD_TIMEOUT, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-		allowCoreThreadTimeOut(true);
+		this(WORKER_THREAD_INIT_COUNT);
 	}
 
 	/**
-	 * Constructor with a specified maximum of concurrent threads in this pool. This maximum has to be at least the minimum or the other way round.
+	 * Constructor with a specified maximum of concurrent threads in this pool.<br>
+	 * With an unbounded queue a {@link ThreadPoolExecutor} never starts more than its core size threads, so core and maximum size are always the same here.
+	 * Threads are started on demand and terminate after {@link #WORKER_THREAD_TIMEOUT} seconds idle time.
 	 */
 	public JobDispatcher(int nMaxConcThreads)
 	{
-		super(Math.min(nMaxConcThreads, WORKER_THREAD_INIT_COUNT), nMaxConcThreads, WORKER_THREAD_TIMEOUT, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		super(checkThreadCount(nMaxConcThreads), checkThreadCount(nMaxConcThreads), WORKER_THREAD_TIMEOUT, TimeUnit.SECONDS,
+		    new PriorityBlockingQueue<Runnable>(64, QUEUE_ORDER));
 		allowCoreThreadTimeOut(true);
+		setThreadFactory(this);
+	}
+
+	/**
+	 * Creates a dispatcher for I/O bound work, i.e. downloads. Its size is {@link ACSettings#getDownloadThreadCount()}.
+	 */
+	public static JobDispatcher createDownloadDispatcher()
+	{
+		ACSettings settings = ACSettings.getInstance();
+		JobDispatcher dispatcher = new JobDispatcher((settings != null) ? settings.getDownloadThreadCount() : WORKER_THREAD_INIT_COUNT);
+		dispatcher.setNamePref("Download");
+		return dispatcher;
+	}
+
+	/**
+	 * Creates a dispatcher for CPU bound work, i.e. decoding, encoding and composing tiles. Its size is {@link ACSettings#getComputeThreadCount()}, which
+	 * defaults to the number of available processors.
+	 */
+	public static JobDispatcher createComputeDispatcher()
+	{
+		ACSettings settings = ACSettings.getInstance();
+		JobDispatcher dispatcher = new JobDispatcher((settings != null) ? settings.getComputeThreadCount() : Runtime.getRuntime().availableProcessors());
+		dispatcher.setNamePref("Compute");
+		return dispatcher;
+	}
+
+	/**
+	 * Creates a dispatcher loading the layer tiles of multi layer map sources. Its size is {@link ACSettings#getLayerThreadCount()}.
+	 */
+	public static JobDispatcher createLayerDispatcher()
+	{
+		ACSettings settings = ACSettings.getInstance();
+		JobDispatcher dispatcher = new JobDispatcher((settings != null) ? settings.getLayerThreadCount() : WORKER_THREAD_INIT_COUNT);
+		dispatcher.setNamePref("Layer");
+		return dispatcher;
+	}
+
+	private static int checkThreadCount(int nThreads)
+	{
+		return Math.max(1, Math.min(nThreads, WORKER_THREAD_MAX_COUNT));
+	}
+
+	/**
+	 * Wraps the job to be queued by priority.
+	 * 
+	 * @see java.util.concurrent.ThreadPoolExecutor#execute(java.lang.Runnable)
+	 */
+	@Override
+	public void execute(Runnable job)
+	{
+		if (job == null)
+			throw new NullPointerException();
+		if (job instanceof IfPrioritizedJob)
+			((IfPrioritizedJob) job).setDispatcher(this);
+		super.execute(new QueuedJob(job, mSeq.getAndIncrement()));
 	}
 
 	@Override
@@ -84,7 +316,7 @@ public class JobDispatcher extends ThreadPoolExecutor implements ThreadFactory,
 			id = WORKER_THREAD_ID++;
 		}
 		log.trace("New worker thread created with id=" + id);
-		return new DelayedInterruptThread(job, "Thread-" + id);
+		return new DelayedInterruptThread(job, mNamePref + "-" + id);
 	}
 
 	@Override
@@ -120,6 +352,7 @@ public class JobDispatcher extends ThreadPoolExecutor implements ThreadFactory,
 	protected void beforeExecute(Thread t, Runnable r)
 	{
 		log.debug("START t=" + t + " r=" + r);
+		sCurrentDispatcher.set(this);
 		super.beforeExecute(t, r);
 	}
 
@@ -139,29 +372,124 @@ public class JobDispatcher extends ThreadPoolExecutor implements ThreadFactory,
 	@Override
 	public boolean remove(Runnable task)
 	{
-		return super.remove(task);
+		for (Runnable queued : getQueue())
+		{
+			if ((queued == task) || (((QueuedJob) queued).mJob == task))
+				return super.remove(queued);
+		}
+		return false;
 	}
 
 	/**
-	 * Sets a new max thread number.
+	 * Sets a new max thread number. Core and maximum size are changed together, see {@link #JobDispatcher(int)}.
 	 */
 	public void setNewMaxThreads(int nMax)
 	{
-		setMaximumPoolSize(nMax);
+		nMax = checkThreadCount(nMax);
+		if (nMax > getMaximumPoolSize())
+		{
+			setMaximumPoolSize(nMax);
+			setCorePoolSize(nMax);
+		}
+		else
+		{
+			setCorePoolSize(nMax);
+			setMaximumPoolSize(nMax);
+		}
 	}
 
 	/**
-	 * nyr
-	 * 
 	 * @param strPref
-	 *          The thread name prefix to be used by this thread pool.
+	 *          The thread name prefix to be used by this thread pool for threads created from now on.
 	 */
 	public void setNamePref(String strPref)
 	{
-		// TODO modify the ThreadFactory to accommodate the prefix setting
+		mNamePref = strPref;
 	}
 
 	/*
 	 * prestartCoreThread()
 	 */
+
+	/**
+	 * The queue entry of a job. The priority is taken from the job when it is queued.
+	 */
+	protected static class QueuedJob implements Runnable
+	{
+		final Runnable mJob;
+		final JobPriority mPriority;
+		final int mRank;
+		final long mSeq;
+
+		QueuedJob(Runnable job, long seq)
+		{
+			mJob = job;
+			mSeq = seq;
+			if (job instanceof IfPrioritizedJob)
+			{
+				IfPrioritizedJob pJob = (IfPrioritizedJob) job;
+				mPriority = (pJob.getPriority() != null) ? pJob.getPriority() : JobPriority.PREFETCH;
+				mRank = pJob.getRank();
+			}
+			else
+			{
+				mPriority = JobPriority.PREFETCH;
+				mRank = 0;
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			mJob.run();
+		}
+
+		@Override
+		public String toString()
+		{
+			return mJob.toString() + " [" + mPriority + "]";
+		}
+	}
+
+	/**
+	 * Selects queued tile jobs.
+	 */
+	protected static abstract class JobSelector
+	{
+		abstract boolean matches(IfTileJob job);
+	}
+
+	/**
+	 * Selects the tile jobs outside of a region given at one zoom level.
+	 */
+	protected static class OutsideSelector extends JobSelector
+	{
+		final int mZoom;
+		final int mMinX;
+		final int mMinY;
+		final int mMaxX;
+		final int mMaxY;
+
+		OutsideSelector(int zoom, int minX, int minY, int maxX, int maxY)
+		{
+			mZoom = zoom;
+			mMinX = minX;
+			mMinY = minY;
+			mMaxX = maxX;
+			mMaxY = maxY;
+		}
+
+		@Override
+		boolean matches(IfTileJob job)
+		{
+			TileAddress tAddr = job.getAddress();
+			int x = tAddr.getX();
+			int y = tAddr.getY();
+			int d = tAddr.getZoom() - mZoom;
+			if (d >= 0)
+				return (x < (mMinX << d)) || (x >= ((mMaxX + 1) << d)) || (y < (mMinY << d)) || (y >= ((mMaxY + 1) << d));
+			else
+				return (x < (mMinX >> -d)) || (x > (mMaxX >> -d)) || (y < (mMinY >> -d)) || (y > (mMaxY >> -d));
+		}
+	}
 }
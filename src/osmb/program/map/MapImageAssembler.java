@@ -0,0 +1,498 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmb.program.map;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Vector;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.log4j.Logger;
+
+import osmb.mapsources.ACMapSource;
+import osmb.mapsources.MP2MapSpace;
+import osmb.mapsources.TileAddress;
+import osmb.program.ACSettings;
+import osmb.program.mapstore.sqlitedb.SQLiteDbMapStore;
+import osmb.program.tiles.Tile;
+import osmb.program.tilestore.ACNTileStore;
+import osmb.utilities.OSMBStrs;
+
+/**
+ * Assembles the image of a map from its tiles and writes it into a file, without ever holding the whole image in memory.
+ * <p>
+ * The assembler presents the map to the image writer as a {@link RenderedImage} whose pixels are produced on demand. The writer pulls the image row by row
+ * (PNG) or tile by tile (tiled TIFF), which is in both cases from top to bottom. The assembler keeps only one band of the map, one tile row high, and
+ * decodes the tiles of the next band when the writer reaches it. So the memory needed depends on the width of the map only, it is about 256 KB per tile
+ * column, i.e. 32 MB for a map of 128 tile columns.
+ * <p>
+ * The tiles are taken from the tile store of the maps source. Missing tiles are loaded by {@link ACMapSource#loadTile(TileAddress)}.
+ * <p>
+ * If the {@link SQLiteDbMapStore} of the map source is open, PNG images are taken from it when it holds the map, and new ones up to
+ * {@link #MAX_CACHED_MAP_SIZE} bytes are put into it.
+ * 
+ * @author humbach
+ */
+public class MapImageAssembler implements RenderedImage
+{
+	// class/static data
+	protected static Logger log = Logger.getLogger(MapImageAssembler.class);
+
+	private static final int TILE_SIZE = MP2MapSpace.TECH_TILESIZE;
+	private static final ColorModel COLOR_MODEL = new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF);
+	/**
+	 * The maximum size of an encoded map image to be put into the map store, it is held in memory while it is written.
+	 */
+	public static final long MAX_CACHED_MAP_SIZE = 64L << 20;
+
+	// instance data
+	protected final ACMapSource mMapSource;
+	protected final int mZoom;
+	/**
+	 * The extent of the map in pixel coordinates of its zoom level. The image coordinates are relative to its origin.
+	 */
+	protected final Rectangle mExtent;
+	/**
+	 * The image coordinates of the upper left corner of the tile grid, zero or negative if the map does not start at a tile border.
+	 */
+	protected final int mGridX;
+	protected final int mGridY;
+	protected final int mNumXTiles;
+	protected final int mNumYTiles;
+	protected final SampleModel mSampleModel;
+	/**
+	 * The raster holding the pixels of the current band, one tile row of the map. It is reused for all bands.
+	 */
+	protected WritableRaster mBandBuf = null;
+	/**
+	 * The current band, {@link #mBandBuf} translated to the image coordinates of the band.
+	 */
+	protected WritableRaster mBand = null;
+	protected int mBandRow = -1;
+	protected int[] mTileBuf = new int[TILE_SIZE * TILE_SIZE];
+	protected int mTilesLoaded = 0;
+	protected volatile ImageWriter mWriter = null;
+	protected volatile IOException mFailure = null;
+
+	public MapImageAssembler(IfMap map)
+	{
+		mMapSource = map.getMapSource();
+		mZoom = map.getZoom();
+		Point min = map.getMinPixelCoordinate();
+		Point max = map.getMaxPixelCoordinate();
+		mExtent = new Rectangle(min.x, min.y, max.x - min.x + 1, max.y - min.y + 1);
+		mGridX = -(min.x % TILE_SIZE);
+		mGridY = -(min.y % TILE_SIZE);
+		mNumXTiles = (mExtent.width - mGridX + TILE_SIZE - 1) / TILE_SIZE;
+		mNumYTiles = (mExtent.height - mGridY + TILE_SIZE - 1) / TILE_SIZE;
+		mSampleModel = COLOR_MODEL.createCompatibleSampleModel(TILE_SIZE, TILE_SIZE);
+	}
+
+	/**
+	 * Assembles the map image and writes it into the file. The image is written into a temporary file first, which replaces <code>file</code> when it is
+	 * complete.
+	 * 
+	 * @param file
+	 *          The image file to write.
+	 * @param formatName
+	 *          The image format, i.e. "png" or "tiff". TIFF files are written tiled, if the writer supports it.
+	 * @throws IOException
+	 *           If there is no writer for the format, the writing failed or has been interrupted.
+	 */
+	public void writeImage(Path file, String formatName) throws IOException
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		SQLiteDbMapStore mapStore = SQLiteDbMapStore.getMapStore(mMapSource);
+		if (!SQLiteDbMapStore.MAP_IMAGE_FORMAT.equalsIgnoreCase(formatName))
+			mapStore = null;
+		if ((mapStore != null) && writeCachedImage(mapStore, file))
+			return;
+		Iterator<ImageWriter> writers = ImageIO.getImageWriters(ImageTypeSpecifier.createFromRenderedImage(this), formatName);
+		if (!writers.hasNext())
+			throw new IOException("no image writer for format '" + formatName + "'");
+		ImageWriter writer = writers.next();
+		Path tmpFile = file.resolveSibling(file.getFileName() + ".part");
+		long start = System.currentTimeMillis();
+		boolean bMoved = false;
+		mWriter = writer;
+		try
+		{
+			try (ImageOutputStream ios = ImageIO.createImageOutputStream(tmpFile.toFile()))
+			{
+				if (ios == null)
+					throw new IOException("cannot write " + tmpFile);
+				writer.setOutput(ios);
+				ImageWriteParam param = writer.getDefaultWriteParam();
+				if (param.canWriteTiles())
+				{
+					param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+					param.setTiling(TILE_SIZE, TILE_SIZE, 0, 0);
+				}
+				writer.write(null, new IIOImage(this, null, null), param);
+			}
+			finally
+			{
+				mWriter = null;
+				writer.dispose();
+				mBandBuf = null;
+				mBand = null;
+				mBandRow = -1;
+			}
+			if (mFailure != null)
+				throw mFailure;
+			if (Thread.currentThread().isInterrupted())
+				throw new InterruptedIOException("assembling of " + this + " interrupted");
+			Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+			bMoved = true;
+		}
+		finally
+		{
+			// no partial image is left behind, whatever went wrong
+			if (!bMoved)
+			{
+				try
+				{
+					Files.deleteIfExists(tmpFile);
+				}
+				catch (IOException e)
+				{
+					log.warn("deleting " + tmpFile + " failed: " + e);
+				}
+			}
+		}
+		log.debug(this + " written to " + file + ", " + mTilesLoaded + " tiles in " + (System.currentTimeMillis() - start) + " ms");
+		if (mapStore != null)
+			cacheImage(mapStore, file);
+	}
+
+	/**
+	 * Writes the map image held by the map store into the file.
+	 * 
+	 * @return TRUE if the map store held the image. If it failed to deliver it, the image is assembled as usual.
+	 */
+	protected boolean writeCachedImage(SQLiteDbMapStore mapStore, Path file)
+	{
+		Path tmpFile = file.resolveSibling(file.getFileName() + ".part");
+		try
+		{
+			byte[] data = mapStore.getMapData(mZoom, mExtent);
+			if (data == null)
+				return false;
+			Files.write(tmpFile, data);
+			Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+			log.debug(this + " written to " + file + " from map store");
+			return true;
+		}
+		catch (IOException e)
+		{
+			log.warn("taking " + this + " from map store failed, assembling it: " + e);
+			try
+			{
+				Files.deleteIfExists(tmpFile);
+			}
+			catch (IOException e2)
+			{
+				log.warn("deleting " + tmpFile + " failed: " + e2);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Puts the image file written into the map store, if it is not larger than {@link #MAX_CACHED_MAP_SIZE}. A failure only costs the reuse.
+	 */
+	protected void cacheImage(SQLiteDbMapStore mapStore, Path file)
+	{
+		try
+		{
+			if (Files.size(file) > MAX_CACHED_MAP_SIZE)
+				return;
+			long now = System.currentTimeMillis();
+			mapStore.putMapData(Files.readAllBytes(file), mZoom, mExtent, now, now + ACSettings.getTileDefaultExpirationTime(), "-");
+		}
+		catch (IOException e)
+		{
+			log.warn("putting " + this + " into map store failed: " + e);
+		}
+	}
+
+	/**
+	 * Provides the band with the tile row <code>row</code>, loading its tiles if it is not the current band.
+	 */
+	protected synchronized WritableRaster getBand(int row)
+	{
+		if (row == mBandRow)
+			return mBand;
+		if (mBandBuf == null)
+			mBandBuf = Raster.createWritableRaster(COLOR_MODEL.createCompatibleSampleModel(mNumXTiles * TILE_SIZE, TILE_SIZE), null);
+		mBandRow = -1;
+		int y = mGridY + row * TILE_SIZE;
+		mBand = mBandBuf.createWritableTranslatedChild(mGridX, y);
+		int tileY = (mExtent.y + y) / TILE_SIZE;
+		int tileX0 = (mExtent.x + mGridX) / TILE_SIZE;
+		for (int col = 0; col < mNumXTiles; col++)
+		{
+			// once interrupted, no further tile is loaded
+			if ((mFailure == null) && Thread.currentThread().isInterrupted())
+				abort(new InterruptedIOException("assembling of " + this + " interrupted"));
+			BufferedImage image = (mFailure == null) ? loadTileImage(new TileAddress(tileX0 + col, tileY, mZoom)) : null;
+			if (image == null)
+				Arrays.fill(mTileBuf, mMapSource.getBackgroundColor().getRGB());
+			else
+				getTilePixels(image);
+			mBand.setDataElements(mGridX + col * TILE_SIZE, y, TILE_SIZE, TILE_SIZE, mTileBuf);
+		}
+		mBandRow = row;
+		log.trace("band " + row + " of " + this + " assembled");
+		return mBand;
+	}
+
+	/**
+	 * @return The decoded image of the tile, or null if there is none.
+	 */
+	protected BufferedImage loadTileImage(TileAddress tAddr)
+	{
+		try
+		{
+			ACNTileStore ts = mMapSource.getNTileStore();
+			Tile tile = (ts != null) ? ts.getTile(tAddr) : null;
+			if ((tile == null) || !tile.hasImageData())
+				tile = mMapSource.loadTile(tAddr);
+			mTilesLoaded++;
+			if (tile == null)
+				return null;
+			BufferedImage image = tile.getImage();
+			return ((image == Tile.LOADING_IMAGE) || (image == Tile.ERROR_IMAGE)) ? null : image;
+		}
+		catch (IOException e)
+		{
+			log.error("loading " + tAddr + " for " + this + " failed", e);
+			abort(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Copies the pixels of the tile image into {@link #mTileBuf}, scaling it if it is not of the tile size.
+	 */
+	protected void getTilePixels(BufferedImage image)
+	{
+		if ((image.getWidth() != TILE_SIZE) || (image.getHeight() != TILE_SIZE))
+		{
+			BufferedImage scaled = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g2 = scaled.createGraphics();
+			try
+			{
+				g2.setColor(mMapSource.getBackgroundColor());
+				g2.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+				g2.drawImage(image, 0, 0, TILE_SIZE, TILE_SIZE, null);
+			}
+			finally
+			{
+				g2.dispose();
+			}
+			image = scaled;
+		}
+		image.getRGB(0, 0, TILE_SIZE, TILE_SIZE, mTileBuf, 0, TILE_SIZE);
+	}
+
+	/**
+	 * Stops the writer, it checks for this between rows or tiles.
+	 */
+	protected void abort(IOException e)
+	{
+		if ((e != null) && (mFailure == null))
+			mFailure = e;
+		ImageWriter writer = mWriter;
+		if (writer != null)
+			writer.abort();
+	}
+
+	/**
+	 * This is the core of the assembly. The rectangle is copied from the bands it spans, loading them as needed.
+	 */
+	@Override
+	public synchronized WritableRaster copyData(WritableRaster raster)
+	{
+		if (raster == null)
+			raster = Raster.createWritableRaster(COLOR_MODEL.createCompatibleSampleModel(mExtent.width, mExtent.height), null);
+		Rectangle rect = raster.getBounds().intersection(new Rectangle(0, 0, mExtent.width, mExtent.height));
+		if (rect.isEmpty())
+			return raster;
+		int firstRow = (rect.y - mGridY) / TILE_SIZE;
+		int lastRow = (rect.y + rect.height - 1 - mGridY) / TILE_SIZE;
+		for (int row = firstRow; row <= lastRow; row++)
+		{
+			Raster band = getBand(row);
+			Rectangle part = band.getBounds().intersection(rect);
+			raster.setDataElements(0, 0, band.createChild(part.x, part.y, part.width, part.height, part.x, part.y, null));
+		}
+		return raster;
+	}
+
+	@Override
+	public Raster getData(Rectangle rect)
+	{
+		SampleModel sm = COLOR_MODEL.createCompatibleSampleModel(rect.width, rect.height);
+		return copyData(Raster.createWritableRaster(sm, rect.getLocation()));
+	}
+
+	/**
+	 * This allocates the whole image, it should not be used for large maps.
+	 */
+	@Override
+	public Raster getData()
+	{
+		return copyData(null);
+	}
+
+	@Override
+	public Raster getTile(int tileX, int tileY)
+	{
+		return getData(new Rectangle(mGridX + tileX * TILE_SIZE, mGridY + tileY * TILE_SIZE, TILE_SIZE, TILE_SIZE));
+	}
+
+	@Override
+	public Vector<RenderedImage> getSources()
+	{
+		return null;
+	}
+
+	@Override
+	public Object getProperty(String name)
+	{
+		return Image.UndefinedProperty;
+	}
+
+	@Override
+	public String[] getPropertyNames()
+	{
+		return null;
+	}
+
+	@Override
+	public ColorModel getColorModel()
+	{
+		return COLOR_MODEL;
+	}
+
+	@Override
+	public SampleModel getSampleModel()
+	{
+		return mSampleModel;
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return mExtent.width;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return mExtent.height;
+	}
+
+	@Override
+	public int getMinX()
+	{
+		return 0;
+	}
+
+	@Override
+	public int getMinY()
+	{
+		return 0;
+	}
+
+	@Override
+	public int getNumXTiles()
+	{
+		return mNumXTiles;
+	}
+
+	@Override
+	public int getNumYTiles()
+	{
+		return mNumYTiles;
+	}
+
+	@Override
+	public int getMinTileX()
+	{
+		return 0;
+	}
+
+	@Override
+	public int getMinTileY()
+	{
+		return 0;
+	}
+
+	@Override
+	public int getTileWidth()
+	{
+		return TILE_SIZE;
+	}
+
+	@Override
+	public int getTileHeight()
+	{
+		return TILE_SIZE;
+	}
+
+	@Override
+	public int getTileGridXOffset()
+	{
+		return mGridX;
+	}
+
+	@Override
+	public int getTileGridYOffset()
+	{
+		return mGridY;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "map " + mMapSource + " z=" + mZoom + " " + mExtent.x + "/" + mExtent.y + " " + mExtent.width + "x" + mExtent.height;
+	}
+}
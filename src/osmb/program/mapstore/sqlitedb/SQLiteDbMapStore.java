@@ -1,8 +1,13 @@
 package osmb.program.mapstore.sqlitedb;
 
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -10,164 +15,168 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 import org.apache.log4j.Logger;
 
 import osmb.mapsources.ACMapSource;
+import osmb.mapsources.MP2MapSpace;
 import osmb.mapsources.TileAddress;
 import osmb.program.ACSettings;
+import osmb.program.map.IfMap;
 import osmb.program.tiles.SQLiteLoader;
 import osmb.program.tiles.Tile;
-import osmb.program.tiles.Tile.TileState;
 import osmb.program.tilestore.ACNTileStore;
+import osmb.program.tilestore.IfTileStoreListener;
 import osmb.program.tilestore.TileStoreException;
-import osmb.program.tilestore.TileStoreInfo;
 import osmb.utilities.OSMBStrs;
 import osmb.utilities.OSMBUtilities;
 
 /**
+ * A cache of composed map images, i.e. the images of {@link IfMap}s assembled from their tiles. Each map source has its own database.
+ * <p>
+ * A map image is identified by its zoom level and its extent in pixel coordinates, see {@link #getExtent(IfMap)}. A request is satisfied either by an
+ * image with exactly this extent or, by cropping, from the smallest cached image containing it. Only the requested region is decoded then.
+ * <p>
+ * The store registers itself as {@link IfTileStoreListener}. Whenever a tile of its map source is written into the tile store, all map images
+ * overlapping this tile are dropped. The extents of all cached images are kept in memory, so this check does not access the database.
+ *
  * @author humbach
  */
-public class SQLiteDbMapStore extends ACNTileStore
+public class SQLiteDbMapStore implements IfTileStoreListener
 {
 	// class/static data
 	protected static Logger log = Logger.getLogger(SQLiteDbMapStore.class);
-	// common tile store database
-	private static final int MAX_BATCH_SIZE = 1000;
-	private static final String TS_COMMONDB = "TSCommon";
-	private static final String EXT_COMMONDB = "sqlitedb";
+
+	public static final String EXT_MAPSDB = "mapsdb";
+	/**
+	 * The map images are always encoded lossless, so they can be cropped without loss.
+	 */
+	public static final String MAP_IMAGE_FORMAT = "png";
+	/**
+	 * The initial size of the buffer for encoding a map image. Encoded maps are much smaller than their pixel count, so the buffer grows only as needed.
+	 */
+	private static final int ENCODE_BUFFER_SIZE = 64 * 1024;
+
 	private static final String BEGIN_TA = "begin transaction";
 	private static final String COMMIT_TA = "commit transaction";
 	private static final String ROLLBACK_TA = "rollback transaction";
-	// tile store info table
-	private static final String CREATE_TSINFO = "create table if not exists MS_INFO (SID int, MS_NAME text, MS_SNAME text, primary key (SID))";
-	private static final String INSERT_TSINFO = "insert or replace into MS_INFO (SID, MS_NAME, MS_SNAME) values (?,?,?)";
-	private static final String MAXID_TSINFO = "select distinct SID from MS_INFO order by SID desc limit 1";
-	private static final String SNAME_TSINFO = "select TS_SNAME from MS_INFO where (SID=?)";
-	private static final String IDS_TSINFO = "select SID from MS_INFO where (MS_NAME like ?)";
-	// tiles table
+	// maps table, X and Y are the minimum pixel coordinates, W and H the size in pixels
 	private static final String CREATE_MAPS = "create table if not exists MAPS (Z int, X int, Y int, W int, H int, MOD int, EXP int, ETAG text, FK_IID int, primary key (Z,X,Y,W,H))";
-	private static final String INDEXTILE_MAPS = "create index if not exists IX_TILE on MAPS (Z,X,Y,W,H)";
-	private static final String INDEXMOD_MAPS = "create index if not exists IX_MOD on MAPS (MOD)";
 	private static final String INDEXEXP_MAPS = "create index if not exists IX_EXP on MAPS (EXP)";
-	private static final String INDEXETAG_MAPS = "create index if not exists IX_ETAG on MAPS (ETAG)";
 	private static final String INSERT_MAPS = "insert or replace into MAPS (Z,X,Y,W,H,MOD,EXP,ETAG,FK_IID) values (?,?,?,?,?,?,?,?,?)";
+	private static final String DELETE_MAPS = "delete from MAPS where (FK_IID=?)";
+	private static final String ALL_MAPS = "select Z,X,Y,W,H,MOD,EXP,FK_IID from MAPS";
 	private static final String CLEAR_MAPS = "delete from MAPS";
-	private static final String IID_MAPS = "select FK_IID from MAPS where (Z=?) and (X=?) and (Y=?) and (W=?) and (H=?)";
-	private static final String EXP_MAPS = "select EXP from MAPS where (Z=?) and (X=?) and (Y=?) and (W=?) and (H=?)";
-	private static final String MOD_MAPS = "select MOD from MAPS where (Z=?) and (X=?) and (Y=?) and (W=?) and (H=?)";
-	// private static final String ETAG_MAPS = "select ETAG from MAPS where (Z=?) and (X=?) and (Y=?) and (W=?) and (H=?)";
-	private static final String NIID_MAPS = "select max(FK_IID) from MAPS";
 	// images table
 	private static final String CREATE_IMAGES = "create table if not exists IMAGES (IID int, IMAGE blob, primary key (IID))";
 	private static final String INSERT_IMAGES = "insert or replace into IMAGES (IID, IMAGE) values (?,?)";
-	private static final String CLEAR_IMAGES = "delete from IMAGES";
+	private static final String DELETE_IMAGES = "delete from IMAGES where (IID=?)";
 	private static final String IMAGE_IMAGES = "select IMAGE from IMAGES where (IID=?)";
 	private static final String NIID_IMAGES = "select max(IID) from IMAGES";
-	// 'magic' tiles ids come from Tile
-
-	// private static final String TCNT_TILES = "SELECT DISTINCT cnt(id_s) FROM tiles ORDER BY id_s DESC LIMIT 1;";
-
-	// SQLite access samples:
-	// stat.executeUpdate("INSERT INTO android_metadata VALUES ('" + locale + "')");
-	//
-	// prepStmt = conn.prepareStatement("INSERT or REPLACE INTO tiles (x,y,z,s,image) VALUES (?,?,?,0,?)");
-	// prepStmt.setInt(1, x);
-	// prepStmt.setInt(2, y);
-	// prepStmt.setInt(3, 17 - z);
-	// prepStmt.setBytes(4, tileData);
-	// prepStmt.addBatch();
-	// prepStmt.executeBatch();
-	// prepStmt.clearBatch();
-	// conn.commit();
-
-	// common tile store data
-	protected static Path sTileStoreBase = ACSettings.getInstance().getTileStoreDirectory().toPath();
-	/**
-	 * Connection to the common tile store database
-	 */
-	protected static Connection sTSConn = null;
+	private static final String CLEAR_IMAGES = "delete from IMAGES";
+
+	private static final HashMap<ACMapSource, SQLiteDbMapStore> sStores = new HashMap<>();
 
 	/**
-	 * Factory method. The class maintains a hash map with all instances.
-	 * 
+	 * Factory method. The class maintains a hash map with all open instances.
+	 *
 	 * @param mapSource
 	 * @throws TileStoreException
 	 */
-	public static SQLiteDbMapStore prepareTileStore(ACMapSource mapSource) throws TileStoreException
+	public static SQLiteDbMapStore prepareMapStore(ACMapSource mapSource) throws TileStoreException
 	{
 		log.trace(OSMBStrs.RStr("START"));
-		try
+		synchronized (sStores)
 		{
-			if (!sInitialized)
-				initializeCommonDB();
-			if (!sInitialized)
+			SQLiteDbMapStore mStore = sStores.get(mapSource);
+			if (mStore == null)
 			{
-				log.error(OSMBStrs.RStr("TileStore.NotInit"));
-				throw new TileStoreException(OSMBStrs.RStr("TileStore.NotInit"));
-			}
-
-			SQLiteDbMapStore tStore = (SQLiteDbMapStore) sHM.get(mapSource);
-			if (tStore == null)
-			{
-				tStore = new SQLiteDbMapStore();
-				sHM.put(mapSource, tStore);
-			}
-			if (!tStore.isInitialized())
-			{
-				tStore.mMapSource = mapSource;
-				tStore.initializeDB();
+				mStore = new SQLiteDbMapStore(mapSource);
+				try
+				{
+					mStore.initializeDB();
+				}
+				catch (SQLException | IOException e)
+				{
+					throw new TileStoreException("Error creating map store for '" + mapSource.getName() + "': " + e.getMessage(), e);
+				}
+				sStores.put(mapSource, mStore);
+				ACNTileStore.addTileStoreListener(mStore);
 			}
-			return tStore;
-		}
-		catch (SQLException e)
-		{
-			throw new TileStoreException("Error creating SQL database for '" + mapSource.getName() + "': " + e.getMessage(), e);
+			return mStore;
 		}
 	}
 
 	/**
-	 * @return A String array with all tile stores loaded at the moment.
+	 * @return The names of all map stores in the tile store directory.
 	 */
 	public static String[] getStoresList()
 	{
 		log.trace(OSMBStrs.RStr("START"));
-		String[] strList = null;
-		// TODO Auto-generated method stub
-		return strList;
+		ArrayList<String> names = new ArrayList<>();
+		Path dir = ACSettings.getInstance().getTileStoreDirectory().toPath();
+		if (Files.isDirectory(dir))
+		{
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*." + EXT_MAPSDB))
+			{
+				for (Path p : ds)
+				{
+					String name = p.getFileName().toString();
+					names.add(name.substring(0, name.length() - EXT_MAPSDB.length() - 1));
+				}
+			}
+			catch (IOException e)
+			{
+				log.error("listing " + dir + " failed", e);
+			}
+		}
+		return names.toArray(new String[names.size()]);
 	}
 
 	/**
-	 * @param mapSource
-	 * @return TRUE if the tile store for the specified map source is already loaded and ok.
+	 * @return The open map store of the map source, or null if it has not been opened by {@link #prepareMapStore(ACMapSource)}.
 	 */
-	public static boolean isStoreValid(ACMapSource mapSource)
+	public static SQLiteDbMapStore getMapStore(ACMapSource mapSource)
 	{
-		log.trace(OSMBStrs.RStr("START"));
-		boolean bOk = false;
-		// TODO Auto-generated method stub
-		return bOk;
+		synchronized (sStores)
+		{
+			return sStores.get(mapSource);
+		}
 	}
 
 	/**
-	 * Returns <code>true</code> if the tile store of the specified {@link ACMapSource} exists.
-	 * 
-	 * @param mapSource
-	 * @return
+	 * Returns <code>true</code> if the map store of the specified {@link ACMapSource} is open.
 	 */
 	public static boolean storeExists(ACMapSource mapSource)
 	{
 		log.trace(OSMBStrs.RStr("START"));
-		return (sHM.get(mapSource) != null);
+		synchronized (sStores)
+		{
+			return (sStores.get(mapSource) != null);
+		}
 	}
 
 	/**
-	 * Runs over all map source stores in all tile store instances.
+	 * Closes all open map stores.
 	 */
 	public static void closeAllStores()
 	{
-		// TODO Auto-generated method stub
+		log.trace(OSMBStrs.RStr("START"));
+		ArrayList<SQLiteDbMapStore> stores;
+		synchronized (sStores)
+		{
+			stores = new ArrayList<>(sStores.values());
+		}
+		for (SQLiteDbMapStore store : stores)
+			store.close();
 	}
 
 	/**
@@ -179,496 +188,450 @@ public class SQLiteDbMapStore extends ACNTileStore
 	protected static Connection openConnection(Path pDB) throws SQLException
 	{
 		log.trace(OSMBStrs.RStr("START"));
-		Connection conn = null;
-		{
-			String url = "jdbc:sqlite:/" + pDB.toAbsolutePath();
-			conn = DriverManager.getConnection(url);
-		}
-		return conn;
+		String url = "jdbc:sqlite:/" + pDB.toAbsolutePath();
+		return DriverManager.getConnection(url);
 	}
 
-	protected static Connection reopenConnection(Path pDB, Connection conn) throws SQLException
+	/**
+	 * @return The extent of the map in pixel coordinates at its zoom level. The maximum pixel coordinates of a map are inclusive.
+	 */
+	public static Rectangle getExtent(IfMap map)
 	{
-		log.trace(OSMBStrs.RStr("START"));
-		if ((conn == null) || (conn.isClosed()))
-		{
-			conn = openConnection(pDB);
-		}
-		else
-			log.debug("connection already open: '" + conn.toString() + "'");
-		return conn;
+		Point min = map.getMinPixelCoordinate();
+		Point max = map.getMaxPixelCoordinate();
+		return new Rectangle(min.x, min.y, max.x - min.x + 1, max.y - min.y + 1);
 	}
 
-	public static void initializeCommonDB() throws SQLException
+	/**
+	 * One cached map image.
+	 */
+	protected static class MapEntry
 	{
-		log.trace(OSMBStrs.RStr("START"));
-		try
-		{
-			if (!SQLiteLoader.isLoaded())
-				SQLiteLoader.loadSQLite();
-			if (sTSConn == null)
-			{
-				if (!sTileStoreBase.toFile().isDirectory())
-					OSMBUtilities.mkDirs(sTileStoreBase);
-				Path pDB = sTileStoreBase.resolve(TS_COMMONDB + "." + EXT_COMMONDB);
-				sTSConn = openConnection(pDB);
-			}
-			synchronized (sTSConn)
-			{
-				if ((sTSConn != null) && (!sInitialized))
-				{
-					Statement stmt = sTSConn.createStatement();
-					stmt.executeUpdate(BEGIN_TA);
-					stmt.executeUpdate(CREATE_TSINFO);
-					stmt.executeUpdate(COMMIT_TA);
-					sInitialized = true;
-				}
-				if (sTSConn == null)
-					log.error("no common SQLiteDB connection");
-			}
-		}
-		catch (SQLException | IOException e)
+		protected final int mZoom;
+		protected final Rectangle mExtent;
+		protected final long mExp;
+		protected final long mIID;
+
+		protected MapEntry(int zoom, Rectangle extent, long exp, long iid)
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			mZoom = zoom;
+			mExtent = extent;
+			mExp = exp;
+			mIID = iid;
 		}
 	}
 
-	// Instance data
+	// instance data
+	protected final ACMapSource mMapSource;
+	protected final Path mMapStoreDB;
 	protected Connection mConn = null;
-	protected PreparedStatement mPrepStmt = null;
-	protected Path mTileStoreDB = null;
-	protected ACMapSource mMapSource = null;
-	protected int mMS_ID = 0;
-	protected boolean mInitialized = false;
+	/**
+	 * The extents of all map images in the database.
+	 */
+	protected final ArrayList<MapEntry> mEntries = new ArrayList<>();
+	protected long mNextIID = Tile.LAST_SPECIAL_TILE_ID + 1;
+
+	private SQLiteDbMapStore(ACMapSource mapSource)
+	{
+		mMapSource = mapSource;
+		mMapStoreDB = ACSettings.getInstance().getTileStoreDirectory().toPath().resolve(mapSource.getName() + "." + EXT_MAPSDB);
+	}
 
 	/**
-	 * 
+	 * This opens the database of the map store. The tables are created if they do not already exist, and the extents of the cached map images are loaded.
+	 *
+	 * @throws SQLException
+	 * @throws IOException
 	 */
-	private SQLiteDbMapStore()
+	protected synchronized void initializeDB() throws SQLException, IOException
 	{
-		try
-		{
-			if (!sInitialized)
-				SQLiteDbMapStore.initializeCommonDB();
-		}
-		catch (SQLException e)
-		{
-			log.error("exception in SQLiteDbTileStore() constructor");
-			e.printStackTrace();
-		}
+		log.trace(OSMBStrs.RStr("START"));
+		if (!SQLiteLoader.isLoaded())
+			SQLiteLoader.loadSQLite();
+		if (!mMapStoreDB.getParent().toFile().isDirectory())
+			OSMBUtilities.mkDirs(mMapStoreDB.getParent());
+		mConn = openConnection(mMapStoreDB);
+		Statement stmt = mConn.createStatement();
+		stmt.executeUpdate(BEGIN_TA);
+		stmt.executeUpdate(CREATE_MAPS);
+		stmt.executeUpdate(INDEXEXP_MAPS);
+		stmt.executeUpdate(CREATE_IMAGES);
+		stmt.executeUpdate(COMMIT_TA);
+		ResultSet rs = stmt.executeQuery(ALL_MAPS);
+		while (rs.next())
+			mEntries.add(new MapEntry(rs.getInt(1), new Rectangle(rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getInt(5)), rs.getLong(7), rs.getLong(8)));
+		rs.close();
+		rs = stmt.executeQuery(NIID_IMAGES);
+		if (rs.next())
+			mNextIID = Math.max(mNextIID, rs.getLong(1) + 1);
+		rs.close();
+		stmt.close();
+		log.debug("map store " + mMapStoreDB + " opened with " + mEntries.size() + " maps");
 	}
 
-	public synchronized void initialize()
+	/**
+	 * Encodes the image as {@link #MAP_IMAGE_FORMAT} and puts it into the store. It expires after the {@link ACSettings#getTileDefaultExpirationTime() default
+	 * expiration time}, if it is not dropped earlier because one of its tiles has been refreshed.
+	 *
+	 * @param map
+	 *          The map the image has been assembled for.
+	 * @param image
+	 *          The map image, its size must match the maps extent.
+	 * @throws IOException
+	 */
+	public void putMap(IfMap map, BufferedImage image) throws IOException
 	{
 		log.trace(OSMBStrs.RStr("START"));
-		// testing of SQLite tile store
-		try
-		{
-			SQLiteDbMapStore.initializeCommonDB();
-			if (mConn == null)
-			{
-				mTileStoreDB = sTileStoreBase.resolve(mMapSource.getName() + "." + EXT_COMMONDB);
-				mConn = openConnection(mTileStoreDB);
-				initializeDB();
-			}
-		}
-		catch (Exception e)
-		{
-			e.printStackTrace();
-		}
+		Rectangle extent = getExtent(map);
+		if ((image.getWidth() != extent.width) || (image.getHeight() != extent.height))
+			throw new IOException("image size " + image.getWidth() + "x" + image.getHeight() + " does not match " + map);
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(ENCODE_BUFFER_SIZE);
+		ImageIO.write(image, MAP_IMAGE_FORMAT, buf);
+		long now = System.currentTimeMillis();
+		putMapData(buf.toByteArray(), map.getZoom(), extent, now, now + ACSettings.getTileDefaultExpirationTime(), "-");
 	}
 
 	/**
-	 * This clears the whole tile store for this map source.
-	 * 
-	 * @throws TileStoreException
+	 * This writes one encoded map image into the store. An image with the same extent is replaced.
+	 *
+	 * @param mapData
+	 *          The encoded image.
+	 * @param zoom
+	 *          The zoom level of the map.
+	 * @param extent
+	 *          The extent of the map in pixel coordinates.
+	 * @throws IOException
 	 */
-	@Override
-	public void clearStore() throws TileStoreException
+	public synchronized void putMapData(byte[] mapData, int zoom, Rectangle extent, long timeLastModified, long timeExpires, String eTag) throws IOException
 	{
 		log.trace(OSMBStrs.RStr("START"));
-		Statement stmt;
+		Statement stmt = null;
 		try
 		{
-			if (mConn == null)
-			{
-				prepareTileStore(mMapSource);
-			}
-			if (mConn != null)
-			{
-				stmt = mConn.createStatement();
-				stmt.executeUpdate(BEGIN_TA);
-				stmt.executeUpdate(CLEAR_MAPS);
-				stmt.executeUpdate(CLEAR_IMAGES);
-				stmt.executeUpdate(COMMIT_TA);
-			}
+			stmt = mConn.createStatement();
+			stmt.executeUpdate(BEGIN_TA);
+			MapEntry old = findEntry(zoom, extent, true, 0);
+			if (old != null)
+				deleteEntry(old);
+			long iid = mNextIID++;
+			PreparedStatement prepStmt = mConn.prepareStatement(INSERT_IMAGES);
+			prepStmt.setLong(1, iid);
+			prepStmt.setBytes(2, mapData);
+			prepStmt.executeUpdate();
+			prepStmt.close();
+			prepStmt = mConn.prepareStatement(INSERT_MAPS);
+			prepStmt.setInt(1, zoom);
+			prepStmt.setInt(2, extent.x);
+			prepStmt.setInt(3, extent.y);
+			prepStmt.setInt(4, extent.width);
+			prepStmt.setInt(5, extent.height);
+			prepStmt.setLong(6, timeLastModified);
+			prepStmt.setLong(7, timeExpires);
+			prepStmt.setString(8, eTag);
+			prepStmt.setLong(9, iid);
+			prepStmt.executeUpdate();
+			prepStmt.close();
+			stmt.executeUpdate(COMMIT_TA);
+			mEntries.add(new MapEntry(zoom, new Rectangle(extent), timeExpires, iid));
+			log.debug("map image " + iid + " written for z=" + zoom + " " + extent);
 		}
 		catch (SQLException e)
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			rollback();
+			throw new IOException("writing map image for z=" + zoom + " " + extent + " failed", e);
+		}
+		finally
+		{
+			closeStatement(stmt);
 		}
 	}
 
 	/**
-	 * Writes the tiles info into TILES table
+	 * @return The image of the map, or null if no valid cached image contains the maps extent.
+	 * @see #getMap(int, Rectangle)
 	 */
-	protected void writeTileInfo(int x, int y, int z, long mod, long exp, String eTag, long nImg_ID) throws SQLException
+	public BufferedImage getMap(IfMap map) throws IOException
 	{
-		// write the tile info
-		mPrepStmt = mConn.prepareStatement(INSERT_MAPS);
-		mPrepStmt.setInt(1, z);
-		mPrepStmt.setInt(2, x);
-		mPrepStmt.setInt(3, y);
-		mPrepStmt.setLong(4, mod);
-		mPrepStmt.setLong(5, exp);
-		mPrepStmt.setString(6, eTag);
-		mPrepStmt.setLong(7, nImg_ID);
-		mPrepStmt.addBatch();
-		int[] upd = mPrepStmt.executeBatch();
+		return getMap(map.getZoom(), getExtent(map));
 	}
 
 	/**
-	 * Writes the tiles image into IMAGES table
+	 * Retrieves a map image. If there is no image with exactly this extent, the region is cropped from the smallest valid image containing it.<br>
+	 * The image is decoded completely into memory, about 4 bytes per pixel, so this is meant for maps of moderate size. Large maps should be taken encoded by
+	 * {@link #getMapData(int, Rectangle)}, as {@link osmb.program.map.MapImageAssembler} does.
+	 *
+	 * @param zoom
+	 *          The zoom level of the map.
+	 * @param extent
+	 *          The extent of the map in pixel coordinates.
+	 * @return The image, or null if no valid cached image contains the extent.
+	 * @throws IOException
 	 */
-	protected void writeTileData(long nImg_ID, byte[] tileData) throws SQLException
+	public BufferedImage getMap(int zoom, Rectangle extent) throws IOException
 	{
-		mPrepStmt = mConn.prepareStatement(INSERT_IMAGES);
-		mPrepStmt.setLong(1, nImg_ID);
-		mPrepStmt.setBytes(2, tileData);
-		mPrepStmt.addBatch();
-		mPrepStmt.executeBatch();
+		log.trace(OSMBStrs.RStr("START"));
+		MapEntry entry;
+		byte[] data;
+		synchronized (this)
+		{
+			entry = findEntry(zoom, extent, false, System.currentTimeMillis());
+			if (entry == null)
+				return null;
+			data = readImage(entry.mIID);
+		}
+		if (data == null)
+			return null;
+		if (!entry.mExtent.equals(extent))
+			log.debug("crop z=" + zoom + " " + extent + " from " + entry.mExtent);
+		return decodeRegion(data, new Rectangle(extent.x - entry.mExtent.x, extent.y - entry.mExtent.y, extent.width, extent.height));
 	}
 
-	@Override
-	public void putTile(Tile tile)
+	/**
+	 * @return The encoded image with exactly this extent, or null if there is none or it has expired.
+	 */
+	public synchronized byte[] getMapData(int zoom, Rectangle extent) throws IOException
 	{
 		log.trace(OSMBStrs.RStr("START"));
-		try
+		MapEntry entry = findEntry(zoom, extent, true, System.currentTimeMillis());
+		return (entry != null) ? readImage(entry.mIID) : null;
+	}
+
+	/**
+	 * @return TRUE if a valid cached image contains the extent, i.e. {@link #getMap(int, Rectangle)} will deliver an image. The database is not accessed.
+	 */
+	public synchronized boolean containsMap(int zoom, Rectangle extent)
+	{
+		return findEntry(zoom, extent, false, System.currentTimeMillis()) != null;
+	}
+
+	/**
+	 * Drops all map images at the zoom level overlapping the area.
+	 *
+	 * @param zoom
+	 *          The zoom level.
+	 * @param area
+	 *          The area in pixel coordinates.
+	 * @return The number of map images dropped.
+	 */
+	public synchronized int invalidate(int zoom, Rectangle area)
+	{
+		ArrayList<MapEntry> outdated = null;
+		for (MapEntry entry : mEntries)
 		{
-			synchronized (mConn)
+			if ((entry.mZoom == zoom) && entry.mExtent.intersects(area))
 			{
-				mConn.prepareStatement(BEGIN_TA).executeUpdate();
-				switch (tile.getTileState())
-				{
-					case TS_LOADED:
-					case TS_EXPIRED:
-						// find next free image id
-						long nNextImg_ID = 100;
-						// ResultSet rs = mConn.prepareStatement(NIID_IMAGES).executeQuery();
-						mPrepStmt = mConn.prepareStatement(IID_MAPS);
-						mPrepStmt.setInt(1, tile.getZoom());
-						mPrepStmt.setInt(2, tile.getXtile());
-						mPrepStmt.setInt(3, tile.getYtile());
-						ResultSet rs = mPrepStmt.executeQuery();
-						if (rs.next())
-						{
-							nNextImg_ID = rs.getLong(1);
-							log.debug("found image id=" + nNextImg_ID);
-							rs.close();
-						}
-						else
-						{
-							rs.close();
-							rs = mConn.prepareStatement(NIID_MAPS).executeQuery();
-							if (rs.next())
-								nNextImg_ID = Math.max(nNextImg_ID, rs.getLong(1) + 1);
-						}
-						writeTileData(nNextImg_ID, tile.getImageData());
-						writeTileInfo(tile.getXtile(), tile.getYtile(), tile.getZoom(), tile.getMod().getTime(), tile.getExp().getTime(), tile.getETag(), nNextImg_ID);
-						log.debug("image " + nNextImg_ID + " written for " + tile);
-						break;
-					case TS_ERROR:
-						writeTileInfo(tile.getXtile(), tile.getYtile(), tile.getZoom(), tile.getMod().getTime(), tile.getExp().getTime(), tile.getETag(),
-						    Tile.ERROR_TILE_ID);
-						log.warn("error image written for " + tile);
-						break;
-					default:
-						// TS_LOADING tiles will not be written into the tile store
-						// TS_NEW tiles will not be written into the tile store
-						// TS_ZOOMED tiles will not be written into the tile store
-						log.debug("no image written for " + tile);
-						break;
-				}
-				mConn.prepareStatement(COMMIT_TA).executeUpdate();
+				if (outdated == null)
+					outdated = new ArrayList<>();
+				outdated.add(entry);
 			}
 		}
+		if (outdated == null)
+			return 0;
+		Statement stmt = null;
+		try
+		{
+			stmt = mConn.createStatement();
+			stmt.executeUpdate(BEGIN_TA);
+			for (MapEntry entry : outdated)
+				deleteEntry(entry);
+			stmt.executeUpdate(COMMIT_TA);
+			log.debug(outdated.size() + " map images dropped for z=" + zoom + " " + area);
+		}
 		catch (SQLException e)
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			try
-			{
-				mConn.prepareStatement(ROLLBACK_TA).executeUpdate();
-			}
-			catch (SQLException e1)
-			{
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
-			}
+			log.error("dropping map images for z=" + zoom + " " + area + " failed", e);
+			rollback();
 		}
-		catch (IOException e)
+		finally
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			closeStatement(stmt);
 		}
+		return outdated.size();
 	}
 
+	/**
+	 * Drops the map images containing the tile, since it has been refreshed.
+	 */
 	@Override
-	public void putTileData(byte[] tileData, TileAddress tAddr) throws IOException
-	{
-		log.trace(OSMBStrs.RStr("START"));
-		Tile tile = new Tile(mMapSource, tAddr);
-		tile.loadImage(tileData);
-		putTile(tile);
-	}
-
-	public boolean contains(int x, int y, int zoom)
+	public void tileStored(ACMapSource mapSource, TileAddress tAddr)
 	{
-		// TODO Auto-generated method stub
-		return false;
+		if (mapSource != mMapSource)
+			return;
+		int size = MP2MapSpace.TECH_TILESIZE;
+		invalidate(tAddr.getZoom(), new Rectangle(tAddr.getX() * size, tAddr.getY() * size, size, size));
 	}
 
 	/**
-	 * This initialized a SQLiteDB tile store for the specified map source.
-	 * The tiles table is created if it does not already exist.
-	 * It checks in the common db if this map source already is registered, i.e. it has an id_s entry.
-	 * 
-	 * @throws SQLException
+	 * This clears the whole map store for this map source.
 	 */
-	@Override
-	protected void initializeDB() throws SQLException
+	public synchronized void clearStore()
 	{
 		log.trace(OSMBStrs.RStr("START"));
-		if (!mInitialized)
-			initialize();
-		synchronized (mConn)
+		try
 		{
 			Statement stmt = mConn.createStatement();
 			stmt.executeUpdate(BEGIN_TA);
-			stmt.executeUpdate(CREATE_MAPS);
-			stmt.executeUpdate(INDEXTILE_MAPS);
-			stmt.executeUpdate(INDEXMOD_MAPS);
-			stmt.executeUpdate(INDEXEXP_MAPS);
-			stmt.executeUpdate(INDEXETAG_MAPS);
-			stmt.executeUpdate(CREATE_IMAGES);
+			stmt.executeUpdate(CLEAR_MAPS);
+			stmt.executeUpdate(CLEAR_IMAGES);
 			stmt.executeUpdate(COMMIT_TA);
+			stmt.close();
+			mEntries.clear();
 		}
-		synchronized (sTSConn)
+		catch (SQLException e)
 		{
-			mPrepStmt = sTSConn.prepareStatement(IDS_TSINFO);
-			mPrepStmt.setString(1, mMapSource.getName());
-			ResultSet rs = mPrepStmt.executeQuery();
-			if (rs.next())
-				mMS_ID = rs.getInt(1);
-			else
-			{
-				rs.close();
-				mPrepStmt = sTSConn.prepareStatement(MAXID_TSINFO);
-				rs = mPrepStmt.executeQuery();
-				if (rs.next())
-					mMS_ID = rs.getInt(1) + 1;
-				else
-					mMS_ID = 1;
-				rs.close();
-				mPrepStmt = sTSConn.prepareStatement(INSERT_TSINFO);
-				mPrepStmt.setInt(1, mMS_ID);
-				mPrepStmt.setString(2, mMapSource.getName());
-				mPrepStmt.setString(3, mMapSource.getName());
-				mPrepStmt.execute();
-			}
+			log.error("clearing " + mMapStoreDB + " failed", e);
+			rollback();
 		}
-		mInitialized = true;
-	}
-
-	@Override
-	public TileStoreInfo getStoreInfo() throws InterruptedException
-	{
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-	public BufferedImage getCacheCoverage(int zoom, Point tileNumMin, Point tileNumMax) throws InterruptedException
-	{
-		// TODO Auto-generated method stub
-		return null;
 	}
 
 	/**
-	 * Member method exists for compatibility only. Use class method {@link #getStoresList()}
+	 * @return The number of map images in the store.
 	 */
-	@Override
-	public String[] getAllStoreNames()
+	public synchronized int getMapCount()
 	{
-		return getStoresList();
+		return mEntries.size();
 	}
 
 	public void close()
 	{
 		log.trace(OSMBStrs.RStr("START"));
-		if (mConn != null)
+		ACNTileStore.removeTileStoreListener(this);
+		synchronized (sStores)
 		{
-			try
+			sStores.remove(mMapSource);
+		}
+		synchronized (this)
+		{
+			if (mConn != null)
 			{
-				sHM.remove(mMapSource);
-				mConn.commit();
-				mConn.close();
+				try
+				{
+					mConn.close();
+				}
+				catch (SQLException e)
+				{
+					log.error("closing " + mMapStoreDB + " failed", e);
+				}
 				mConn = null;
 			}
-			catch (SQLException e)
-			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
 		}
 	}
 
-	@Override
-	public Tile getTile(TileAddress tAddr)
+	/**
+	 * @param exact
+	 *          If TRUE, only an entry with exactly this extent is found. Otherwise the smallest entry containing the extent.
+	 * @param now
+	 *          Entries expired at this time are ignored. 0 finds expired entries too.
+	 * @return The entry found, or null.
+	 */
+	protected MapEntry findEntry(int zoom, Rectangle extent, boolean exact, long now)
 	{
-		log.trace(OSMBStrs.RStr("START"));
-		Tile tile = null;
-		try
+		MapEntry found = null;
+		long foundArea = Long.MAX_VALUE;
+		for (MapEntry entry : mEntries)
 		{
-			log.debug("search for " + tAddr);
-			long nIId = 0;
-			byte[] data = null;
-			tile = new Tile(mMapSource, tAddr);
-			// get image id from tiles
-			synchronized (mConn)
+			if ((entry.mZoom != zoom) || ((now > 0) && (entry.mExp <= now)))
+				continue;
+			if (entry.mExtent.equals(extent))
+				return entry;
+			if (!exact && entry.mExtent.contains(extent))
 			{
-				mPrepStmt = mConn.prepareStatement(IID_MAPS);
-				mPrepStmt.setInt(1, tAddr.getZoom());
-				mPrepStmt.setInt(2, tAddr.getX());
-				mPrepStmt.setInt(3, tAddr.getY());
-				ResultSet rs = mPrepStmt.executeQuery();
-				if (rs.next())
+				long area = (long) entry.mExtent.width * entry.mExtent.height;
+				if (area < foundArea)
 				{
-					nIId = rs.getLong(1);
-					log.debug("found image id=" + nIId);
-					rs.close();
-					if (nIId == Tile.ERROR_TILE_ID)
-					{
-						tile.setErrorImage();
-					}
-					else
-					{
-						mPrepStmt = mConn.prepareStatement(IMAGE_IMAGES);
-						mPrepStmt.setLong(1, nIId);
-						rs = mPrepStmt.executeQuery();
-						if (rs.next())
-						{
-							data = rs.getBytes(1);
-							tile.loadImage(rs.getBytes(1));
-							tile.setExp(new Date(getExp(tAddr)));
-							tile.setMod(new Date(getMod(tAddr)));
-							// tile.setETag(getETag(tAddr));
-							tile.setTileState(TileState.TS_LOADED);
-							log.debug("bytes=" + data.length);
-						}
-						rs.close();
-					}
-				}
-				else
-				{
-					rs.close();
-					// log.debug("no image found for " + tAddr + ". Stmt='" + mPrepStmt + "'");
-					log.debug("no image found for " + tAddr);
+					found = entry;
+					foundArea = area;
 				}
 			}
 		}
-		catch (SQLException | IOException e)
-		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		return tile;
+		return found;
 	}
 
-	protected long getMod(TileAddress tAddr) throws SQLException
+	/**
+	 * Deletes the entry from the database and from {@link #mEntries}. It has to be called within a transaction.
+	 */
+	protected void deleteEntry(MapEntry entry) throws SQLException
 	{
-		long tMod = System.currentTimeMillis();
-		mPrepStmt = mConn.prepareStatement(MOD_MAPS);
-		mPrepStmt.setInt(1, tAddr.getZoom());
-		mPrepStmt.setInt(2, tAddr.getX());
-		mPrepStmt.setInt(3, tAddr.getY());
-		ResultSet rs = mPrepStmt.executeQuery();
-		if (rs.next())
-		{
-			tMod = rs.getLong(1);
-			log.debug("modified=" + new Date(tMod));
-		}
-		rs.close();
-		return tMod;
+		PreparedStatement prepStmt = mConn.prepareStatement(DELETE_MAPS);
+		prepStmt.setLong(1, entry.mIID);
+		prepStmt.executeUpdate();
+		prepStmt.close();
+		prepStmt = mConn.prepareStatement(DELETE_IMAGES);
+		prepStmt.setLong(1, entry.mIID);
+		prepStmt.executeUpdate();
+		prepStmt.close();
+		mEntries.remove(entry);
 	}
 
-	protected long getExp(TileAddress tAddr) throws SQLException
+	protected byte[] readImage(long iid) throws IOException
 	{
-		long tExp = System.currentTimeMillis();
-		mPrepStmt = mConn.prepareStatement(EXP_MAPS);
-		mPrepStmt.setInt(1, tAddr.getZoom());
-		mPrepStmt.setInt(2, tAddr.getX());
-		mPrepStmt.setInt(3, tAddr.getY());
-		ResultSet rs = mPrepStmt.executeQuery();
-		if (rs.next())
+		try
 		{
-			tExp = rs.getLong(1);
-			log.debug("expires=" + new Date(tExp));
+			PreparedStatement prepStmt = mConn.prepareStatement(IMAGE_IMAGES);
+			prepStmt.setLong(1, iid);
+			ResultSet rs = prepStmt.executeQuery();
+			byte[] data = rs.next() ? rs.getBytes(1) : null;
+			rs.close();
+			prepStmt.close();
+			return data;
+		}
+		catch (SQLException e)
+		{
+			throw new IOException("reading map image " + iid + " failed", e);
 		}
-		rs.close();
-		return tExp;
-	}
-
-	// protected String getETag(TileAddress tAddr) throws SQLException
-	// {
-	// String eTag = "-";
-	// mPrepStmt = mConn.prepareStatement(ETAG_MAPS);
-	// mPrepStmt.setInt(1, tAddr.getZoom());
-	// mPrepStmt.setInt(2, tAddr.getX());
-	// mPrepStmt.setInt(3, tAddr.getY());
-	// ResultSet rs = mPrepStmt.executeQuery();
-	// if (rs.next())
-	// {
-	// eTag = rs.getString(1);
-	// log.debug("eTag=" + eTag);
-	// }
-	// rs.close();
-	// return eTag;
-	// }
-
-	@Override
-	public BufferedImage getCacheCoverage(ACMapSource mapSource, int zoom, Point tileNumMin, Point tileNumMax) throws InterruptedException
-	{
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-	@Override
-	public boolean isInitialized()
-	{
-		return mInitialized;
 	}
 
-	@Override
-	public void putTileData(byte[] tileData, TileAddress tAddr, long timeLastModified, long timeExpires, String eTag) throws IOException
+	protected void rollback()
 	{
-		// TODO Auto-generated method stub
-
+		try (Statement stmt = mConn.createStatement())
+		{
+			stmt.executeUpdate(ROLLBACK_TA);
+		}
+		catch (SQLException e)
+		{
+			log.error("rollback failed", e);
+		}
 	}
 
-	@Override
-	public boolean containsTile(TileAddress tAddr)
+	protected static void closeStatement(Statement stmt)
 	{
-		// TODO Auto-generated method stub
-		return false;
+		if (stmt == null)
+			return;
+		try
+		{
+			stmt.close();
+		}
+		catch (SQLException e)
+		{
+			log.debug("closing statement failed: " + e);
+		}
 	}
 
-	@Override
-	public boolean isTileExpired(TileAddress tAddr)
+	/**
+	 * Decodes only a region of the encoded image. The rest of the image is read, but not kept in memory.
+	 *
+	 * @param region
+	 *          The region relative to the images origin.
+	 */
+	protected static BufferedImage decodeRegion(byte[] data, Rectangle region) throws IOException
 	{
-		// TODO Auto-generated method stub
-		return false;
+		try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(data)))
+		{
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext())
+				throw new IOException("no reader for map image");
+			ImageReader reader = readers.next();
+			try
+			{
+				reader.setInput(iis, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceRegion(region);
+				return reader.read(0, param);
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
 	}
-
 }
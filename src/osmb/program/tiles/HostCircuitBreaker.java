@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmb.program.tiles;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A circuit breaker for one tile server host. After {@link #FAILURE_THRESHOLD} consecutive failed downloads the circuit opens and no further requests are
+ * allowed for {@link #OPEN_TIME} ms. Then one trial request is let through; if it succeeds the circuit closes again, otherwise it stays open for another
+ * period. This keeps the loaders from hammering a server which is down and lets the retries fail fast.
+ * 
+ * @author humbach
+ */
+public class HostCircuitBreaker
+{
+	// static/class data
+	protected static Logger log = Logger.getLogger(HostCircuitBreaker.class);
+
+	public static final int FAILURE_THRESHOLD = 5;
+	public static final long OPEN_TIME = 30000;
+
+	private static final ConcurrentHashMap<String, HostCircuitBreaker> sBreakers = new ConcurrentHashMap<String, HostCircuitBreaker>();
+
+	/**
+	 * @return The circuit breaker for the specified host. There is exactly one per host.
+	 */
+	public static HostCircuitBreaker getInstance(String host)
+	{
+		HostCircuitBreaker breaker = sBreakers.get(host);
+		if (breaker == null)
+		{
+			HostCircuitBreaker newBreaker = new HostCircuitBreaker(host);
+			if ((breaker = sBreakers.putIfAbsent(host, newBreaker)) == null)
+				breaker = newBreaker;
+		}
+		return breaker;
+	}
+
+	// instance data
+	private final String mHost;
+	private int mFailures = 0;
+	private long mOpenUntil = 0;
+	private boolean mTrial = false;
+
+	protected HostCircuitBreaker(String host)
+	{
+		mHost = host;
+	}
+
+	/**
+	 * @return TRUE if a request to the host may be made now. The caller has to report the outcome by {@link #recordSuccess()} or {@link #recordFailure()}.
+	 */
+	public synchronized boolean allowRequest()
+	{
+		if (mFailures < FAILURE_THRESHOLD)
+			return true;
+		if ((System.currentTimeMillis() < mOpenUntil) || mTrial)
+			return false;
+		mTrial = true;
+		log.debug("trial request to " + mHost);
+		return true;
+	}
+
+	public synchronized void recordSuccess()
+	{
+		if (mFailures >= FAILURE_THRESHOLD)
+			log.info("circuit for " + mHost + " closed");
+		mFailures = 0;
+		mTrial = false;
+	}
+
+	public synchronized void recordFailure()
+	{
+		if (++mFailures >= FAILURE_THRESHOLD)
+		{
+			if (!mTrial)
+				log.warn("circuit for " + mHost + " opened after " + mFailures + " failures");
+			mOpenUntil = System.currentTimeMillis() + OPEN_TIME;
+		}
+		mTrial = false;
+	}
+
+	/**
+	 * @return TRUE if the circuit is currently open, i.e. requests are rejected.
+	 */
+	public synchronized boolean isOpen()
+	{
+		return (mFailures >= FAILURE_THRESHOLD) && (System.currentTimeMillis() < mOpenUntil);
+	}
+
+	/**
+	 * @return The time in ms until the next request will be allowed, 0 if the circuit is closed.
+	 */
+	public synchronized long getRemainingOpenTime()
+	{
+		if (mFailures < FAILURE_THRESHOLD)
+			return 0;
+		return Math.max(0, mOpenUntil - System.currentTimeMillis());
+	}
+
+	@Override
+	public String toString()
+	{
+		return "HostCircuitBreaker " + mHost + " failures=" + mFailures;
+	}
+}
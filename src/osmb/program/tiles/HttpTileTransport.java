@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmb.program.tiles;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import org.apache.log4j.Logger;
+
+import osmb.utilities.OSMBUtilities;
+
+/**
+ * The default {@link IfTileTransport} based on {@link HttpURLConnection}. The JDK keeps idle HTTP/1.1 connections alive and reuses them for the next request
+ * to the same host, if the previous response has been read completely and its stream has been closed. This transport makes sure this happens, also for error
+ * responses, and limits the concurrent requests per host by a {@link Semaphore}. Map sources sharing a host share its limit, which is the smallest
+ * <code>maxConnections</code> of those sources requesting from it so far. The JDK caches up to <code>http.maxConnections</code> idle connections per
+ * host, this is raised to {@link #KEEP_ALIVE_CONNECTIONS} unless it has been set explicitly.<br>
+ * Response bodies are read into a per thread buffer, so only the final byte array is allocated per tile.
+ * 
+ * @author humbach
+ */
+public class HttpTileTransport implements IfTileTransport
+{
+	// static/class data
+	private static Logger log = Logger.getLogger(HttpTileTransport.class);
+
+	public static final int KEEP_ALIVE_CONNECTIONS = 20;
+	public static final int DEFAULT_MAX_CONNECTIONS = 4;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final HttpTileTransport sDefault = new HttpTileTransport();
+
+	private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>()
+	{
+		@Override
+		protected byte[] initialValue()
+		{
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	static
+	{
+		if (System.getProperty("http.maxConnections") == null)
+			System.setProperty("http.maxConnections", Integer.toString(KEEP_ALIVE_CONNECTIONS));
+	}
+
+	/**
+	 * @return The transport shared by all map sources which do not specify their own.
+	 */
+	public static HttpTileTransport getDefault()
+	{
+		return sDefault;
+	}
+
+	// instance data
+	/**
+	 * The permits per host. The limit of a host is lowered by each request with a smaller <code>maxConnections</code>, see {@link HostPermits#limit(int)}.
+	 */
+	private final ConcurrentHashMap<String, HostPermits> mHostPermits = new ConcurrentHashMap<String, HostPermits>();
+
+	@Override
+	public HttpURLConnection openConnection(URL url) throws IOException
+	{
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setUseCaches(false);
+		return conn;
+	}
+
+	@Override
+	public void acquire(URL url, int maxConnections) throws InterruptedException
+	{
+		String host = getHostKey(url);
+		int limit = Math.max(1, maxConnections);
+		HostPermits permits = mHostPermits.get(host);
+		if (permits == null)
+		{
+			HostPermits newPermits = new HostPermits(limit);
+			if ((permits = mHostPermits.putIfAbsent(host, newPermits)) == null)
+			{
+				permits = newPermits;
+				log.debug("max " + limit + " connections to " + host);
+			}
+		}
+		if (permits.limit(limit))
+			log.debug("max connections to " + host + " lowered to " + limit);
+		permits.acquire();
+	}
+
+	@Override
+	public void release(URL url)
+	{
+		HostPermits permits = mHostPermits.get(getHostKey(url));
+		if (permits != null)
+			permits.release();
+	}
+
+	@Override
+	public byte[] readBody(HttpURLConnection conn) throws IOException
+	{
+		InputStream input = null;
+		try
+		{
+			input = conn.getInputStream();
+			byte[] buf = sBuffer.get();
+			int len = 0;
+			int ret;
+			while ((ret = input.read(buf, len, buf.length - len)) >= 0)
+			{
+				len += ret;
+				if (len == buf.length)
+				{
+					buf = Arrays.copyOf(buf, buf.length * 2);
+					sBuffer.set(buf);
+				}
+			}
+			if (len == 0)
+				return null;
+			return Arrays.copyOf(buf, len);
+		}
+		catch (IOException e)
+		{
+			drainErrorStream(conn);
+			throw e;
+		}
+		finally
+		{
+			OSMBUtilities.closeStream(input);
+		}
+	}
+
+	@Override
+	public void discard(HttpURLConnection conn)
+	{
+		InputStream input = null;
+		try
+		{
+			input = conn.getInputStream();
+			OSMBUtilities.readFully(input);
+		}
+		catch (IOException e)
+		{
+			drainErrorStream(conn);
+		}
+		finally
+		{
+			OSMBUtilities.closeStream(input);
+		}
+	}
+
+	/**
+	 * An error response has to be consumed as well, otherwise the connection is closed instead of being reused.
+	 */
+	protected void drainErrorStream(HttpURLConnection conn)
+	{
+		InputStream errorIn = conn.getErrorStream();
+		if (errorIn == null)
+			return;
+		try
+		{
+			OSMBUtilities.readFully(errorIn);
+		}
+		catch (IOException e)
+		{
+			log.debug("Error retrieving error stream content: " + e);
+		}
+		finally
+		{
+			OSMBUtilities.closeStream(errorIn);
+		}
+	}
+
+	protected String getHostKey(URL url)
+	{
+		return url.getHost() + ":" + ((url.getPort() >= 0) ? url.getPort() : url.getDefaultPort());
+	}
+
+	/**
+	 * The permits of one host. Its limit can only be lowered, so the most restrictive map source using the host is respected.
+	 */
+	private static final class HostPermits extends Semaphore
+	{
+		private static final long serialVersionUID = 1L;
+
+		private int mLimit;
+
+		HostPermits(int limit)
+		{
+			super(limit, true);
+			mLimit = limit;
+		}
+
+		/**
+		 * Lowers the limit to <code>limit</code>. Requests already active are not affected, new ones wait until the active ones are below the new limit.
+		 * 
+		 * @return TRUE if the limit has been lowered.
+		 */
+		synchronized boolean limit(int limit)
+		{
+			if (limit >= mLimit)
+				return false;
+			reducePermits(mLimit - limit);
+			mLimit = limit;
+			return true;
+		}
+	}
+}
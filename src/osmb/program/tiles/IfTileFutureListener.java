@@ -0,0 +1,34 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmb.program.tiles;
+
+/**
+ * A TileFutureListener is notified by a {@link TileFuture} as soon as the future is done, i.e. the tile has been loaded, the load failed or has been
+ * cancelled.
+ * 
+ * @author humbach
+ */
+public interface IfTileFutureListener
+{
+	/**
+	 * This is called in the thread which completed the future, or immediately in the registering thread if the future has already been done.
+	 * 
+	 * @param future
+	 *          The future which is done. {@link TileFuture#getNow()} does not block here.
+	 */
+	public void tileFutureDone(TileFuture future);
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmb.program.tiles;
+
+import osmb.mapsources.ACMapSource;
+import osmb.mapsources.TileAddress;
+import osmb.program.IfPrioritizedJob;
+
+/**
+ * A prioritized job working on one tile. The {@link osmb.program.JobDispatcher} uses the map source and the tile address to select queued jobs for
+ * cancellation or reprioritization.
+ */
+public interface IfTileJob extends IfPrioritizedJob
+{
+	ACMapSource getMapSource();
+
+	TileAddress getAddress();
+}
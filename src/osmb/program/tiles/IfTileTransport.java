@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmb.program.tiles;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The transport used by the {@link TileDownLoader} to talk to a tile server. It opens the connections, limits the number of concurrent requests per host and
+ * reads the responses in a way that allows the underlying connection to be reused.<br>
+ * Each request has to be enclosed by {@link #acquire(URL, int)} and {@link #release(URL)}.
+ * 
+ * @author humbach
+ */
+public interface IfTileTransport
+{
+	/**
+	 * Opens a connection to <code>url</code>. It is not yet connected.
+	 */
+	public HttpURLConnection openConnection(URL url) throws IOException;
+
+	/**
+	 * Waits until less than <code>maxConnections</code> requests to the host of <code>url</code> are active and registers a new one.
+	 */
+	public void acquire(URL url, int maxConnections) throws InterruptedException;
+
+	/**
+	 * Unregisters a request registered by {@link #acquire(URL, int)}.
+	 */
+	public void release(URL url);
+
+	/**
+	 * Reads the complete response body of <code>conn</code>.
+	 * 
+	 * @return The body data or null if there are none.
+	 */
+	public byte[] readBody(HttpURLConnection conn) throws IOException;
+
+	/**
+	 * Reads and discards the response body of <code>conn</code>, i.e. after a HEAD request or a 304 response, so the connection can be reused.
+	 */
+	public void discard(HttpURLConnection conn);
+}
@@ -26,14 +26,14 @@ import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryNotificationInfo;
 import java.lang.management.MemoryPoolMXBean;
-import java.lang.management.MemoryUsage;
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.Notification;
 import javax.management.NotificationBroadcaster;
 import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
 
 import org.apache.log4j.Logger;
 
@@ -44,9 +44,18 @@ import osmb.program.tiles.Tile.TileState;
 import osmb.utilities.OSMBStrs;
 
 /**
- * {@link TileImageCache} implementation that stores all {@link Tile} objects in memory up to a certain limit ( {@link #getCacheSize()}). If the limit is
+ * {@link TileImageCache} implementation that stores all {@link Tile} objects in memory up to a certain limit ( {@link #getCacheBytes()}). If the limit is
  * exceeded the least recently used {@link Tile} objects will be deleted.
  * <p>
+ * The limit is expressed in bytes, each tile is weighed by {@link Tile#getMemorySize()} when it is added and again on each access. So a decoded 256x256 ARGB
+ * image counts for 256 KiB, a tile holding only its encoded data counts for their size, while a tile showing one of the shared 'loading' or 'error' images
+ * counts only for its overhead.
+ * <p>
+ * The cache is split into {@link #SEGMENT_COUNT} segments, each one with its own lock and an equal share of the byte budget. A tile is assigned to a segment by
+ * the hash of its key. So concurrent loader threads only contend when they access tiles in the same segment. The LRU order is maintained per segment.
+ * <p>
+ * Tiles are identified by their packed address {@link TileAddress#getKey()} together with the id of their map source {@link ACMapSource#getID()}.
+ * <p>
  * Its based upon code from Jan Peter Stotz.
  * 
  * @author humbach
@@ -56,67 +65,349 @@ public final class MemoryTileCache implements NotificationListener
 	// static / class data
 	protected static Logger log = Logger.getLogger(MemoryTileCache.class);
 
+	/**
+	 * Number of independently locked segments. Has to be a power of two.
+	 */
+	public static final int SEGMENT_COUNT = 16;
+
+	/**
+	 * The weight of one decoded standard tile (256x256 pixels, 4 bytes each). Used to convert tile counts into bytes.
+	 */
+	public static final long TILE_WEIGHT = Tile.TILE_OVERHEAD + 4L * MP2MapSpace.TECH_TILESIZE * MP2MapSpace.TECH_TILESIZE;
+
 	// instance data
 	/**
-	 * Default cache size in tiles. May be modified by constructor {@link #MemoryTileCache(int cacheSize)}.
+	 * Cache size in bytes. May be modified by constructor {@link #MemoryTileCache(long cacheBytes)} or by {@link #setCacheBytes(long)}.
+	 */
+	protected volatile long mCacheBytes = 0;
+
+	/**
+	 * The part of {@link #mCacheBytes} available to each segment.
+	 */
+	protected volatile long mSegmentBytes = 0;
+
+	/**
+	 * Sum of the weights of all tiles currently held by the cache.
 	 */
-	protected int mCacheSize = 0;
+	protected final AtomicLong mUsedBytes = new AtomicLong();
 
 	/**
-	 * LinkedHashMap holding the actual tile data. This LinkedHashMap is ordered by access, so it automatically can remove the eldest entry if the size is
-	 * exhausted.
+	 * The entry as held in a segment. The weight is recorded when the tile is added and only reduced by shedding, so the accounting stays consistent even if
+	 * the tile changes afterwards.<br>
+	 * The entries of a segment are additionally linked into a circular list in access order, the most recently used entry follows the segments head.
 	 */
-	protected class OSMMemTileMap extends LinkedHashMap<String, Tile>
+	protected static final class CacheEntry
 	{
-		private static final long serialVersionUID = 1L;
+		final long mKey;
+		final int mSourceID;
+		final Tile mTile;
+		int mWeight;
+		CacheEntry mPrev = this;
+		CacheEntry mNext = this;
+
+		CacheEntry(long key, int sourceID, Tile tile)
+		{
+			mKey = key;
+			mSourceID = sourceID;
+			mTile = tile;
+			mWeight = (tile != null) ? tile.getMemorySize() : 0;
+		}
+
+		void unlink()
+		{
+			mPrev.mNext = mNext;
+			mNext.mPrev = mPrev;
+			mPrev = mNext = this;
+		}
+
+		void linkAfter(CacheEntry head)
+		{
+			mPrev = head;
+			mNext = head.mNext;
+			head.mNext.mPrev = this;
+			head.mNext = this;
+		}
+	}
+
+	/**
+	 * Spreads the packed tile key and the map source id over an int. The upper bits select the segment, the lower bits the slot within the segment.
+	 */
+	protected static int hash(long key, int sourceID)
+	{
+		long h = (key ^ ((long) sourceID << 32) ^ sourceID) * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * One segment of the cache. The tiles are held in an open addressing hash table with linear probing, the packed tile keys are held in a separate long
+	 * array. So a lookup neither allocates nor hashes any strings. The entries are additionally kept in access order, so the eldest entries are the least
+	 * recently used ones.<br>
+	 * All accesses, including reads, modify the access order, so all of them are synchronized on the segment.
+	 */
+	protected final class Segment
+	{
+		private long[] mKeys = new long[64];
+		private CacheEntry[] mEntries = new CacheEntry[64];
+		private int mSize = 0;
+		private final CacheEntry mHead = new CacheEntry(0, 0, null);
+		private long mBytes = 0;
+
+		private int indexOf(long key, int sourceID, int hash)
+		{
+			int mask = mEntries.length - 1;
+			int i = hash & mask;
+			CacheEntry entry;
+			while ((entry = mEntries[i]) != null)
+			{
+				if ((mKeys[i] == key) && (entry.mSourceID == sourceID))
+					return i;
+				i = (i + 1) & mask;
+			}
+			return -1;
+		}
+
+		private void insert(CacheEntry entry, int hash)
+		{
+			int mask = mEntries.length - 1;
+			int i = hash & mask;
+			while (mEntries[i] != null)
+				i = (i + 1) & mask;
+			mKeys[i] = entry.mKey;
+			mEntries[i] = entry;
+		}
+
+		/**
+		 * Removes the entry in slot <code>i</code> and shifts the following entries of the probe sequence back, so no tombstones are needed.
+		 */
+		private void removeAt(int i)
+		{
+			int mask = mEntries.length - 1;
+			mEntries[i] = null;
+			mSize--;
+			int j = i;
+			CacheEntry entry;
+			while ((entry = mEntries[j = (j + 1) & mask]) != null)
+			{
+				int k = hash(entry.mKey, entry.mSourceID) & mask;
+				if ((j > i) ? ((k <= i) || (k > j)) : ((k <= i) && (k > j)))
+				{
+					mKeys[i] = mKeys[j];
+					mEntries[i] = entry;
+					mEntries[j] = null;
+					i = j;
+				}
+			}
+		}
+
+		private void resize()
+		{
+			CacheEntry[] oldEntries = mEntries;
+			mKeys = new long[oldEntries.length * 2];
+			mEntries = new CacheEntry[oldEntries.length * 2];
+			for (CacheEntry entry : oldEntries)
+			{
+				if (entry != null)
+					insert(entry, hash(entry.mKey, entry.mSourceID));
+			}
+		}
+
+		private void remove(CacheEntry entry)
+		{
+			int i = indexOf(entry.mKey, entry.mSourceID, hash(entry.mKey, entry.mSourceID));
+			if (i >= 0)
+				removeAt(i);
+			entry.unlink();
+			mBytes -= entry.mWeight;
+		}
+
+		synchronized Tile get(long key, int sourceID, int hash)
+		{
+			int i = indexOf(key, sourceID, hash);
+			if (i < 0)
+				return null;
+			CacheEntry entry = mEntries[i];
+			entry.unlink();
+			entry.linkAfter(mHead);
+			reweigh(entry);
+			return entry.mTile;
+		}
+
+		/**
+		 * A tile changes its weight when its image is decoded lazily or released. The weight is adjusted on access.
+		 */
+		private void reweigh(CacheEntry entry)
+		{
+			int weight = entry.mTile.getMemorySize();
+			int delta = weight - entry.mWeight;
+			if (delta != 0)
+			{
+				entry.mWeight = weight;
+				mBytes += delta;
+				mUsedBytes.addAndGet(delta);
+				if (delta > 0)
+					evict(mSegmentBytes);
+			}
+		}
+
+		synchronized void put(long key, int sourceID, int hash, Tile tile)
+		{
+			CacheEntry entry = new CacheEntry(key, sourceID, tile);
+			long delta = entry.mWeight;
+			int i = indexOf(key, sourceID, hash);
+			if (i >= 0)
+			{
+				CacheEntry old = mEntries[i];
+				old.unlink();
+				delta -= old.mWeight;
+				mEntries[i] = entry;
+			}
+			else
+			{
+				if (4 * (mSize + 1) > 3 * mEntries.length)
+					resize();
+				insert(entry, hash);
+				mSize++;
+			}
+			entry.linkAfter(mHead);
+			mBytes += delta;
+			mUsedBytes.addAndGet(delta);
+			evict(mSegmentBytes);
+		}
+
+		/**
+		 * Removes the least recently used entries until the segment fits into <code>maxBytes</code>. The most recently added entry is always kept.
+		 * 
+		 * @return The number of bytes freed.
+		 */
+		synchronized long evict(long maxBytes)
+		{
+			long freed = 0;
+			while ((mBytes > maxBytes) && (mSize > 1))
+			{
+				CacheEntry entry = mHead.mPrev;
+				remove(entry);
+				freed += entry.mWeight;
+			}
+			mUsedBytes.addAndGet(-freed);
+			return freed;
+		}
+
+		/**
+		 * Relieves memory pressure by reducing the segment to <code>fraction</code> of its current weight. First the decoded images of the least recently used
+		 * tiles are dropped, as far as the tiles are able to restore them. Only if this is not sufficient, the least recently used tiles are removed.
+		 * 
+		 * @return The number of bytes freed.
+		 */
+		synchronized long shed(float fraction)
+		{
+			long target = (long) (mBytes * fraction);
+			long released = 0;
+			for (CacheEntry entry = mHead.mPrev; (mBytes > target) && (entry != mHead); entry = entry.mPrev)
+			{
+				int freed = entry.mTile.releaseImage();
+				if (freed > 0)
+				{
+					entry.mWeight -= freed;
+					mBytes -= freed;
+					released += freed;
+				}
+			}
+			mUsedBytes.addAndGet(-released);
+			return released + evict(target);
+		}
 
-		OSMMemTileMap(int nSize, float fFillFact)
+		synchronized int size()
 		{
-			super(nSize, fFillFact, true);
+			return mSize;
 		}
 
-		@Override
-		protected boolean removeEldestEntry(Map.Entry<String, Tile> eldest)
+		synchronized void clear()
 		{
-			return (size() > mCacheSize);
+			mUsedBytes.addAndGet(-mBytes);
+			mBytes = 0;
+			mSize = 0;
+			Arrays.fill(mEntries, null);
+			mHead.mPrev = mHead.mNext = mHead;
 		}
 	}
 
-	// protected ConcurrentHashMap<String, Tile> mHM = null;
-	protected Map<String, Tile> mHM = null;
+	protected final Segment[] mSegments = new Segment[SEGMENT_COUNT];
+
+	/**
+	 * On a low memory notification the cache is reduced to this fraction of its current weight.
+	 */
+	protected volatile float mShedFraction = 0.5f;
+
+	/**
+	 * Number of low memory notifications, which actually caused tiles to be dropped.
+	 */
+	protected final AtomicLong mShedEvents = new AtomicLong();
+
+	/**
+	 * Sum of all bytes freed due to low memory notifications.
+	 */
+	protected final AtomicLong mShedBytes = new AtomicLong();
 
+	/**
+	 * Creates a cache with a quarter of the maximum heap as its limit.
+	 */
 	public MemoryTileCache()
 	{
-		this(5000);
+		this(Runtime.getRuntime().maxMemory() / 4);
 	}
 
 	/**
-	 * This initializes a memory tile cache with a specified size (in tiles, not in MiB).
+	 * This initializes a memory tile cache with a specified size in tiles. The number of tiles is converted into bytes by {@link #TILE_WEIGHT}.
 	 * 
 	 * @param cacheSize
+	 *          The nominal number of decoded tiles the cache should hold.
 	 */
 	public MemoryTileCache(int cacheSize)
 	{
-		mCacheSize = cacheSize;
-		mHM = Collections.synchronizedMap(new OSMMemTileMap(mCacheSize / 10, 0.75f));
+		this(cacheSize * TILE_WEIGHT);
+	}
+
+	/**
+	 * This initializes a memory tile cache with a specified size in bytes.
+	 * 
+	 * @param cacheBytes
+	 *          The maximum sum of the weights of all cached tiles.
+	 */
+	public MemoryTileCache(long cacheBytes)
+	{
+		for (int i = 0; i < SEGMENT_COUNT; i++)
+			mSegments[i] = new Segment();
+		setCacheBytes(cacheBytes);
 
 		MemoryMXBean mbean = ManagementFactory.getMemoryMXBean();
 		NotificationBroadcaster emitter = (NotificationBroadcaster) mbean;
 		emitter.addNotificationListener(this, null, null);
-		// Set-up each memory pool to notify if the free memory falls below 5% ????
+		// Set-up each heap memory pool to notify if the free memory falls below 5%
 		for (MemoryPoolMXBean memPool : ManagementFactory.getMemoryPoolMXBeans())
 		{
+			if (memPool.getType() != MemoryType.HEAP)
+				continue;
+			long max = memPool.getUsage().getMax();
+			if (max <= 0)
+				continue;
 			if (memPool.isUsageThresholdSupported())
-			{
-				MemoryUsage memUsage = memPool.getUsage();
-				memPool.setUsageThreshold((long) (memUsage.getMax() * 0.95));
-			}
+				memPool.setUsageThreshold((long) (max * 0.95));
+			if (memPool.isCollectionUsageThresholdSupported())
+				memPool.setCollectionUsageThreshold((long) (max * 0.95));
 		}
-		log.debug("mtc[" + mHM.size() + ", " + mCacheSize + "] created");
+		log.debug("mtc[" + mCacheBytes + " bytes] created");
 	}
 
 	/**
-	 * In case we are running out of memory we free half of the cache, down to a minimum of 25 cached tiles.
+	 * Selects the segment for the specified hash, see {@link #hash(long, int)}.
+	 */
+	protected Segment segmentFor(int hash)
+	{
+		return mSegments[(hash >>> 28) & (SEGMENT_COUNT - 1)];
+	}
+
+	/**
+	 * In case we are running out of memory we reduce the cache to {@link #getShedFraction()} of its current weight, preferably by dropping decoded images.
 	 * We get lots of notifs about 'PS Old Gen' from GC...
 	 */
 	@Override
@@ -128,29 +419,29 @@ public final class MemoryTileCache implements NotificationListener
 			log.trace("Memory notification: " + notification.toString());
 			return;
 		}
+		MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+		log.warn("Memory notification: " + notification.getType() + ", " + info.getPoolName());
+		shed(mShedFraction);
+	}
 
-		// MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
-		// log.warn("Memory notification: " + notification.getMessage() + ", " + info.getPoolName());
-		// synchronized (mruTiles)
-		// {
-		// int count_half = mruTiles.getElementCount() / 2;
-		// count_half = Math.max(25, count_half);
-		// if (mruTiles.getElementCount() <= count_half)
-		// return;
-		// log.debug("memory low - freeing cached tiles: " + mruTiles.getElementCount() + " -> " + count_half);
-		// try
-		// {
-		// while (mruTiles.getElementCount() > count_half)
-		// {
-		// removeEntry(mruTiles.getLastElement());
-		// }
-		// }
-		// catch (Exception e)
-		// {
-		// log.error("", e);
-		// }
-		// }
-		// log.debug("mtc[" + mHT.size() + "] modified");
+	/**
+	 * Reduces all segments to <code>fraction</code> of their current weight.
+	 * 
+	 * @return The number of bytes freed.
+	 */
+	public long shed(float fraction)
+	{
+		long usedBefore = mUsedBytes.get();
+		long freed = 0;
+		for (Segment seg : mSegments)
+			freed += seg.shed(fraction);
+		if (freed > 0)
+		{
+			mShedEvents.incrementAndGet();
+			mShedBytes.addAndGet(freed);
+		}
+		log.debug("memory low - freed cached tiles: " + usedBefore + " -> " + mUsedBytes.get() + " bytes");
+		return freed;
 	}
 
 	/**
@@ -158,8 +449,11 @@ public final class MemoryTileCache implements NotificationListener
 	 */
 	public void addTile(Tile tile)
 	{
-		mHM.put(tile.getKey(), tile);
-		log.debug("mtc[" + mHM.size() + "] modified");
+		long key = tile.getAddress().getKey();
+		int sourceID = tile.getSource().getID();
+		int hash = hash(key, sourceID);
+		segmentFor(hash).put(key, sourceID, hash, tile);
+		log.debug("mtc[" + mUsedBytes.get() + " bytes] modified");
 	}
 
 	/**
@@ -177,12 +471,15 @@ public final class MemoryTileCache implements NotificationListener
 	 */
 	public Tile getTile(ACMapSource mapSource, int x, int y, int z)
 	{
-		return mHM.get(Tile.getTileKey(mapSource, new TileAddress(x, y, z)));
+		long key = TileAddress.getKey(x, y, z);
+		int sourceID = mapSource.getID();
+		int hash = hash(key, sourceID);
+		return segmentFor(hash).get(key, sourceID, hash);
 	}
 
 	public Tile getTile(ACMapSource mapSource, TileAddress tAddr)
 	{
-		return mHM.get(Tile.getTileKey(mapSource, tAddr));
+		return getTile(mapSource, tAddr.getX(), tAddr.getY(), tAddr.getZoom());
 	}
 
 	/**
@@ -258,30 +555,100 @@ public final class MemoryTileCache implements NotificationListener
 
 	public int getTileCount()
 	{
-		return mHM.size();
+		int count = 0;
+		for (Segment seg : mSegments)
+			count += seg.size();
+		return count;
 	}
 
+	/**
+	 * @return The nominal size of the cache in decoded tiles, see {@link #TILE_WEIGHT}.
+	 */
 	public int getCacheSize()
 	{
-		return mCacheSize;
+		return (int) (mCacheBytes / TILE_WEIGHT);
 	}
 
 	/**
-	 * Changes the maximum number of {@link Tile} objects that this cache holds.
+	 * Changes the maximum number of decoded {@link Tile} objects that this cache holds.
 	 * 
 	 * @param cacheSize
 	 *          new maximum number of tiles
 	 */
 	public void setCacheSize(int cacheSize)
 	{
-		this.mCacheSize = cacheSize;
+		setCacheBytes(cacheSize * TILE_WEIGHT);
+	}
+
+	/**
+	 * @return The maximum sum of the weights of all cached tiles in bytes.
+	 */
+	public long getCacheBytes()
+	{
+		return mCacheBytes;
+	}
+
+	/**
+	 * Changes the maximum size of the cache. If the cache currently holds more than the new limit, the least recently used tiles are removed immediately.
+	 * 
+	 * @param cacheBytes
+	 *          new maximum size in bytes
+	 */
+	public void setCacheBytes(long cacheBytes)
+	{
+		mCacheBytes = Math.max(cacheBytes, SEGMENT_COUNT * TILE_WEIGHT);
+		mSegmentBytes = mCacheBytes / SEGMENT_COUNT;
+		for (Segment seg : mSegments)
+			seg.evict(mSegmentBytes);
+	}
+
+	/**
+	 * @return The sum of the weights of all tiles currently held in bytes.
+	 */
+	public long getUsedBytes()
+	{
+		return mUsedBytes.get();
+	}
+
+	/**
+	 * @return The fraction of its weight the cache is reduced to on a low memory notification.
+	 */
+	public float getShedFraction()
+	{
+		return mShedFraction;
+	}
+
+	/**
+	 * @param shedFraction
+	 *          The fraction of its weight the cache is reduced to on a low memory notification, in [0..1].
+	 */
+	public void setShedFraction(float shedFraction)
+	{
+		mShedFraction = Math.max(0.0f, Math.min(1.0f, shedFraction));
+	}
+
+	/**
+	 * @return The number of low memory notifications, which actually caused tiles or images to be dropped.
+	 */
+	public long getShedEvents()
+	{
+		return mShedEvents.get();
+	}
+
+	/**
+	 * @return The number of bytes freed due to low memory notifications.
+	 */
+	public long getShedBytes()
+	{
+		return mShedBytes.get();
 	}
 
 	/**
-	 * This completely removes all tiles from the mtc by clearing the underlying HashMap.
+	 * This completely removes all tiles from the mtc by clearing all segments.
 	 */
 	public void clear()
 	{
-		mHM.clear();
+		for (Segment seg : mSegments)
+			seg.clear();
 	}
 }
@@ -17,12 +17,17 @@
 package osmb.program.tiles;
 
 import java.awt.Graphics;
+import java.awt.Transparency;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.imageio.ImageIO;
 
@@ -55,6 +60,11 @@ public class Tile
 	public static final int OSMLOGO_TILE_ID = 99; // osm logo for map corner
 	public static final int LAST_SPECIAL_TILE_ID = 99;
 
+	/**
+	 * Estimated heap space of a tile object without its image data, i.e. the tile itself, its address, dates and key.
+	 */
+	public static final int TILE_OVERHEAD = 256;
+
 	public static BufferedImage LOADING_IMAGE;
 	public static BufferedImage ERROR_IMAGE;
 
@@ -88,13 +98,53 @@ public class Tile
 		TS_NEW, TS_LOADING, TS_LOADED, TS_ERROR, TS_EXPIRED, TS_ZOOMED
 	};
 
+	/**
+	 * This describes how the tiles image covers the tiles area. It can be <br>
+	 * TO_TRANSPARENT - All pixels are fully transparent, the tile contributes nothing when drawn over another one.<br>
+	 * TO_TRANSLUCENT - Some pixels are (partially) transparent.<br>
+	 * TO_OPAQUE - All pixels are fully opaque, the tile hides everything below it.
+	 * 
+	 * @see Tile#getOpacity()
+	 */
+	public enum TileOpacity
+	{
+		TO_TRANSPARENT, TO_TRANSLUCENT, TO_OPAQUE
+	};
+
+	/**
+	 * Encoded images up to this size are remembered with their opacity in {@link #sKnownContent}.
+	 */
+	private static final int KNOWN_CONTENT_MAX_SIZE = 4096;
+
+	/**
+	 * The maximum number of images remembered in {@link #sKnownContent}.
+	 */
+	private static final int KNOWN_CONTENT_MAX_COUNT = 256;
+
+	/**
+	 * Small uniform images, i.e. the empty tiles of overlay map sources, recur as identical bytes for many tiles. Their opacity is remembered here by the hash
+	 * of their encoded data, so they need not be decoded and scanned again.
+	 */
+	private static final ConcurrentHashMap<Integer, KnownContent> sKnownContent = new ConcurrentHashMap<Integer, KnownContent>();
+
+	private static class KnownContent
+	{
+		private final byte[] mData;
+		private final TileOpacity mOpacity;
+
+		private KnownContent(byte[] data, TileOpacity opacity)
+		{
+			mData = data;
+			mOpacity = opacity;
+		}
+	}
+
 	// static/class data
 	protected static Logger log = Logger.getLogger(ACMapSource.class);
 
 	/**
-	 * The key identifies the tile. Be aware that the map sources name is part of the key. Probably we should have something like the 'key' in the map source
-	 * too...<br>
-	 * It is primarily used by the mtc to identify tiles.
+	 * The key identifies the tile. Be aware that the map sources name is part of the key.<br>
+	 * The mtc does not use this any longer, it identifies tiles by {@link TileAddress#getKey()} and {@link ACMapSource#getID()}.
 	 * 
 	 * @param source
 	 * @param tAddr
@@ -112,12 +162,24 @@ public class Tile
 	// protected int mYTIdx = 0;
 	// protected int mZoom = 0;
 	protected TileAddress mTA = null;
-	protected BufferedImage mImage = LOADING_IMAGE;
+	/**
+	 * The decoded image. If the tile holds encoded data, it is null until the image is needed.
+	 */
+	protected volatile BufferedImage mImage = LOADING_IMAGE;
+	/**
+	 * The encoded image data as received from the source, null if the image has been set as a {@link BufferedImage}. If present, this is the primary
+	 * representation of the tiles image.
+	 */
+	protected volatile byte[] mData = null;
+	/**
+	 * The opacity of the image, null until it has been determined by {@link #getOpacity()}.
+	 */
+	protected volatile TileOpacity mOpacity = null;
 	protected TileState mTileState = TileState.TS_NEW;
 	protected Date mMod = new Date();
 	protected Date mExp = new Date();
 	protected String mETag = "-";
-	protected String mKey = "";
+	protected String mKey = null;
 
 	/**
 	 * Creates a tile with a 'loading' image and TS_NEW state.
@@ -145,7 +207,6 @@ public class Tile
 		log = Logger.getLogger(this.getClass());
 		this.mMapSource = mapSource;
 		this.mTA = tAddr;
-		this.mKey = getTileKey(mapSource, tAddr);
 	}
 
 	/**
@@ -280,62 +341,267 @@ public class Tile
 	}
 
 	/**
-	 * @return The image for this tile.
+	 * @return The image for this tile. If the tile holds encoded data, they are decoded on the first call.
 	 */
 	public BufferedImage getImage()
 	{
+		BufferedImage image = mImage;
+		if ((image == null) && (mData != null))
+			image = decodeImage();
+		return image;
+	}
+
+	/**
+	 * Decodes the encoded data into {@link #mImage}. Concurrent callers wait for one decoding. If the data cannot be decoded, the error image is used.
+	 * 
+	 * @return The decoded image.
+	 */
+	protected synchronized BufferedImage decodeImage()
+	{
+		byte[] data = mData;
+		if ((mImage == null) && (data != null))
+		{
+			try
+			{
+				mImage = ImageIO.read(new ByteArrayInputStream(data));
+				if (mImage == null)
+				{
+					log.warn("no image decoded for " + this);
+					mImage = ERROR_IMAGE;
+				}
+			}
+			catch (IOException e)
+			{
+				log.error("decoding of " + this + " failed", e);
+				mImage = ERROR_IMAGE;
+			}
+		}
 		return mImage;
 	}
 
 	/**
-	 * @return The image for this tile.
+	 * @return TRUE if the decoded image is currently present.
+	 */
+	public boolean isImageDecoded()
+	{
+		return mImage != null;
+	}
+
+	/**
+	 * This estimates the heap space occupied by this tile. It is used by the {@link MemoryTileCache} to weigh its entries.<br>
+	 * The shared 'loading' and 'error' images are not accounted for, since they exist only once. A decoded image only counts after it has been decoded.
+	 *
+	 * @return The approximate size of this tile in bytes.
+	 */
+	public int getMemorySize()
+	{
+		int size = TILE_OVERHEAD;
+		BufferedImage image = mImage;
+		if ((image != null) && (image != LOADING_IMAGE) && (image != ERROR_IMAGE))
+			size += getImageSize(image);
+		byte[] data = mData;
+		if (data != null)
+			size += data.length;
+		return size;
+	}
+
+	/**
+	 * Drops the decoded image of this tile, if the tile is able to restore it later on. It is used by the {@link MemoryTileCache} to free memory while keeping
+	 * the tile itself cached. The image is decoded again from the encoded data when it is needed next time.<br>
+	 * A tile which only holds its decoded image has no means to restore it, so it keeps the image.
+	 *
+	 * @return The number of bytes released.
+	 */
+	public synchronized int releaseImage()
+	{
+		BufferedImage image = mImage;
+		if ((mData == null) || (image == null) || (image == LOADING_IMAGE) || (image == ERROR_IMAGE))
+			return 0;
+		mImage = null;
+		return getImageSize(image);
+	}
+
+	/**
+	 * @return The size of the raster data of the image in bytes.
+	 */
+	public static int getImageSize(BufferedImage image)
+	{
+		DataBuffer db = image.getRaster().getDataBuffer();
+		return (int) (((long) db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType())) / 8);
+	}
+
+	/**
+	 * @return The encoded image data for this tile. If the tile has been loaded from encoded data, exactly these are returned. Only an image set by
+	 *         {@link #setImage(BufferedImage)} is encoded here, in the map sources tile image format.
 	 * @throws IOException
 	 */
 	public byte[] getImageData() throws IOException
 	{
+		byte[] data = mData;
+		if (data != null)
+			return data;
 		ByteArrayOutputStream buf = null;
 		buf = new ByteArrayOutputStream(32000);
-		ImageIO.write(mImage, mMapSource.getTileImageType().getFileExt(), buf);
+		ImageIO.write(getImage(), mMapSource.getTileImageType().getFileExt(), buf);
 		return buf.toByteArray();
 	}
 
+	/**
+	 * @return TRUE if the tile holds encoded image data, i.e. {@link #getImageData()} does not need to encode.
+	 */
+	public boolean hasImageData()
+	{
+		return mData != null;
+	}
+
+	/**
+	 * Determines how the image of this tile covers the tiles area. The result is computed once per tile. The format of the encoded data tells about opaque
+	 * images without decoding, and small images already seen with identical bytes are recognized by {@link #sKnownContent}. Only other images are decoded and
+	 * scanned.
+	 * 
+	 * @return The opacity of the tiles image.
+	 */
+	public synchronized TileOpacity getOpacity()
+	{
+		TileOpacity opacity = mOpacity;
+		if (opacity != null)
+			return opacity;
+		byte[] data = mData;
+		if (data != null)
+		{
+			if (isOpaqueFormat(data))
+				opacity = TileOpacity.TO_OPAQUE;
+			else if (data.length <= KNOWN_CONTENT_MAX_SIZE)
+			{
+				KnownContent known = sKnownContent.get(Arrays.hashCode(data));
+				if ((known != null) && Arrays.equals(known.mData, data))
+					opacity = known.mOpacity;
+			}
+		}
+		if (opacity == null)
+		{
+			opacity = getOpacity(getImage());
+			if ((data != null) && (data.length <= KNOWN_CONTENT_MAX_SIZE) && (opacity != TileOpacity.TO_TRANSLUCENT)
+			    && (sKnownContent.size() < KNOWN_CONTENT_MAX_COUNT))
+				sKnownContent.put(Arrays.hashCode(data), new KnownContent(data, opacity));
+		}
+		mOpacity = opacity;
+		return opacity;
+	}
+
+	/**
+	 * Scans the alpha values of the image.
+	 * 
+	 * @return The opacity of the image, {@link TileOpacity#TO_TRANSLUCENT} if there is no image.
+	 */
+	public static TileOpacity getOpacity(BufferedImage image)
+	{
+		if (image == null)
+			return TileOpacity.TO_TRANSLUCENT;
+		if (image.getColorModel().getTransparency() == Transparency.OPAQUE)
+			return TileOpacity.TO_OPAQUE;
+		int width = image.getWidth();
+		int[] pixels;
+		if ((image.getType() == BufferedImage.TYPE_INT_ARGB) && (image.getRaster().getDataBuffer() instanceof DataBufferInt))
+			pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		else
+			pixels = image.getRGB(0, 0, width, image.getHeight(), null, 0, width);
+		int first = pixels[0] >>> 24;
+		if ((first != 0) && (first != 0xFF))
+			return TileOpacity.TO_TRANSLUCENT;
+		for (int p = 1; p < pixels.length; p++)
+		{
+			if ((pixels[p] >>> 24) != first)
+				return TileOpacity.TO_TRANSLUCENT;
+		}
+		return (first == 0) ? TileOpacity.TO_TRANSPARENT : TileOpacity.TO_OPAQUE;
+	}
+
+	/**
+	 * Tells from the header of the encoded data if the image cannot have transparent pixels. These are JPEG images and PNG images without alpha channel and
+	 * without a transparency chunk.
+	 * 
+	 * @return TRUE if the image is known to be opaque, FALSE if it may have transparent pixels.
+	 */
+	protected static boolean isOpaqueFormat(byte[] data)
+	{
+		if ((data.length > 2) && ((data[0] & 0xFF) == 0xFF) && ((data[1] & 0xFF) == 0xD8))
+			return true; // JPEG
+		if ((data.length < 33) || ((data[0] & 0xFF) != 0x89) || (data[1] != 'P') || (data[2] != 'N') || (data[3] != 'G'))
+			return false;
+		// color type in IHDR: 0 gray, 2 RGB, 3 palette, 4 gray+alpha, 6 RGBA
+		int colorType = data[25];
+		if ((colorType != 0) && (colorType != 2) && (colorType != 3))
+			return false;
+		// walk the chunks up to the image data, looking for a tRNS chunk
+		int pos = 8;
+		while (pos + 8 <= data.length)
+		{
+			int len = ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16) | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+			if ((data[pos + 4] == 'I') && (data[pos + 5] == 'D') && (data[pos + 6] == 'A') && (data[pos + 7] == 'T'))
+				return true;
+			if ((data[pos + 4] == 't') && (data[pos + 5] == 'R') && (data[pos + 6] == 'N') && (data[pos + 7] == 'S'))
+				return false;
+			if (len < 0)
+				return false;
+			pos += 12 + len;
+		}
+		return false;
+	}
+
 	/**
 	 * Associates a specified image with this tile.
 	 * 
 	 * @param image
 	 *          The image to be used.
 	 */
-	public void setImage(BufferedImage image)
+	public synchronized void setImage(BufferedImage image)
 	{
 		this.mImage = image;
+		mData = null;
+		mOpacity = null;
 	}
 
 	/**
 	 * Uses predefined image as an error indicator.
 	 */
-	public void setErrorImage()
+	public synchronized void setErrorImage()
 	{
 		mImage = ERROR_IMAGE;
+		mData = null;
+		mOpacity = null;
 		mTileState = TileState.TS_ERROR;
 	}
 
 	/**
 	 * Uses predefined image as a loading indicator.
 	 */
-	public void setLoadingImage()
+	public synchronized void setLoadingImage()
 	{
 		mImage = LOADING_IMAGE;
+		mData = null;
+		mOpacity = null;
 		mTileState = TileState.TS_LOADING;
 	}
 
 	public void loadImage(InputStream input) throws IOException
 	{
-		mImage = ImageIO.read(input);
+		loadImage(OSMBUtilities.getInputBytes(input));
 	}
 
-	public void loadImage(byte[] data) throws IOException
+	/**
+	 * Loads the image from its encoded data. The data are kept as they are and returned by {@link #getImageData()}, so they can be stored without re-encoding.
+	 * They are only decoded when the image is needed by {@link #getImage()} or for painting.
+	 * 
+	 * @param data
+	 *          The encoded image data, i.e. as downloaded from the server or read from the tile store.
+	 * @throws IOException
+	 */
+	public synchronized void loadImage(byte[] data) throws IOException
 	{
-		loadImage(new ByteArrayInputStream(data));
+		mData = data;
+		mImage = null;
+		mOpacity = null;
 	}
 
 	/**
@@ -343,6 +609,8 @@ public class Tile
 	 */
 	public String getKey()
 	{
+		if (mKey == null)
+			mKey = getTileKey(mMapSource, mTA);
 		return mKey;
 	}
 
@@ -369,9 +637,10 @@ public class Tile
 	 */
 	public void paint(Graphics gC, int xTgt, int yTgt)
 	{
-		if (mImage != null)
+		BufferedImage image = getImage();
+		if (image != null)
 			// gC.drawImage(mImage, xTgt, yTgt, MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, Color.WHITE, null);
-			gC.drawImage(mImage, xTgt, yTgt, MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, mMapSource.getBackgroundColor(), null);
+			gC.drawImage(image, xTgt, yTgt, MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, mMapSource.getBackgroundColor(), null);
 	}
 
 	/**
@@ -383,8 +652,9 @@ public class Tile
 	 */
 	public void paintTransparent(Graphics gC, int xTgt, int yTgt)
 	{
-		if (mImage != null)
-			gC.drawImage(mImage, xTgt, yTgt, MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, null);
+		BufferedImage image = getImage();
+		if (image != null)
+			gC.drawImage(image, xTgt, yTgt, MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, null);
 	}
 
 	@Override
@@ -17,7 +17,7 @@
 package osmb.program.tiles;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
@@ -63,7 +63,7 @@ public class TileDownLoader
 		// Object defaultReadTimeout = System.getProperty("sun.net.client.defaultReadTimeout");
 		// if (defaultReadTimeout == null)
 		System.setProperty("sun.net.client.defaultReadTimeout", "30000");
-		System.setProperty("http.maxConnections", "20");
+		// http.maxConnections is set by the HttpTileTransport
 	}
 
 	/**
@@ -132,14 +132,23 @@ public class TileDownLoader
 			log.trace("Downloading " + conn.getURL());
 
 			prepareConnection(conn);
-			conn.connect();
-
-			int code = conn.getResponseCode();
-			data = loadBodyDataInBuffer(conn);
+			int code;
+			IfTileTransport transport = mapSource.getTransport();
+			acquireConnection(transport, conn, mapSource);
+			try
+			{
+				conn.connect();
+				code = conn.getResponseCode();
+				data = transport.readBody(conn);
+			}
+			finally
+			{
+				transport.release(conn.getURL());
+			}
 
 			if (code != HttpURLConnection.HTTP_OK)
 			{
-				log.error("loadBodyDataInBuffer() failed:" + code);
+				log.error("downloading " + conn.getURL() + " failed: HTTP " + code);
 				throw new DownloadFailedException(conn, code);
 			}
 
@@ -187,14 +196,23 @@ public class TileDownLoader
 			log.debug("Downloading " + conn.getURL() + " by " + Thread.currentThread().getClass());
 
 			prepareConnection(conn);
-			conn.connect();
-
-			int code = conn.getResponseCode();
-			data = loadBodyDataInBuffer(conn);
+			int code;
+			IfTileTransport transport = mapSource.getTransport();
+			acquireConnection(transport, conn, mapSource);
+			try
+			{
+				conn.connect();
+				code = conn.getResponseCode();
+				data = transport.readBody(conn);
+			}
+			finally
+			{
+				transport.release(conn.getURL());
+			}
 
 			if (code != HttpURLConnection.HTTP_OK)
 			{
-				log.error("loadBodyDataInBuffer() failed:" + code);
+				log.error("downloading " + conn.getURL() + " failed: HTTP " + code);
 				throw new UnrecoverableDownloadException(conn.toString() + code);
 			}
 
@@ -227,67 +245,55 @@ public class TileDownLoader
 	}
 
 	/**
-	 * This checks if the data online are modified against the data in the tile store. If so the new data are down loaded and stored in the tile store - if the
-	 * tile store is enabled in settings.
+	 * This revalidates an expired tile by a single GET request. Depending on the map sources {@link IfOnlineMapSource.TileUpdate} mode the request is
+	 * conditional (<code>If-None-Match</code> or <code>If-Modified-Since</code>). For the modes {@link IfOnlineMapSource.TileUpdate#ETag ETag} and
+	 * {@link IfOnlineMapSource.TileUpdate#LastModified LastModified} the server does not support conditional requests, so the response headers are compared with
+	 * the tiles values instead.<br>
+	 * If the data have not been modified, only the tiles expiration is updated, in the tile and in the tile store. Otherwise the new data are loaded into the
+	 * tile and it is put into the tile store - if the tile store is enabled in settings.
 	 * 
 	 * @param tTile
+	 *          The expired tile.
 	 * @param mapSource
-	 * @return The tile data as a byte array. Only if the data have been modified according to the update setting. If the data are not modified, it returns null.
+	 * @return The revalidated tile.
 	 * @throws UnrecoverableDownloadException
 	 * @throws IOException
-	 * @throws InterruptedException
 	 */
 	public static Tile updateTile(Tile tTile, ACOnlineMapSource mapSource) throws UnrecoverableDownloadException, IOException
 	{
 		log.trace(OSMBStrs.RStr("START"));
-		final int x = tTile.getXtile();
-		final int y = tTile.getYtile();
-		final int zoom = tTile.getZoom();
 		final IfOnlineMapSource.TileUpdate tileUpdate = mapSource.getTileUpdate();
 
-		boolean different = isETagDifferent(tTile, mapSource);
-		if (!different)
-		{
-			if (log.isTraceEnabled())
-				log.debug("Data unchanged on server (eTag): " + mapSource + " " + tTile);
-			return tTile;
-		}
-		boolean isNewer = isTileNewer(tTile, mapSource);
-		if (!isNewer)
-		{
-			if (log.isTraceEnabled())
-				log.trace("Data unchanged on server (LastModified): " + mapSource + " " + tTile);
-			return tTile;
-		}
-
 		HttpURLConnection conn = mapSource.getTileUrlConnection(tTile.getAddress());
 		if (conn == null)
-			throw new UnrecoverableDownloadException("Tile x=" + x + " y=" + y + " zoom=" + zoom + " is not a valid tile in map source " + mapSource);
+			throw new UnrecoverableDownloadException(tTile + " is not a valid tile in map source " + mapSource);
 
 		if (log.isTraceEnabled())
 			log.trace(String.format("Checking %s %s", mapSource.getName(), tTile));
 
 		prepareConnection(conn);
 
+		String oldETag = tTile.getETag();
+		long oldLastModified = (tTile.getMod() != null) ? tTile.getMod().getTime() : 0;
 		boolean conditionalRequest = false;
 
-		// prepare to ask the server if the data have changed
+		// ask the server if the data have changed
 		switch (tileUpdate)
 		{
 			case IfNoneMatch:
 			{
-				if (tTile.getETag() != null)
+				if ((oldETag != null) && (oldETag.length() > 0))
 				{
-					conn.setRequestProperty("If-None-Match", tTile.getETag());
+					conn.setRequestProperty("If-None-Match", oldETag);
 					conditionalRequest = true;
 				}
 				break;
 			}
 			case IfModifiedSince:
 			{
-				if (tTile.getMod().getTime() > 0)
+				if (oldLastModified > 0)
 				{
-					conn.setIfModifiedSince(tTile.getMod().getTime());
+					conn.setIfModifiedSince(oldLastModified);
 					conditionalRequest = true;
 				}
 				break;
@@ -299,159 +305,129 @@ public class TileDownLoader
 				break;
 		}
 
-		conn.connect();
-
-		ACSettings s = ACSettings.getInstance();
-
-		int code = conn.getResponseCode();
-
-		if (conditionalRequest && (code == HttpURLConnection.HTTP_NOT_MODIFIED))
+		int code;
+		byte[] data = null;
+		IfTileTransport transport = mapSource.getTransport();
+		acquireConnection(transport, conn, mapSource);
+		try
 		{
-			// server responded: data not modified
-			if (s.getTileStoreEnabled())
-			{
-				// update expiration date in tile store
-				tTile.setExp(new Date(conn.getExpiration()));
-				mapSource.getTileStore().putTile(tTile, mapSource);
-			}
-			if (log.isTraceEnabled())
-				log.trace("Server responded: Data not modified: " + mapSource + " " + tTile);
-			return null;
+			conn.connect();
+			code = conn.getResponseCode();
+			if (conditionalRequest && (code == HttpURLConnection.HTTP_NOT_MODIFIED))
+				transport.discard(conn);
+			else
+				data = transport.readBody(conn);
 		}
-		else
+		finally
 		{
-			// only now load the data
-			byte[] data = loadBodyDataInBuffer(conn);
-
-			if (code != HttpURLConnection.HTTP_OK)
-				throw new DownloadFailedException(conn, code);
-
-			checkContentType(conn, data);
-			checkContentLength(conn, data);
+			transport.release(conn.getURL());
+		}
 
+		boolean modified = true;
+		if (conditionalRequest && (code == HttpURLConnection.HTTP_NOT_MODIFIED))
+			modified = false;
+		else if (code != HttpURLConnection.HTTP_OK)
+			throw new DownloadFailedException(conn, code);
+		else if (tileUpdate == IfOnlineMapSource.TileUpdate.ETag)
+		{
 			String eTag = conn.getHeaderField("ETag");
+			modified = (oldETag == null) || (oldETag.length() == 0) || (eTag == null) || !eTag.equals(oldETag);
+		}
+		else if (tileUpdate == IfOnlineMapSource.TileUpdate.LastModified)
+		{
 			long timeLastModified = conn.getLastModified();
-			long timeExpires = conn.getExpiration();
+			modified = (oldLastModified <= 0) || (timeLastModified <= 0) || (timeLastModified > oldLastModified);
+		}
 
-			TileImageType imageType = OSMBUtilities.getImageType(data);
-			if (imageType == null)
-				throw new UnrecoverableDownloadException("The returned image is of unknown format");
+		ACSettings s = ACSettings.getInstance();
+		long timeExpires = getExpiration(conn);
+		if (!modified)
+		{
+			// server responded: data not modified, the tile is revalidated now like in the tile store
+			tTile.setMod(new Date());
+			tTile.setExp(new Date(timeExpires));
+			tTile.setTileState(TileState.TS_LOADED);
 			if (s.getTileStoreEnabled())
-			{
-				mapSource.getTileStore().putTileData(data, x, y, zoom, mapSource, timeLastModified, timeExpires, eTag);
-			}
+				mapSource.getNTileStore().updateTileExpiration(tTile.getAddress(), timeExpires);
+			if (log.isTraceEnabled())
+				log.trace("Server responded: Data not modified: " + mapSource + " " + tTile);
 			return tTile;
 		}
-	}
 
-	/**
-	 * @deprecated This is moved into the {@link ACTileStore}
-	 */
-	@Deprecated
-	public static boolean isTileExpired(IfStoredTile tileStoreEntry)
-	{
-		if (tileStoreEntry == null)
-			return true;
-		return ACTileStore.getInstance().isTileExpired(tileStoreEntry);
+		checkContentType(conn, data);
+		checkContentLength(conn, data);
+		if (OSMBUtilities.getImageType(data) == null)
+			throw new UnrecoverableDownloadException("The returned image is of unknown format");
+		notifyTileDownloaded(data.length);
+
+		tTile.loadImage(data);
+		tTile.setETag(conn.getHeaderField("ETag"));
+		tTile.setMod(new Date((conn.getLastModified() > 0) ? conn.getLastModified() : System.currentTimeMillis()));
+		tTile.setExp(new Date(timeExpires));
+		tTile.setTileState(TileState.TS_LOADED);
+		if (s.getTileStoreEnabled())
+			mapSource.getNTileStore().putTile(tTile);
+		return tTile;
 	}
 
 	/**
-	 * Reads all available data from the input stream of <code>conn</code> and returns it as byte array. If no input data is available the method returns
-	 * <code>null</code>.
-	 * 
-	 * @param conn
-	 * @return
-	 * @throws IOException
+	 * @return The expiration time of the response. It is taken from the <code>Cache-Control: max-age</code> or the <code>Expires</code> header. If the server
+	 *         did not provide one, the default expiration time is applied.
 	 */
-	protected static byte[] loadBodyDataInBuffer(HttpURLConnection conn) throws IOException
+	protected static long getExpiration(HttpURLConnection conn)
 	{
-		log.trace(OSMBStrs.RStr("START"));
-		InputStream input = conn.getInputStream();
-		byte[] data = null;
-		try
+		long now = System.currentTimeMillis();
+		String cacheControl = conn.getHeaderField("Cache-Control");
+		if (cacheControl != null)
 		{
-			if (Thread.currentThread() instanceof IfMapSourceListener)
-			{
-				// // We only throttle bundle downloads, not downloads for the preview map
-				// long bandwidthLimit = ACSettings.getInstance().getBandwidthLimit();
-				// if (bandwidthLimit > 0)
-				// {
-				// input = new ThrottledInputStream(input);
-				// }
-			}
-			data = OSMBUtilities.getInputBytes(input);
-		}
-		catch (IOException e)
-		{
-			InputStream errorIn = conn.getErrorStream();
-			try
-			{
-				byte[] errData = OSMBUtilities.getInputBytes(errorIn);
-				log.trace("Retrieved " + errData.length + " error bytes for a HTTP " + conn.getResponseCode());
-			}
-			catch (Exception ee)
+			for (String directive : cacheControl.split(","))
 			{
-				log.error("Error retrieving error stream content: " + e);
-			}
-			finally
-			{
-				OSMBUtilities.closeStream(errorIn);
+				directive = directive.trim();
+				if (directive.startsWith("max-age="))
+				{
+					try
+					{
+						return now + 1000L * Long.parseLong(directive.substring(8).trim());
+					}
+					catch (NumberFormatException e)
+					{
+						log.debug("invalid " + directive);
+					}
+				}
 			}
-			throw e;
-		}
-		finally
-		{
-			if (input != null)
-				OSMBUtilities.closeStream(input);
 		}
-		if ((data == null) || (data.length == 0))
-			return null;
-		log.trace("Retrieved " + data.length + " bytes for a HTTP " + conn.getResponseCode());
-		return data;
+		long timeExpires = conn.getExpiration();
+		if (timeExpires > now)
+			return timeExpires;
+		return now + ACSettings.getTileDefaultExpirationTime();
 	}
 
 	/**
-	 * Returns true if the tile online is newer than the one referenced by the tile store entry.
-	 * Performs a <code>HEAD</code> request for retrieving the <code>LastModified</code> header value.
+	 * @deprecated This is moved into the {@link ACTileStore}
 	 */
-	protected static boolean isTileNewer(Tile tTile, IfOnlineMapSource mapSource) throws IOException
+	@Deprecated
+	public static boolean isTileExpired(IfStoredTile tileStoreEntry)
 	{
-		log.trace(OSMBStrs.RStr("START"));
-		long oldLastModified = tTile.getMod().getTime();
-		if (oldLastModified <= 0)
-		{
-			log.warn("Tile age comparison not possible: " + "tile in tilestore does not contain lastModified attribute");
-			return true;
-		}
-		HttpURLConnection conn = mapSource.getTileUrlConnection(tTile.getAddress());
-		conn.setRequestMethod("HEAD");
-		conn.setRequestProperty("Accept", ACCEPT);
-		long newLastModified = conn.getLastModified();
-		if (newLastModified == 0)
+		if (tileStoreEntry == null)
 			return true;
-		return (newLastModified > oldLastModified);
+		return ACTileStore.getInstance().isTileExpired(tileStoreEntry);
 	}
 
 	/**
-	 * Returns true if the tile online has an eTag different from the one referenced by the tile store entry.
-	 * Performs a <code>HEAD</code> request for retrieving the <code>ETag</code> header value.
+	 * Waits for a free connection to the host of <code>conn</code> as limited by the map source. It has to be released by
+	 * {@link IfTileTransport#release(java.net.URL)}.
 	 */
-	protected static boolean isETagDifferent(Tile tTile, IfOnlineMapSource mapSource) throws IOException
+	protected static void acquireConnection(IfTileTransport transport, HttpURLConnection conn, ACOnlineMapSource mapSource) throws InterruptedIOException
 	{
-		log.trace(OSMBStrs.RStr("START"));
-		String eTag = tTile.getETag();
-		if (eTag == null || eTag.length() == 0)
+		try
 		{
-			log.warn("ETag check not possible: " + "tile in tilestore does not contain ETag attribute");
-			return true;
+			transport.acquire(conn.getURL(), mapSource.getMaxConnections());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("waiting for a connection to " + conn.getURL().getHost() + " interrupted");
 		}
-		HttpURLConnection conn = mapSource.getTileUrlConnection(tTile.getAddress());
-		conn.setRequestMethod("HEAD");
-		conn.setRequestProperty("Accept", ACCEPT);
-		String onlineETag = conn.getHeaderField("ETag");
-		if (onlineETag == null || onlineETag.length() == 0)
-			return true;
-		return (!onlineETag.equals(eTag));
 	}
 
 	protected static void prepareConnection(HttpURLConnection conn) throws ProtocolException
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmb.program.tiles;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A {@link FutureTask} delivering a {@link Tile}. Additionally to the plain future it notifies {@link IfTileFutureListener}s when it is done. This allows tile
+ * loads to be composed, e.g. by {@link #whenAll(TileFuture[], Callable)}, without a thread blocking in {@link #get()} until the result is available.
+ * 
+ * @author humbach
+ */
+public class TileFuture extends FutureTask<Tile>
+{
+	// static/class data
+	protected static Logger log = Logger.getLogger(TileFuture.class);
+
+	/**
+	 * Creates a future which is already done with the specified tile.
+	 */
+	public static TileFuture completed(final Tile tile)
+	{
+		TileFuture future = new TileFuture(new Callable<Tile>()
+		{
+			@Override
+			public Tile call()
+			{
+				return tile;
+			}
+		});
+		future.run();
+		return future;
+	}
+
+	/**
+	 * Creates a future which runs <code>then</code> as soon as all <code>parts</code> are done. <code>then</code> is executed in the thread completing the last
+	 * part, so no thread is waiting in between. It should retrieve the parts results by {@link #getNow()}.
+	 * 
+	 * @param parts
+	 *          The futures to wait for.
+	 * @param then
+	 *          The task providing the result of the returned future.
+	 * @return The future delivering the result of <code>then</code>.
+	 */
+	public static TileFuture whenAll(TileFuture[] parts, Callable<Tile> then)
+	{
+		return whenAll(parts, then, null);
+	}
+
+	/**
+	 * Like {@link #whenAll(TileFuture[], Callable)}, but <code>then</code> is handed to <code>executor</code>. This separates CPU bound work like composing
+	 * from the I/O threads completing the parts.
+	 * 
+	 * @param executor
+	 *          The executor to run <code>then</code>, or null to run it in the thread completing the last part.
+	 */
+	public static TileFuture whenAll(TileFuture[] parts, Callable<Tile> then, final Executor executor)
+	{
+		final TileFuture result = new TileFuture(then);
+		if (parts.length == 0)
+		{
+			result.run();
+			return result;
+		}
+		final AtomicInteger pending = new AtomicInteger(parts.length);
+		IfTileFutureListener listener = new IfTileFutureListener()
+		{
+			@Override
+			public void tileFutureDone(TileFuture future)
+			{
+				if (pending.decrementAndGet() == 0)
+				{
+					if (executor != null)
+						executor.execute(result);
+					else
+						result.run();
+				}
+			}
+		};
+		for (TileFuture part : parts)
+			part.addListener(listener);
+		return result;
+	}
+
+	// instance data
+	/**
+	 * The listeners to be notified. It is set to null when the future is done.
+	 */
+	private List<IfTileFutureListener> mListeners = new ArrayList<IfTileFutureListener>(2);
+
+	public TileFuture(Callable<Tile> callable)
+	{
+		super(callable);
+	}
+
+	/**
+	 * Registers a listener to be notified when this future is done. If it is already done, the listener is notified immediately.
+	 */
+	public void addListener(IfTileFutureListener listener)
+	{
+		synchronized (this)
+		{
+			if (mListeners != null)
+			{
+				mListeners.add(listener);
+				return;
+			}
+		}
+		notifyListener(listener);
+	}
+
+	/**
+	 * @return The tile if the future has been completed successfully, null if it is not yet done, has failed or has been cancelled. It never blocks.
+	 */
+	public Tile getNow()
+	{
+		if (!isDone() || isCancelled())
+			return null;
+		try
+		{
+			return get();
+		}
+		catch (InterruptedException | ExecutionException e)
+		{
+			return null;
+		}
+	}
+
+	@Override
+	protected void done()
+	{
+		List<IfTileFutureListener> listeners;
+		synchronized (this)
+		{
+			listeners = mListeners;
+			mListeners = null;
+		}
+		for (IfTileFutureListener listener : listeners)
+			notifyListener(listener);
+	}
+
+	private void notifyListener(IfTileFutureListener listener)
+	{
+		try
+		{
+			listener.tileFutureDone(this);
+		}
+		catch (RuntimeException e)
+		{
+			log.error("tile future listener failed", e);
+		}
+	}
+}
@@ -17,14 +17,29 @@
 package osmb.program.tiles;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 
 import osmb.mapsources.ACMapSource;
 import osmb.mapsources.IfMapSourceListener;
+import osmb.mapsources.IfOnlineMapSource;
 import osmb.mapsources.TileAddress;
+import osmb.program.ACSettings;
+import osmb.program.DelayedInterruptThread;
+import osmb.program.IfPrioritizedJob.JobPriority;
 import osmb.program.JobDispatcher;
 import osmb.program.tiles.Tile.TileState;
 import osmb.program.tilestore.IfStoredTile;
@@ -37,12 +52,41 @@ public class TileLoader
 {
 	protected static Logger log = Logger.getLogger(TileLoader.class);
 
+	/**
+	 * The delay before the first retry of a failed download in ms
+	 */
+	public static final long RETRY_BASE_DELAY = 1000;
+	/**
+	 * The maximum delay between retries in ms
+	 */
+	public static final long RETRY_MAX_DELAY = 120000;
+
+	/**
+	 * Schedules the retries of failed jobs of all tile loaders. It only hands the jobs back to their executor when the retry delay has elapsed.
+	 */
+	protected static final ScheduledThreadPoolExecutor sRetryScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable job)
+		{
+			Thread thread = new DelayedInterruptThread(job, "TileRetry");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Runs the retries of jobs which were not executed by a {@link JobDispatcher}, so their downloads never block {@link #sRetryScheduler}. Created on demand.
+	 */
+	private static JobDispatcher sRetryDispatcher = null;
+
 	protected IfTileLoaderListener listener = null;
 	protected MemoryTileCache mMTC = null;
 	/**
-	 * Hash map allowing for registration of all started jobs, and thus preventing duplicate jobs.
+	 * Registry of all jobs in flight, i.e. created but not yet finished, thus preventing duplicate jobs. It is keyed by map source and tile address. A job
+	 * removes itself when it is finished.
 	 */
-	protected HashMap<TileAddress, Runnable> mJHM = new HashMap<TileAddress, Runnable>(1000);
+	protected ConcurrentHashMap<JobKey, TileLoaderJob> mJobs = new ConcurrentHashMap<JobKey, TileLoaderJob>(1000);
 
 	public TileLoader(IfTileLoaderListener listener, MemoryTileCache mtc)
 	{
@@ -51,10 +95,22 @@ public class TileLoader
 		this.mMTC = mtc;
 	}
 
+	protected static synchronized JobDispatcher getRetryDispatcher()
+	{
+		if (sRetryDispatcher == null)
+		{
+			sRetryDispatcher = JobDispatcher.createDownloadDispatcher();
+			sRetryDispatcher.setNamePref("Retry");
+		}
+		return sRetryDispatcher;
+	}
+
 	/**
 	 * Creates a {@link Runnable} to load one tile from the specified map source. It informs the listener by calling tileLoadingFinished(tile, true) that the
 	 * loading is finished. It tries to load the tile in sequence from MemoryTileCache, from TileStore and last from the online MapSource.
-	 * If the tile is downloaded, it is automatically updated, or, if it did not yet exist, inserted into the TileStore.
+	 * If the tile is downloaded, it is automatically updated, or, if it did not yet exist, inserted into the TileStore.<br>
+	 * As long as a job for the same tile of the same map source is in flight, this job is returned instead of a new one. Executing a job more than once has no
+	 * effect, so all requests for the tile are served by one load.
 	 * 
 	 * @param source
 	 * @param tileXIdx
@@ -66,15 +122,254 @@ public class TileLoader
 	 */
 	public Runnable createTileLoaderJob(final ACMapSource source, final TileAddress tAddr)
 	{
-		Runnable job;
-		if ((job = mJHM.get(tAddr)) == null)
+		return registerJob(source, tAddr, JobPriority.VIEWPORT);
+	}
+
+	/**
+	 * Like {@link #createTileLoaderJob(ACMapSource, TileAddress)}, but the job is scheduled with the specified priority by a {@link JobDispatcher}. If a job for
+	 * the tile is already in flight, its priority is raised if necessary.
+	 */
+	public Runnable createTileLoaderJob(final ACMapSource source, final TileAddress tAddr, JobPriority priority)
+	{
+		return registerJob(source, tAddr, priority);
+	}
+
+	/**
+	 * Loads one tile asynchronously like {@link #createTileLoaderJob(ACMapSource, TileAddress)}, but executes the job by <code>executor</code> and returns it
+	 * as a {@link TileFuture}. The listener is informed as well.
+	 * 
+	 * @param source
+	 * @param tAddr
+	 * @param executor
+	 *          The executor to run the job, usually a {@link JobDispatcher}.
+	 * @return The future delivering the tile.
+	 */
+	public TileFuture loadTileAsync(ACMapSource source, TileAddress tAddr, Executor executor)
+	{
+		return loadTileAsync(source, tAddr, executor, JobPriority.VIEWPORT);
+	}
+
+	/**
+	 * Like {@link #loadTileAsync(ACMapSource, TileAddress, Executor)} with the specified priority.
+	 */
+	public TileFuture loadTileAsync(ACMapSource source, TileAddress tAddr, Executor executor, JobPriority priority)
+	{
+		TileLoaderJob job = registerJob(source, tAddr, priority);
+		job.setExecutor(executor);
+		executor.execute(job);
+		return job;
+	}
+
+	protected TileLoaderJob registerJob(ACMapSource source, TileAddress tAddr, JobPriority priority)
+	{
+		JobKey key = new JobKey(source, tAddr);
+		TileLoaderJob job = mJobs.get(key);
+		if (job == null)
 		{
-			job = new TileAsyncLoadJob(source, tAddr);
-			mJHM.put(tAddr, job);
+			TileLoaderJob newJob = new TileLoaderJob(key, new TileAsyncLoadJob(source, tAddr), priority);
+			if ((job = mJobs.putIfAbsent(key, newJob)) == null)
+				return newJob;
 		}
+		job.raisePriority(priority);
 		return job;
 	}
 
+	/**
+	 * @return The number of jobs currently in flight.
+	 */
+	public int getJobCount()
+	{
+		return mJobs.size();
+	}
+
+	/**
+	 * Identifies a job by the map sources id and the tiles packed address.
+	 */
+	protected static final class JobKey
+	{
+		final int mSourceID;
+		final long mKey;
+
+		JobKey(ACMapSource source, TileAddress tAddr)
+		{
+			mSourceID = source.getID();
+			mKey = tAddr.getKey();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * mSourceID + (int) (mKey ^ (mKey >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof JobKey))
+				return false;
+			JobKey other = (JobKey) obj;
+			return (mSourceID == other.mSourceID) && (mKey == other.mKey);
+		}
+	}
+
+	/**
+	 * The job as registered in {@link #mJobs}. The {@link FutureTask} completes once with the tile of the {@link TileAsyncLoadJob}, all executions after that
+	 * return immediately. Failed attempts are retried by {@link #sRetryScheduler} in the {@link JobDispatcher} which ran the job, jobs run by other threads
+	 * are retried by {@link #getRetryDispatcher()}. When the load is finished the job removes itself from the registry.
+	 */
+	protected class TileLoaderJob extends TileFuture implements IfTileJob
+	{
+		final JobKey mKey;
+		final TileAsyncLoadJob mJob;
+		volatile JobPriority mPriority;
+		volatile Executor mExecutor = null;
+		/**
+		 * The dispatcher which queued the job last.
+		 */
+		volatile JobDispatcher mDispatcher = null;
+		final AtomicBoolean mRunning = new AtomicBoolean(false);
+
+		TileLoaderJob(JobKey key, TileAsyncLoadJob job, JobPriority priority)
+		{
+			super(job);
+			mKey = key;
+			mJob = job;
+			mPriority = priority;
+		}
+
+		@Override
+		public JobPriority getPriority()
+		{
+			return mPriority;
+		}
+
+		@Override
+		public void setPriority(JobPriority priority)
+		{
+			mPriority = priority;
+		}
+
+		/**
+		 * Lower zoom levels first, they cover more area per tile.
+		 */
+		@Override
+		public int getRank()
+		{
+			return mJob.mTAddr.getZoom();
+		}
+
+		@Override
+		public ACMapSource getMapSource()
+		{
+			return mJob.mMapSource;
+		}
+
+		@Override
+		public TileAddress getAddress()
+		{
+			return mJob.mTAddr;
+		}
+
+		@Override
+		public void setDispatcher(JobDispatcher dispatcher)
+		{
+			mDispatcher = dispatcher;
+		}
+
+		/**
+		 * Raises the priority if <code>priority</code> is higher. A job waiting in a {@link JobDispatcher} is re-queued there, so it moves ahead.
+		 */
+		void raisePriority(JobPriority priority)
+		{
+			synchronized (this)
+			{
+				if (priority.compareTo(mPriority) >= 0)
+					return;
+				mPriority = priority;
+			}
+			JobDispatcher dispatcher = mDispatcher;
+			if (dispatcher != null)
+				dispatcher.requeueJob(this);
+		}
+
+		/**
+		 * Performs one attempt of the load job. If it needs a retry, the job is handed to {@link TileLoader#sRetryScheduler} and executed again after the retry
+		 * delay by the executor which ran it last, so no thread is blocked in between. A job which is done or currently running returns immediately.
+		 */
+		@Override
+		public void run()
+		{
+			if (isDone() || !mRunning.compareAndSet(false, true))
+				return;
+			if (mExecutor == null)
+				mExecutor = JobDispatcher.getCurrentDispatcher();
+			boolean bFinished;
+			try
+			{
+				bFinished = mJob.attempt();
+			}
+			catch (RuntimeException | Error e)
+			{
+				mRunning.set(false);
+				setException(e);
+				return;
+			}
+			mRunning.set(false);
+			if (bFinished)
+				set(mJob.mTile);
+			else
+				scheduleRetry(mJob.getRetryDelay());
+		}
+
+		/**
+		 * Records the executor which will run this job, it is used for the retries. Otherwise the first {@link JobDispatcher} running the job is recorded.
+		 */
+		void setExecutor(Executor executor)
+		{
+			mExecutor = executor;
+		}
+
+		private void scheduleRetry(long delay)
+		{
+			log.debug("retry " + this + " in " + delay + "ms");
+			try
+			{
+				sRetryScheduler.schedule(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						Executor executor = mExecutor;
+						if (isDone())
+							return;
+						// never download in the scheduler thread
+						if (executor == null)
+							executor = getRetryDispatcher();
+						executor.execute(TileLoaderJob.this);
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			}
+			catch (RejectedExecutionException e)
+			{
+				log.error("retry of " + this + " rejected", e);
+				cancel(false);
+			}
+		}
+
+		@Override
+		protected void done()
+		{
+			mJobs.remove(mKey, this);
+			super.done();
+		}
+
+		@Override
+		public String toString()
+		{
+			return "TileLoaderJob " + mJob.mTAddr + " from '" + mJob.mMapSource + "'";
+		}
+	}
+
 	/**
 	 * This class implements the actual tile loader. It usually is executed by a {@link ThreadPoolExecutor} i.e. {@link JobDispatcher}.
 	 * It first tries to load the tile from the tile store for the map source.
@@ -83,11 +378,13 @@ public class TileLoader
 	 * 
 	 * @author humbach
 	 */
-	protected class TileAsyncLoadJob implements Runnable, IfMapSourceListener
+	protected class TileAsyncLoadJob implements Runnable, Callable<Tile>, IfMapSourceListener
 	{
 		final TileAddress mTAddr;
 		final ACMapSource mMapSource;
 		Tile mTile = null;
+		int mAttempts = 0;
+		HostCircuitBreaker mBreaker = null;
 		// boolean fileTilePainted = false;
 		protected IfStoredTile tileStoreEntry = null;
 
@@ -100,70 +397,159 @@ public class TileLoader
 		}
 
 		/**
-		 * Called by the executor, i.e. the {@link JobDispatcher}
+		 * Performs all attempts in the calling thread. Usually the {@link TileLoaderJob} wrapping this job calls {@link #attempt()} instead and schedules the
+		 * retries.
+		 * 
+		 * @return The loaded tile.
+		 */
+		@Override
+		public Tile call()
+		{
+			run();
+			return mTile;
+		}
+
+		/**
+		 * Performs all attempts in the calling thread, sleeping in between.
 		 */
 		@Override
 		public void run()
 		{
-			log.trace(OSMBStrs.RStr("START"));
-			int sleepTime = 100;
-			boolean bLoadOK = false;
-			if (((mTile = mMTC.getTile(mMapSource, mTAddr)) != null) && (mTile.getTileState() != TileState.TS_LOADING) && (mTile.getTileState() != TileState.TS_NEW))
-			{
-				bLoadOK = true;
-				log.debug("use " + mTile + " from mtc");
-			}
-			if ((mTile != null) && (mTile.getTileState() == TileState.TS_LOADING))
+			while (!attempt())
 			{
 				try
 				{
-					log.info(mTile + " size=" + mTile.getImageData().length);
+					Thread.sleep(getRetryDelay());
 				}
-				catch (IOException e)
+				catch (InterruptedException e)
 				{
+					log.debug("loading of " + mTile + " interrupted");
+					return;
 				}
 			}
-			else
+		}
+
+		/**
+		 * Performs one attempt to load the tile. The first attempt tries the mtc and the tile store, then it downloads the tile. Further attempts only try to
+		 * download. The listener is informed when the job is finished.
+		 * 
+		 * @return TRUE if the job is finished, either successfully or because all attempts failed. FALSE if a retry is needed.
+		 */
+		boolean attempt()
+		{
+			log.trace(OSMBStrs.RStr("START"));
+			if (mAttempts++ == 0)
 			{
+				if (((mTile = mMTC.getTile(mMapSource, mTAddr)) != null) && (mTile.getTileState() != TileState.TS_LOADING)
+				    && (mTile.getTileState() != TileState.TS_NEW))
+				{
+					log.debug("use " + mTile + " from mtc");
+					return finish(true);
+				}
+				if ((mTile != null) && (mTile.getTileState() == TileState.TS_LOADING))
+				{
+					log.info(mTile + " is already loading");
+					return finish(false);
+				}
 				mTile = new Tile(mMapSource, mTAddr);
 				log.debug("loading of " + mTile + " started");
-				if (!(bLoadOK = loadTileFromStore()))
+				if (loadTileFromStore())
 				{
-					log.debug(mTile + " not found in tile store");
-					synchronized (mTile)
-					{
-						while (!(bLoadOK = downloadAndUpdateTile()))
-						{
-							try
-							{
-								log.warn("loading of " + mTile + ", sleep stime=" + sleepTime / 1000.0 + "s");
-								mTile.wait(sleepTime);
-								if (sleepTime < 120000)
-									sleepTime *= 2;
-							}
-							catch (InterruptedException e)
-							{
-								log.debug("loading of " + mTile + " interrupted");
-							}
-							catch (Exception e)
-							{
-								log.error("loading of " + mTile + " failed", e);
-							}
-						}
-						log.debug("loading of " + mTile + " finished with stime=" + sleepTime / 1000.0 + "s");
-					}
-				}
-				else
 					log.debug(mTile + " loaded from store");
+					return finish(true);
+				}
+				log.debug(mTile + " not found in tile store");
 			}
-			listener.tileLoadingFinished(mTile, bLoadOK);
-			try
+			HostCircuitBreaker breaker = getCircuitBreaker();
+			if ((breaker != null) && !breaker.allowRequest())
+				log.debug("loading of " + mTile + " rejected, " + breaker);
+			else if (downloadAndUpdateTile(breaker))
+				return finish(true);
+			if (mAttempts >= getMaxAttempts())
 			{
-				log.debug("loading of " + mTile + " finished, size=" + mTile.getImageData().length);
+				log.warn("loading of " + mTile + " failed after " + mAttempts + " attempts");
+				if (mTile.getTileState() != TileState.TS_EXPIRED)
+					mTile.setErrorImage();
+				return finish(false);
 			}
-			catch (IOException e)
+			log.debug("loading of " + mTile + " failed, attempt " + mAttempts + " of " + getMaxAttempts());
+			return false;
+		}
+
+		/**
+		 * Informs the listener.
+		 * 
+		 * @return Always TRUE, the job is finished.
+		 */
+		private boolean finish(boolean bLoadOK)
+		{
+			if (listener != null)
+				listener.tileLoadingFinished(mTile, bLoadOK);
+			if (mTile.hasImageData())
 			{
+				try
+				{
+					log.debug("loading of " + mTile + " finished, ok=" + bLoadOK + ", size=" + mTile.getImageData().length);
+				}
+				catch (IOException e)
+				{
+				}
 			}
+			else
+				log.debug("loading of " + mTile + " finished, ok=" + bLoadOK);
+			return true;
+		}
+
+		/**
+		 * @return The number of attempts to download a tile: the first plus {@link ACSettings#getDownloadRetryCount()} retries.
+		 */
+		int getMaxAttempts()
+		{
+			ACSettings settings = ACSettings.getInstance();
+			return 1 + ((settings != null) ? Math.max(0, settings.getDownloadRetryCount()) : 1);
+		}
+
+		/**
+		 * The delay before the next attempt grows exponentially from {@link TileLoader#RETRY_BASE_DELAY} up to {@link TileLoader#RETRY_MAX_DELAY}. It is
+		 * randomized between half and full value, so failed tiles do not retry in lockstep. If the hosts circuit is open, the delay lasts at least until it
+		 * allows a trial request.
+		 * 
+		 * @return The delay in ms.
+		 */
+		long getRetryDelay()
+		{
+			long delay = RETRY_BASE_DELAY << Math.min(mAttempts - 1, 16);
+			delay = Math.min(delay, RETRY_MAX_DELAY);
+			delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+			HostCircuitBreaker breaker = getCircuitBreaker();
+			if (breaker != null)
+				delay = Math.max(delay, breaker.getRemainingOpenTime());
+			return delay;
+		}
+
+		/**
+		 * @return The circuit breaker for the host of an online map source, null for all other map sources.
+		 */
+		HostCircuitBreaker getCircuitBreaker()
+		{
+			if (!(mMapSource instanceof IfOnlineMapSource))
+				return null;
+			if (mBreaker == null)
+			{
+				String host = mMapSource.getName();
+				try
+				{
+					String url = ((IfOnlineMapSource) mMapSource).getTileUrl(mTAddr);
+					if (url != null)
+						host = new URL(url).getHost();
+				}
+				catch (MalformedURLException | RuntimeException e)
+				{
+					log.debug("no host for " + mMapSource + ", using its name");
+				}
+				mBreaker = HostCircuitBreaker.getInstance(host);
+			}
+			return mBreaker;
 		}
 
 		/**
@@ -215,9 +601,14 @@ public class TileLoader
 
 		/**
 		 * This loads the tile from the online map source. When the tile is downloaded successfully, it is put in the tile store by
-		 * {@link ACMapSource.loadTile(TileAddress tAddr)}.
+		 * {@link ACMapSource.loadTile(TileAddress tAddr)}.<br>
+		 * The map sources catch download errors and return null, so only a tile received counts as success for the circuit breaker. The outcome is recorded in
+		 * any case, so a trial request of a half open circuit is always released.
+		 * 
+		 * @param breaker
+		 *          The circuit breaker to receive the outcome, may be null.
 		 */
-		private boolean downloadAndUpdateTile()
+		private boolean downloadAndUpdateTile(HostCircuitBreaker breaker)
 		{
 			log.trace(OSMBStrs.RStr("START"));
 			boolean bLoadOK = false;
@@ -241,7 +632,16 @@ public class TileLoader
 			catch (Exception e)
 			{
 				log.error("Downloading of " + mTile + " failed", e);
-				mTile.setErrorImage();
+			}
+			finally
+			{
+				if (breaker != null)
+				{
+					if (bLoadOK)
+						breaker.recordSuccess();
+					else
+						breaker.recordFailure();
+				}
 			}
 			return bLoadOK;
 		}
@@ -249,14 +649,16 @@ public class TileLoader
 		@Override
 		public void tileDownloaded(int size)
 		{
-			listener.tileDownloaded(mTile, size);
+			if (listener != null)
+				listener.tileDownloaded(mTile, size);
 			log.info(mTile + " loaded from online map source, size=" + size);
 		}
 
 		@Override
 		public void tileLoadedFromCache(int size)
 		{
-			listener.tileLoadedFromCache(mTile, size);
+			if (listener != null)
+				listener.tileLoadedFromCache(mTile, size);
 			log.info(mTile + " loaded from mtc, size=" + size);
 		}
 	}
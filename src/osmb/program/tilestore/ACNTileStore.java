@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.log4j.Logger;
 
@@ -30,6 +31,8 @@ import osmb.mapsources.TileAddress;
 import osmb.program.ACSettings;
 import osmb.program.tiles.Tile;
 import osmb.program.tiles.TileImageType;
+import osmb.program.tilestore.pack.PackTileStore;
+import osmb.program.tilestore.sqlitedb.SQLiteDbTileStore;
 
 /**
  * abstract class
@@ -48,6 +51,11 @@ public abstract class ACNTileStore
 
 	protected static boolean sInitialized = false;
 
+	/**
+	 * The listeners to be notified of tiles written into any tile store.
+	 */
+	private static final CopyOnWriteArrayList<IfTileStoreListener> sListeners = new CopyOnWriteArrayList<>();
+
 	protected static synchronized void init()
 	{
 		sTileStoreDir = ACSettings.getInstance().getTileStoreDirectory().toPath();
@@ -58,11 +66,60 @@ public abstract class ACNTileStore
 
 	protected boolean mInitialized = false;
 
-	protected boolean isInitialized()
+	public boolean isInitialized()
 	{
 		return mInitialized;
 	}
 
+	/**
+	 * Opens the tile store of the map source in the format selected by {@link ACSettings#getTileStoreFormat()}.
+	 */
+	public static ACNTileStore openTileStore(ACMapSource mapSource) throws TileStoreException
+	{
+		switch (ACSettings.getInstance().getTileStoreFormat())
+		{
+			case PACK:
+				return PackTileStore.prepareTileStore(mapSource);
+			default:
+				return SQLiteDbTileStore.prepareTileStore(mapSource);
+		}
+	}
+
+	/**
+	 * Registers a listener to be notified whenever the image of a tile is written into a tile store.
+	 */
+	public static void addTileStoreListener(IfTileStoreListener listener)
+	{
+		sListeners.addIfAbsent(listener);
+	}
+
+	public static void removeTileStoreListener(IfTileStoreListener listener)
+	{
+		sListeners.remove(listener);
+	}
+
+	/**
+	 * Tile stores call this for each tile image written, but not for updates of the expiration only.
+	 */
+	protected static void fireTileStored(ACMapSource mapSource, TileAddress tAddr)
+	{
+		for (IfTileStoreListener listener : sListeners)
+			listener.tileStored(mapSource, tAddr);
+	}
+
+	/**
+	 * Limits the servers expiration time to the range given by the settings, see {@link #isTileExpired(Tile)}.
+	 * 
+	 * @return The time the tile expires in ms since epoch.
+	 */
+	protected static long getEffectiveExpiration(long timeLastModified, long timeExpires)
+	{
+		ACSettings settings = ACSettings.getInstance();
+		long minExp = timeLastModified + settings.getTileMinExpirationTime();
+		long maxExp = timeLastModified + settings.getTileMaxExpirationTime();
+		return Math.max(minExp, Math.min(maxExp, timeExpires));
+	}
+
 	/**
 	 * This should give the space on disk and the number of tiles for the specified tile store.
 	 * 
@@ -126,8 +183,39 @@ public abstract class ACNTileStore
 
 	public abstract void putTile(Tile tile);
 
+	/**
+	 * This updates only the expiration of a tile already in the store, i.e. after the server confirmed the tile as not modified. The tile counts as
+	 * revalidated now, so its modification time is set to now as well. This default implementation rewrites the whole tile, stores should override it with a
+	 * cheaper update.
+	 * 
+	 * @param tAddr
+	 *          The tiles address.
+	 * @param timeExpires
+	 *          The new expiration timestamp.
+	 */
+	public void updateTileExpiration(TileAddress tAddr, long timeExpires)
+	{
+		Tile tile = getTile(tAddr);
+		if (tile != null)
+		{
+			tile.setMod(new Date());
+			tile.setExp(new Date(timeExpires));
+			putTile(tile);
+		}
+	}
+
 	public abstract Tile getTile(TileAddress tAddr);
 
+	/**
+	 * Waits until all tiles put so far are written. Stores writing synchronously need not override this.
+	 * 
+	 * @throws IOException
+	 *           If some of the tiles could not be written.
+	 */
+	public void flush() throws InterruptedException, IOException
+	{
+	}
+
 	/**
 	 * This checks if a requested tile exists in the tile store instance.
 	 */
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmb.program.tilestore;
+
+/**
+ * Receives the progress of a {@link TileStoreMigrator}. The methods are called from the migration threads.
+ * 
+ * @author humbach
+ */
+public interface IfMigrationListener
+{
+	/**
+	 * @param tilesDone
+	 *          The number of tiles of the old store processed so far, including those of earlier runs.
+	 * @param tilesTotal
+	 *          The number of tiles in the old store.
+	 */
+	public void migrationProgress(String storeName, long tilesDone, long tilesTotal);
+
+	/**
+	 * @param complete
+	 *          TRUE if all tiles of the store have been migrated, FALSE if the migration has been stopped or has failed. It will be resumed by the next run.
+	 */
+	public void migrationFinished(String storeName, long tilesDone, boolean complete);
+}
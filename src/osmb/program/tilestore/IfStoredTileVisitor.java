@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmb.program.tilestore;
+
+import java.io.IOException;
+
+/**
+ * Receives the tiles of a tile store one by one, see {@link osmb.program.tilestore.berkeleydb.SiBerkeleyDbTileStore#visitTiles(String, osmb.mapsources.TileAddress,
+ * IfStoredTileVisitor)}.
+ * 
+ * @author humbach
+ */
+public interface IfStoredTileVisitor
+{
+	/**
+	 * @return TRUE to continue with the next tile, FALSE to stop.
+	 */
+	public boolean visit(IfStoredTile tile) throws IOException, InterruptedException;
+}
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmb.program.tilestore;
+
+import osmb.mapsources.ACMapSource;
+import osmb.mapsources.TileAddress;
+
+/**
+ * Is notified when the image of a tile has been written into a tile store, see {@link ACNTileStore#addTileStoreListener(IfTileStoreListener)}. Caches
+ * built from the tiles, like the {@link osmb.program.mapstore.sqlitedb.SQLiteDbMapStore}, use this to drop what has become outdated.
+ * 
+ * @author humbach
+ */
+public interface IfTileStoreListener
+{
+	/**
+	 * This is called in the thread writing the tile, so it should return quickly.
+	 * 
+	 * @param mapSource
+	 *          The map source of the tile store.
+	 * @param tAddr
+	 *          The address of the tile written.
+	 */
+	public void tileStored(ACMapSource mapSource, TileAddress tAddr);
+}
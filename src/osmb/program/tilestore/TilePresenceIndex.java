@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmb.program.tilestore;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import osmb.mapsources.TileAddress;
+
+/**
+ * A compact in-memory index of the tiles present in a tile store and their expiration times. It answers presence and freshness queries without touching the
+ * store itself.<br>
+ * The tiles of each zoom level are grouped into blocks of {@value #BLOCK_SIZE}x{@value #BLOCK_SIZE} tiles. Only blocks holding at least one tile are allocated.
+ * A block holds a presence bitmap and the expiration time of each tile in minutes. The index is thread safe.
+ * 
+ * @author humbach
+ */
+public class TilePresenceIndex
+{
+	// class/static data
+	public static final int BLOCK_BITS = 4;
+	public static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+	private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+	private static final long MINUTE = 60000L;
+
+	/**
+	 * The tiles of one block. The presence bits and the expirations are indexed by (y * {@link TilePresenceIndex#BLOCK_SIZE} + x) within the block.
+	 */
+	protected static class Block
+	{
+		final long[] mBits = new long[BLOCK_SIZE * BLOCK_SIZE / 64];
+		final int[] mExp = new int[BLOCK_SIZE * BLOCK_SIZE];
+		int mCount = 0;
+
+		boolean isSet(int idx)
+		{
+			return (mBits[idx >> 6] & (1L << idx)) != 0;
+		}
+	}
+
+	// instance data
+	private final HashMap<Long, Block> mBlocks = new HashMap<>();
+	private int mCount = 0;
+
+	private static Long blockKey(int x, int y, int zoom)
+	{
+		return TileAddress.getKey(x >> BLOCK_BITS, y >> BLOCK_BITS, zoom);
+	}
+
+	private static int blockIdx(int x, int y)
+	{
+		return ((y & BLOCK_MASK) << BLOCK_BITS) | (x & BLOCK_MASK);
+	}
+
+	/**
+	 * Adds the tile or updates its expiration.
+	 * 
+	 * @param timeExpires
+	 *          The time the tile expires in ms since epoch. It is held with a resolution of one minute.
+	 */
+	public synchronized void put(int x, int y, int zoom, long timeExpires)
+	{
+		Long key = blockKey(x, y, zoom);
+		Block block = mBlocks.get(key);
+		if (block == null)
+		{
+			block = new Block();
+			mBlocks.put(key, block);
+		}
+		int idx = blockIdx(x, y);
+		if (!block.isSet(idx))
+		{
+			block.mBits[idx >> 6] |= (1L << idx);
+			block.mCount++;
+			mCount++;
+		}
+		block.mExp[idx] = (int) Math.min(Integer.MAX_VALUE, Math.max(0, timeExpires / MINUTE));
+	}
+
+	public void put(TileAddress tAddr, long timeExpires)
+	{
+		put(tAddr.getX(), tAddr.getY(), tAddr.getZoom(), timeExpires);
+	}
+
+	/**
+	 * Updates the expiration of the tile if it is present.
+	 */
+	public synchronized void updateExpiration(int x, int y, int zoom, long timeExpires)
+	{
+		Block block = mBlocks.get(blockKey(x, y, zoom));
+		int idx = blockIdx(x, y);
+		if ((block != null) && block.isSet(idx))
+			block.mExp[idx] = (int) Math.min(Integer.MAX_VALUE, Math.max(0, timeExpires / MINUTE));
+	}
+
+	public synchronized void remove(int x, int y, int zoom)
+	{
+		Long key = blockKey(x, y, zoom);
+		Block block = mBlocks.get(key);
+		int idx = blockIdx(x, y);
+		if ((block != null) && block.isSet(idx))
+		{
+			block.mBits[idx >> 6] &= ~(1L << idx);
+			block.mExp[idx] = 0;
+			mCount--;
+			if (--block.mCount == 0)
+				mBlocks.remove(key);
+		}
+	}
+
+	public synchronized boolean contains(int x, int y, int zoom)
+	{
+		Block block = mBlocks.get(blockKey(x, y, zoom));
+		return (block != null) && block.isSet(blockIdx(x, y));
+	}
+
+	public boolean contains(TileAddress tAddr)
+	{
+		return contains(tAddr.getX(), tAddr.getY(), tAddr.getZoom());
+	}
+
+	/**
+	 * @return The expiration time in ms since epoch, or -1 if the tile is not present.
+	 */
+	public synchronized long getExpiration(int x, int y, int zoom)
+	{
+		Block block = mBlocks.get(blockKey(x, y, zoom));
+		int idx = blockIdx(x, y);
+		if ((block == null) || !block.isSet(idx))
+			return -1;
+		return block.mExp[idx] * MINUTE;
+	}
+
+	/**
+	 * @return TRUE if the tile is not present or has expired at the specified time.
+	 */
+	public boolean isExpired(TileAddress tAddr, long now)
+	{
+		long exp = getExpiration(tAddr.getX(), tAddr.getY(), tAddr.getZoom());
+		return (exp < 0) || (exp < now);
+	}
+
+	/**
+	 * Counts the tiles present per tile of a coarser zoom level. The tiles counted are those of zoom level <code>zoom + shift</code>, each counted for the tile
+	 * of <code>zoom</code> containing it. With <code>shift</code> = 0 the counts are 0 or 1.<br>
+	 * The region is given in tile indices of <code>zoom</code>, both corners inclusive. Depending on the size of the region either the blocks covering it are
+	 * looked up, or all blocks are scanned once.
+	 * 
+	 * @param counts
+	 *          Receives the counts, indexed by (y - minY) * (maxX - minX + 1) + (x - minX).
+	 */
+	public synchronized void countTiles(int zoom, int shift, int minX, int minY, int maxX, int maxY, int[] counts) throws InterruptedException
+	{
+		int width = maxX - minX + 1;
+		int tileZoom = zoom + shift;
+		long tMinX = (long) minX << shift, tMaxX = (((long) maxX + 1) << shift) - 1;
+		long tMinY = (long) minY << shift, tMaxY = (((long) maxY + 1) << shift) - 1;
+		long bMinX = tMinX >> BLOCK_BITS, bMaxX = tMaxX >> BLOCK_BITS;
+		long bMinY = tMinY >> BLOCK_BITS, bMaxY = tMaxY >> BLOCK_BITS;
+		if ((bMaxX - bMinX + 1) * (bMaxY - bMinY + 1) <= mBlocks.size())
+		{
+			for (long by = bMinY; by <= bMaxY; by++)
+			{
+				for (long bx = bMinX; bx <= bMaxX; bx++)
+				{
+					Block block = mBlocks.get(TileAddress.getKey((int) bx, (int) by, tileZoom));
+					if (block != null)
+						countBlock(block, (int) bx, (int) by, shift, tMinX, tMinY, tMaxX, tMaxY, minX, minY, width, counts);
+				}
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedException();
+			}
+		}
+		else
+		{
+			long keyMask = (1L << TileAddress.KEY_IDX_BITS) - 1;
+			for (Map.Entry<Long, Block> entry : mBlocks.entrySet())
+			{
+				long key = entry.getKey();
+				if ((key >>> (2 * TileAddress.KEY_IDX_BITS)) != tileZoom)
+					continue;
+				long bx = (key >> TileAddress.KEY_IDX_BITS) & keyMask;
+				long by = key & keyMask;
+				if ((bx >= bMinX) && (bx <= bMaxX) && (by >= bMinY) && (by <= bMaxY))
+					countBlock(entry.getValue(), (int) bx, (int) by, shift, tMinX, tMinY, tMaxX, tMaxY, minX, minY, width, counts);
+			}
+		}
+	}
+
+	private static void countBlock(Block block, int bx, int by, int shift, long tMinX, long tMinY, long tMaxX, long tMaxY, int minX, int minY, int width,
+	    int[] counts)
+	{
+		for (int w = 0; w < block.mBits.length; w++)
+		{
+			long bits = block.mBits[w];
+			while (bits != 0)
+			{
+				int idx = (w << 6) | Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				long x = ((long) bx << BLOCK_BITS) | (idx & BLOCK_MASK);
+				long y = ((long) by << BLOCK_BITS) | (idx >> BLOCK_BITS);
+				if ((x >= tMinX) && (x <= tMaxX) && (y >= tMinY) && (y <= tMaxY))
+					counts[(int) (((y >> shift) - minY) * width + ((x >> shift) - minX))]++;
+			}
+		}
+	}
+
+	/**
+	 * @return The number of tiles present.
+	 */
+	public synchronized int size()
+	{
+		return mCount;
+	}
+
+	public synchronized void clear()
+	{
+		mBlocks.clear();
+		mCount = 0;
+	}
+}
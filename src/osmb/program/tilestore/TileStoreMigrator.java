@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmb.program.tilestore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.sleepycat.je.DatabaseException;
+
+import osmb.mapsources.ACMapSource;
+import osmb.mapsources.TileAddress;
+import osmb.program.ACSettings;
+import osmb.program.DelayedInterruptThread;
+import osmb.program.tilestore.berkeleydb.SiBerkeleyDbTileStore;
+import osmb.utilities.OSMBStrs;
+
+/**
+ * Moves all tiles of the old {@link SiBerkeleyDbTileStore} into the new tile stores of the map sources, see {@link ACMapSource#getNTileStore()}.
+ * <p>
+ * Each store is read with one cursor in key order. The encoded tiles are written unchanged, with their download time, expiration and eTag. Tiles already in
+ * the new store, e.g. migrated on demand by the {@link osmb.program.tiles.TileLoader}, are left alone. Several stores are migrated in parallel.
+ * <p>
+ * Every {@link #CHECKPOINT_TILES} tiles the new store is flushed and the address of the last tile is saved in a state file next to the new store. A
+ * migration stopped or failed is resumed from there by the next run. A store completely migrated is marked as done and skipped afterwards.
+ * 
+ * @author humbach
+ */
+public class TileStoreMigrator
+{
+	// class/static data
+	protected static Logger log = Logger.getLogger(TileStoreMigrator.class);
+
+	public static final int CHECKPOINT_TILES = 10000;
+	/**
+	 * The number of stores migrated at a time. Each one keeps its old database open until it is done.
+	 */
+	public static final int DEFAULT_PARALLELISM = 2;
+	private static final String EXT_STATE = "migration";
+	private static final String KEY_ZOOM = "zoom";
+	private static final String KEY_X = "x";
+	private static final String KEY_Y = "y";
+	private static final String KEY_TILES = "tiles";
+	private static final String KEY_DONE = "done";
+
+	// instance data
+	private final List<ACMapSource> mMapSources;
+	private final int mParallelism;
+	private IfMigrationListener mListener = null;
+
+	/**
+	 * @param mapSources
+	 *          The map sources whose old stores are to be migrated. Old stores without a map source are not migrated.
+	 * @param parallelism
+	 *          The number of stores to migrate at the same time.
+	 */
+	public TileStoreMigrator(Collection<? extends ACMapSource> mapSources, int parallelism)
+	{
+		mMapSources = new ArrayList<ACMapSource>(mapSources);
+		mParallelism = Math.max(1, parallelism);
+	}
+
+	public void setListener(IfMigrationListener listener)
+	{
+		mListener = listener;
+	}
+
+	/**
+	 * Migrates the stores of all map sources. It returns when all are done, failed or the calling thread has been interrupted.
+	 * 
+	 * @return The number of tiles written into the new stores.
+	 */
+	public long migrateAll() throws InterruptedException
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		ExecutorService pool = Executors.newFixedThreadPool(mParallelism, DelayedInterruptThread.createThreadFactory());
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		for (final ACMapSource mapSource : mMapSources)
+		{
+			results.add(pool.submit(new Callable<Long>()
+			{
+				@Override
+				public Long call() throws Exception
+				{
+					return migrate(mapSource);
+				}
+			}));
+		}
+		pool.shutdown();
+		long written = 0;
+		try
+		{
+			for (int i = 0; i < results.size(); i++)
+			{
+				try
+				{
+					written += results.get(i).get();
+				}
+				catch (ExecutionException e)
+				{
+					log.error("migration of " + mMapSources.get(i).getName() + " failed", e.getCause());
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			pool.shutdownNow();
+			throw e;
+		}
+		log.info(written + " tiles migrated from " + mMapSources.size() + " stores");
+		return written;
+	}
+
+	/**
+	 * Migrates the old store of one map source, resuming a previous run.
+	 * 
+	 * @return The number of tiles written into the new store.
+	 */
+	public long migrate(final ACMapSource mapSource) throws IOException, InterruptedException
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		final String name = mapSource.getName();
+		final Path pState = ACSettings.getInstance().getTileStoreDirectory().toPath().resolve(name + "." + EXT_STATE);
+		Properties state = loadState(pState);
+		if (Boolean.parseBoolean(state.getProperty(KEY_DONE)))
+		{
+			log.debug(name + " already migrated");
+			return 0;
+		}
+		final SiBerkeleyDbTileStore oldStore = SiBerkeleyDbTileStore.getInstance();
+		if ((oldStore == null) || !oldStore.storeExists(mapSource))
+			return 0;
+		final ACNTileStore newStore = mapSource.getNTileStore();
+		final long total = oldStore.getNrOfTiles(name);
+		TileAddress fromAddr = null;
+		if (state.getProperty(KEY_ZOOM) != null)
+			fromAddr = new TileAddress(Integer.parseInt(state.getProperty(KEY_X)), Integer.parseInt(state.getProperty(KEY_Y)),
+			    Integer.parseInt(state.getProperty(KEY_ZOOM)));
+		final long[] counts = new long[] {Long.parseLong(state.getProperty(KEY_TILES, "0")), 0};
+		log.info("migrating " + name + ", " + total + " tiles" + ((fromAddr != null) ? ", resuming behind " + fromAddr : ""));
+		long start = System.currentTimeMillis();
+		boolean bComplete = false;
+		try
+		{
+			oldStore.visitTiles(name, fromAddr, new IfStoredTileVisitor()
+			{
+				@Override
+				public boolean visit(IfStoredTile tile) throws IOException, InterruptedException
+				{
+					TileAddress tAddr = tile.getTAddr();
+					byte[] data = tile.getData();
+					if ((data.length > 0) && !newStore.containsTile(tAddr))
+					{
+						long timeExpires = tile.getTimeExpires();
+						if (timeExpires < 0)
+							timeExpires = tile.getTimeDownloaded() + ACSettings.getTileDefaultExpirationTime();
+						newStore.putTileData(data, tAddr, tile.getTimeDownloaded(), timeExpires, tile.getETag());
+						counts[1]++;
+					}
+					if (++counts[0] % CHECKPOINT_TILES == 0)
+					{
+						newStore.flush();
+						saveState(pState, tAddr, counts[0], false);
+						if (mListener != null)
+							mListener.migrationProgress(name, counts[0], total);
+					}
+					return true;
+				}
+			});
+			newStore.flush();
+			saveState(pState, null, counts[0], true);
+			bComplete = true;
+		}
+		catch (DatabaseException e)
+		{
+			throw new IOException("reading old store " + name + " failed", e);
+		}
+		finally
+		{
+			log.info(name + ": " + counts[1] + " tiles written, " + counts[0] + " of " + total + " processed in " + (System.currentTimeMillis() - start) + "ms"
+			    + (bComplete ? "" : ", incomplete"));
+			if (mListener != null)
+				mListener.migrationFinished(name, counts[0], bComplete);
+		}
+		return counts[1];
+	}
+
+	private static Properties loadState(Path pState) throws IOException
+	{
+		Properties state = new Properties();
+		if (Files.exists(pState))
+		{
+			try (InputStream in = Files.newInputStream(pState))
+			{
+				state.load(in);
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Saves the state, replacing the previous one as a whole.
+	 */
+	private static void saveState(Path pState, TileAddress lastAddr, long tiles, boolean bDone) throws IOException
+	{
+		Properties state = new Properties();
+		if (lastAddr != null)
+		{
+			state.setProperty(KEY_ZOOM, Integer.toString(lastAddr.getZoom()));
+			state.setProperty(KEY_X, Integer.toString(lastAddr.getX()));
+			state.setProperty(KEY_Y, Integer.toString(lastAddr.getY()));
+		}
+		state.setProperty(KEY_TILES, Long.toString(tiles));
+		state.setProperty(KEY_DONE, Boolean.toString(bDone));
+		Path tmp = pState.resolveSibling(pState.getFileName() + ".tmp");
+		try (OutputStream out = Files.newOutputStream(tmp))
+		{
+			state.store(out, "tile store migration");
+		}
+		Files.move(tmp, pState, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -51,6 +51,7 @@ import osmb.program.DelayedInterruptThread;
 import osmb.program.tiles.Tile;
 import osmb.program.tilestore.ACTileStore;
 import osmb.program.tilestore.IfStoredTile;
+import osmb.program.tilestore.IfStoredTileVisitor;
 import osmb.program.tilestore.IfTileStoreEntry;
 import osmb.program.tilestore.TileStoreException;
 import osmb.program.tilestore.TileStoreInfo;
@@ -286,6 +287,39 @@ public class SiBerkeleyDbTileStore extends ACTileStore
 		}
 	}
 
+	/**
+	 * Runs over the tiles of a store in key order, i.e. by zoom, x and y, without loading them all at once.
+	 * 
+	 * @param fromAddr
+	 *          The tile to start behind, null to start with the first tile.
+	 * @return The number of tiles visited.
+	 */
+	public long visitTiles(String storeName, TileAddress fromAddr, IfStoredTileVisitor visitor) throws DatabaseException, IOException, InterruptedException
+	{
+		TileDatabase db;
+		if (tileDbMap == null)
+			return 0;
+		synchronized (tileDbMap)
+		{
+			db = getTileDatabase(storeName);
+			if (db == null)
+				return 0;
+			// pinned, so cleanupDatabases() leaves it open during the visit
+			db.inUse++;
+		}
+		try
+		{
+			return db.visitTiles((fromAddr == null) ? null : new TileDbKey(fromAddr.getX(), fromAddr.getY(), fromAddr.getZoom()), visitor);
+		}
+		finally
+		{
+			synchronized (tileDbMap)
+			{
+				db.inUse--;
+			}
+		}
+	}
+
 	@Override
 	public TileStoreInfo getStoreInfo(String storeName) throws InterruptedException
 	{
@@ -502,7 +536,13 @@ public class SiBerkeleyDbTileStore extends ACTileStore
 			return;
 		synchronized (tileDbMap)
 		{
-			List<TileDatabase> list = new ArrayList<TileDatabase>(tileDbMap.values());
+			List<TileDatabase> list = new ArrayList<TileDatabase>(tileDbMap.size());
+			// databases in use by a visitor are never closed
+			for (TileDatabase db : tileDbMap.values())
+			{
+				if (db.inUse == 0)
+					list.add(db);
+			}
 			Collections.sort(list, new Comparator<TileDatabase>()
 			{
 
@@ -639,6 +679,10 @@ public class SiBerkeleyDbTileStore extends ACTileStore
 		boolean dbClosed = false;
 
 		long lastAccess;
+		/**
+		 * The number of running {@link #visitTiles(TileDbKey, IfStoredTileVisitor)}. Guarded by tileDbMap.
+		 */
+		int inUse = 0;
 
 		public TileDatabase(String mapSourceName) throws IOException, EnvironmentLockedException, DatabaseException
 		{
@@ -717,6 +761,37 @@ public class SiBerkeleyDbTileStore extends ACTileStore
 			return tileIndex;
 		}
 
+		/**
+		 * Runs a cursor over the tiles, starting behind fromKey. The caller has to pin the database by {@link #inUse}, so it is not closed meanwhile, see
+		 * {@link SiBerkeleyDbTileStore#visitTiles(String, TileAddress, IfStoredTileVisitor)}.
+		 */
+		public long visitTiles(TileDbKey fromKey, IfStoredTileVisitor visitor) throws DatabaseException, IOException, InterruptedException
+		{
+			long cnt = 0;
+			EntityCursor<TileDbEntry> cursor = (fromKey == null) ? tileIndex.entities() : tileIndex.entities(fromKey, false, null, false);
+			try
+			{
+				TileDbEntry entry;
+				while ((entry = cursor.next()) != null)
+				{
+					cnt++;
+					if (!visitor.visit(entry))
+						break;
+					if ((cnt & 0x3FF) == 0)
+					{
+						lastAccess = System.currentTimeMillis();
+						if (Thread.currentThread().isInterrupted())
+							throw new InterruptedException();
+					}
+				}
+			}
+			finally
+			{
+				cursor.close();
+			}
+			return cnt;
+		}
+
 		public BufferedImage getCacheCoverage(int zoom, Point tileNumMin, Point tileNumMax) throws DatabaseException, InterruptedException
 		{
 			log.debug("Loading cache coverage for region " + tileNumMin + " " + tileNumMax + " of zoom level " + zoom);
@@ -0,0 +1,359 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmb.program.tilestore.pack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import osmb.mapsources.TileAddress;
+
+/**
+ * The index of a {@link PackTileStore}: tile key, see {@link TileAddress#getKey()}, to the location of the tiles latest record and its meta data.<br>
+ * The bulk of the entries is held in parallel arrays sorted by key, which are searched binary. New keys are collected in a small hash map and merged into
+ * the arrays when it has grown large enough. Updates of existing keys are made in place.<br>
+ * The index is not thread safe, the store guards it.
+ * 
+ * @author humbach
+ */
+public class PackIndex
+{
+	// class/static data
+	private static final int INDEX_MAGIC = 0x54504B49; // "TPKI"
+	private static final int INDEX_VERSION = 1;
+	private static final int MIN_MERGE = 4096;
+
+	/**
+	 * One index entry. Entries handed out are copies.
+	 */
+	public static class Entry
+	{
+		public int mSeg;
+		public int mPos;
+		public int mLength;
+		/**
+		 * Length of the image data, -1 for an error tile.
+		 */
+		public int mDataLen;
+		public long mMod;
+		public long mExp;
+		public String mETag;
+
+		public Entry()
+		{
+		}
+
+		public Entry(int seg, int pos, int length, int dataLen, long mod, long exp, String eTag)
+		{
+			mSeg = seg;
+			mPos = pos;
+			mLength = length;
+			mDataLen = dataLen;
+			mMod = mod;
+			mExp = exp;
+			mETag = eTag;
+		}
+
+		/**
+		 * @return The position of the image data in the segment.
+		 */
+		public int getDataPos()
+		{
+			return mPos + mLength - Math.max(0, mDataLen);
+		}
+
+		Entry copy()
+		{
+			return new Entry(mSeg, mPos, mLength, mDataLen, mMod, mExp, mETag);
+		}
+	}
+
+	// instance data
+	private long[] mKeys = new long[0];
+	private int[] mSegs = new int[0];
+	private int[] mPositions = new int[0];
+	private int[] mLengths = new int[0];
+	private int[] mDataLens = new int[0];
+	private long[] mMods = new long[0];
+	private long[] mExps = new long[0];
+	private String[] mETags = new String[0];
+	private HashMap<Long, Entry> mDelta = new HashMap<>();
+
+	public int size()
+	{
+		return mKeys.length + mDelta.size();
+	}
+
+	/**
+	 * @return A copy of the entry, or null.
+	 */
+	public Entry get(long key)
+	{
+		int i = Arrays.binarySearch(mKeys, key);
+		if (i >= 0)
+			return entry(i);
+		Entry e = mDelta.get(key);
+		return (e == null) ? null : e.copy();
+	}
+
+	/**
+	 * Sets the entry of the key.
+	 * 
+	 * @return The entry replaced, or null.
+	 */
+	public Entry put(long key, Entry e)
+	{
+		int i = Arrays.binarySearch(mKeys, key);
+		if (i >= 0)
+		{
+			Entry old = entry(i);
+			set(i, e);
+			return old;
+		}
+		Entry old = mDelta.put(key, e.copy());
+		if (mDelta.size() >= Math.max(MIN_MERGE, mKeys.length / 8))
+			merge();
+		return old;
+	}
+
+	/**
+	 * Updates the modification and expiration time of the key, if it is present. A modification time of 0 keeps the current one.
+	 * 
+	 * @return TRUE if the key is present.
+	 */
+	public boolean updateExpiration(long key, long mod, long exp)
+	{
+		int i = Arrays.binarySearch(mKeys, key);
+		if (i >= 0)
+		{
+			if (mod > 0)
+				mMods[i] = mod;
+			mExps[i] = exp;
+			return true;
+		}
+		Entry e = mDelta.get(key);
+		if (e != null)
+		{
+			if (mod > 0)
+				e.mMod = mod;
+			e.mExp = exp;
+		}
+		return (e != null);
+	}
+
+	public void clear()
+	{
+		mDelta.clear();
+		resize(0);
+	}
+
+	/**
+	 * Merges the new keys into the sorted arrays. Afterwards all entries can be accessed by their position, see {@link #getKey(int)} and {@link #entry(int)}.
+	 */
+	public void merge()
+	{
+		if (mDelta.isEmpty())
+			return;
+		long[] newKeys = new long[mDelta.size()];
+		int n = 0;
+		for (Long key : mDelta.keySet())
+			newKeys[n++] = key;
+		Arrays.sort(newKeys);
+		long[] keys = mKeys;
+		int[] segs = mSegs, positions = mPositions, lengths = mLengths, dataLens = mDataLens;
+		long[] mods = mMods, exps = mExps;
+		String[] eTags = mETags;
+		resize(keys.length + newKeys.length);
+		int i = 0, j = 0, k = 0;
+		while ((i < keys.length) || (j < newKeys.length))
+		{
+			if ((j >= newKeys.length) || ((i < keys.length) && (keys[i] < newKeys[j])))
+			{
+				mKeys[k] = keys[i];
+				set(k, new Entry(segs[i], positions[i], lengths[i], dataLens[i], mods[i], exps[i], eTags[i]));
+				i++;
+			}
+			else
+			{
+				mKeys[k] = newKeys[j];
+				set(k, mDelta.get(newKeys[j]));
+				j++;
+			}
+			k++;
+		}
+		mDelta.clear();
+	}
+
+	/**
+	 * @return The key at position i of the sorted arrays. Only valid after {@link #merge()}.
+	 */
+	public long getKey(int i)
+	{
+		return mKeys[i];
+	}
+
+	/**
+	 * @return A copy of the entry at position i of the sorted arrays. Only valid after {@link #merge()}.
+	 */
+	public Entry entry(int i)
+	{
+		return new Entry(mSegs[i], mPositions[i], mLengths[i], mDataLens[i], mMods[i], mExps[i], mETags[i]);
+	}
+
+	/**
+	 * Marks the tiles present in a region of one zoom level. As the keys are ordered by zoom, x, y, each column of the region is one range of the arrays.
+	 * 
+	 * @param coverage
+	 *          Receives TRUE for each tile present, indexed by (y - minY) * (maxX - minX + 1) + (x - minX).
+	 */
+	public void getCoverage(int zoom, int minX, int minY, int maxX, int maxY, boolean[] coverage) throws InterruptedException
+	{
+		merge();
+		int width = maxX - minX + 1;
+		for (int x = minX; x <= maxX; x++)
+		{
+			int i = Arrays.binarySearch(mKeys, TileAddress.getKey(x, minY, zoom));
+			if (i < 0)
+				i = -i - 1;
+			long maxKey = TileAddress.getKey(x, maxY, zoom);
+			long minKey = TileAddress.getKey(x, minY, zoom);
+			for (; (i < mKeys.length) && (mKeys[i] <= maxKey); i++)
+				coverage[(int) (mKeys[i] - minKey) * width + (x - minX)] = true;
+			if (Thread.currentThread().isInterrupted())
+				throw new InterruptedException();
+		}
+	}
+
+	private void set(int i, Entry e)
+	{
+		mSegs[i] = e.mSeg;
+		mPositions[i] = e.mPos;
+		mLengths[i] = e.mLength;
+		mDataLens[i] = e.mDataLen;
+		mMods[i] = e.mMod;
+		mExps[i] = e.mExp;
+		mETags[i] = e.mETag;
+	}
+
+	private void resize(int n)
+	{
+		mKeys = Arrays.copyOf(mKeys, n);
+		mSegs = new int[n];
+		mPositions = new int[n];
+		mLengths = new int[n];
+		mDataLens = new int[n];
+		mMods = new long[n];
+		mExps = new long[n];
+		mETags = new String[n];
+	}
+
+	/**
+	 * Writes the index into the file. The file is written under a temporary name and renamed, so a complete index file always exists.
+	 * 
+	 * @param seg
+	 *          The segment and
+	 * @param pos
+	 *          position up to which the records are contained in this index. On loading, records behind are replayed.
+	 */
+	public void write(Path file, int seg, long pos) throws IOException
+	{
+		merge();
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		CRC32 crc = new CRC32();
+		try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16), crc)))
+		{
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeInt(seg);
+			out.writeLong(pos);
+			out.writeInt(mKeys.length);
+			for (int i = 0; i < mKeys.length; i++)
+			{
+				out.writeLong(mKeys[i]);
+				out.writeInt(mSegs[i]);
+				out.writeInt(mPositions[i]);
+				out.writeInt(mLengths[i]);
+				out.writeInt(mDataLens[i]);
+				out.writeLong(mMods[i]);
+				out.writeLong(mExps[i]);
+				byte[] eTag = (mETags[i] == null) ? new byte[0] : mETags[i].getBytes(StandardCharsets.UTF_8);
+				out.writeShort(eTag.length);
+				out.write(eTag);
+			}
+			out.flush();
+			out.writeLong(crc.getValue());
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Loads the index from the file.
+	 * 
+	 * @return The segment and position up to which the records are contained, or null if there is no valid index file. The index is empty then.
+	 */
+	public long[] read(Path file) throws IOException
+	{
+		clear();
+		if (!Files.exists(file))
+			return null;
+		CRC32 crc = new CRC32();
+		try (DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16), crc)))
+		{
+			if ((in.readInt() != INDEX_MAGIC) || (in.readInt() != INDEX_VERSION))
+				return null;
+			long[] checkpoint = new long[] {in.readInt(), in.readLong()};
+			int n = in.readInt();
+			resize(n);
+			for (int i = 0; i < n; i++)
+			{
+				mKeys[i] = in.readLong();
+				mSegs[i] = in.readInt();
+				mPositions[i] = in.readInt();
+				mLengths[i] = in.readInt();
+				mDataLens[i] = in.readInt();
+				mMods[i] = in.readLong();
+				mExps[i] = in.readLong();
+				byte[] eTag = new byte[in.readUnsignedShort()];
+				in.readFully(eTag);
+				mETags[i] = new String(eTag, StandardCharsets.UTF_8);
+			}
+			long sum = crc.getValue();
+			if (in.readLong() != sum)
+			{
+				clear();
+				return null;
+			}
+			return checkpoint;
+		}
+		catch (IOException e)
+		{
+			clear();
+			return null;
+		}
+	}
+}
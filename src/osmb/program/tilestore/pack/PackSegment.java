@@ -0,0 +1,290 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmb.program.tilestore.pack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * One append-only segment file of a {@link PackTileStore}. It holds a sequence of records, each being a tile or an update of a tiles expiration.<br>
+ * Reads go through a read-only memory mapping of the file. The mapping is renewed when the file has grown by {@link #REMAP_STEP}, data appended since are read
+ * from the channel.
+ * <p>
+ * Record layout, big endian:<br>
+ * int magic, byte type, byte zoom, int x, int y, long mod, long exp, short eTag length, int data length, int crc, eTag bytes (UTF-8), data bytes<br>
+ * The CRC32 covers everything from the type to the end of the data, except the crc itself.
+ * 
+ * @author humbach
+ */
+public class PackSegment
+{
+	// class/static data
+	protected static Logger log = Logger.getLogger(PackSegment.class);
+
+	public static final int MAGIC = 0x54504B31; // "TPK1"
+	public static final byte TYPE_TILE = 0;
+	public static final byte TYPE_ERROR = 1;
+	public static final byte TYPE_EXP = 2;
+	public static final int HEADER_SIZE = 40;
+	private static final int CRC_POS = 36;
+	private static final long REMAP_STEP = 4L << 20;
+	private static final String EXT_SEGMENT = ".seg";
+
+	/**
+	 * A record as read from a segment.
+	 */
+	public static class Record
+	{
+		public long mPos;
+		public int mLength;
+		public byte mType;
+		public int mZoom;
+		public int mX;
+		public int mY;
+		public long mMod;
+		public long mExp;
+		public String mETag;
+		public int mDataPos;
+		public int mDataLen;
+	}
+
+	public static Path getPath(Path dir, int id)
+	{
+		return dir.resolve(String.format("%06d", id) + EXT_SEGMENT);
+	}
+
+	/**
+	 * @return The id of the segment file, or -1 if it is no segment file.
+	 */
+	public static int getId(Path file)
+	{
+		String name = file.getFileName().toString();
+		if (!name.endsWith(EXT_SEGMENT))
+			return -1;
+		try
+		{
+			return Integer.parseInt(name.substring(0, name.length() - EXT_SEGMENT.length()));
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Encodes a record.
+	 * 
+	 * @param data
+	 *          The encoded tile image, null for an error tile or an expiration update.
+	 */
+	public static ByteBuffer encode(byte type, int zoom, int x, int y, long mod, long exp, String eTag, byte[] data)
+	{
+		byte[] eTagBytes = (eTag == null) ? new byte[0] : eTag.getBytes(StandardCharsets.UTF_8);
+		int dataLen = (data == null) ? 0 : data.length;
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + eTagBytes.length + dataLen);
+		buf.putInt(MAGIC).put(type).put((byte) zoom).putInt(x).putInt(y).putLong(mod).putLong(exp).putShort((short) eTagBytes.length).putInt(dataLen).putInt(0);
+		buf.put(eTagBytes);
+		if (data != null)
+			buf.put(data);
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), 4, CRC_POS - 4);
+		crc.update(buf.array(), HEADER_SIZE, buf.capacity() - HEADER_SIZE);
+		buf.putInt(CRC_POS, (int) crc.getValue());
+		buf.flip();
+		return buf;
+	}
+
+	// instance data
+	private final int mId;
+	private final Path mPath;
+	private FileChannel mChannel;
+	private volatile MappedByteBuffer mMap = null;
+	private volatile long mSize;
+	/**
+	 * Bytes of the records still referenced by the index.
+	 */
+	private long mLive = 0;
+
+	/**
+	 * Opens the segment file, it is created if it does not exist.
+	 */
+	public PackSegment(Path dir, int id) throws IOException
+	{
+		mId = id;
+		mPath = getPath(dir, id);
+		mChannel = FileChannel.open(mPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		mSize = mChannel.size();
+	}
+
+	public int getId()
+	{
+		return mId;
+	}
+
+	public Path getPath()
+	{
+		return mPath;
+	}
+
+	public long getSize()
+	{
+		return mSize;
+	}
+
+	public synchronized long getLive()
+	{
+		return mLive;
+	}
+
+	public synchronized void addLive(long bytes)
+	{
+		mLive += bytes;
+	}
+
+	/**
+	 * Appends the record to the end of the file.
+	 * 
+	 * @return The position of the record in the file.
+	 */
+	public synchronized long append(ByteBuffer record) throws IOException
+	{
+		long pos = mSize;
+		while (record.hasRemaining())
+			mSize += mChannel.write(record, mSize);
+		return pos;
+	}
+
+	/**
+	 * @return A read-only buffer with the bytes requested. As long as they are inside the mapping it is a view of the mapping, no data are copied. Concurrent
+	 *         reads do not block each other.
+	 */
+	public ByteBuffer read(long pos, int len) throws IOException
+	{
+		long end = pos + len;
+		MappedByteBuffer map = mMap;
+		if ((map == null) || (end > map.capacity()))
+			map = remap(end);
+		if ((map != null) && (end <= map.capacity()))
+		{
+			ByteBuffer buf = map.duplicate();
+			buf.position((int) pos);
+			buf.limit((int) end);
+			return buf.slice().asReadOnlyBuffer();
+		}
+		// recently appended, not yet mapped
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		while (buf.hasRemaining())
+		{
+			if (mChannel.read(buf, pos + buf.position()) < 0)
+				throw new IOException("unexpected end of " + mPath);
+		}
+		buf.flip();
+		return buf.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Maps the file anew if the bytes up to end are not mapped and enough has been appended since the last mapping.
+	 */
+	private synchronized MappedByteBuffer remap(long end) throws IOException
+	{
+		if (end > mSize)
+			throw new IOException("read beyond end of " + mPath + ": " + end + " > " + mSize);
+		long mapped = (mMap == null) ? 0 : mMap.capacity();
+		if ((end > mapped) && (mSize - mapped >= Math.min(REMAP_STEP, mSize)))
+			mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mSize);
+		return mMap;
+	}
+
+	/**
+	 * Reads the record at the position and checks it.
+	 * 
+	 * @return The record, or null if there is no complete and valid record at the position.
+	 */
+	public Record readRecord(long pos) throws IOException
+	{
+		if (pos + HEADER_SIZE > getSize())
+			return null;
+		ByteBuffer head = read(pos, HEADER_SIZE);
+		if (head.getInt(0) != MAGIC)
+			return null;
+		Record rec = new Record();
+		rec.mPos = pos;
+		rec.mType = head.get(4);
+		rec.mZoom = head.get(5);
+		rec.mX = head.getInt(6);
+		rec.mY = head.getInt(10);
+		rec.mMod = head.getLong(14);
+		rec.mExp = head.getLong(22);
+		int eTagLen = head.getShort(30) & 0xFFFF;
+		rec.mDataLen = head.getInt(32);
+		int storedCrc = head.getInt(CRC_POS);
+		if ((rec.mDataLen < 0) || (pos + HEADER_SIZE + eTagLen + rec.mDataLen > getSize()))
+			return null;
+		rec.mLength = HEADER_SIZE + eTagLen + rec.mDataLen;
+		rec.mDataPos = (int) pos + HEADER_SIZE + eTagLen;
+		ByteBuffer body = read(pos + HEADER_SIZE, eTagLen + rec.mDataLen);
+		byte[] bytes = new byte[body.remaining()];
+		body.get(bytes);
+		byte[] headBytes = new byte[CRC_POS - 4];
+		head.position(4);
+		head.get(headBytes);
+		CRC32 crc = new CRC32();
+		crc.update(headBytes);
+		crc.update(bytes);
+		if ((int) crc.getValue() != storedCrc)
+			return null;
+		rec.mETag = new String(bytes, 0, eTagLen, StandardCharsets.UTF_8);
+		return rec;
+	}
+
+	/**
+	 * Cuts off a damaged tail, i.e. a record only partially written when the application stopped.
+	 */
+	public synchronized void truncate(long size) throws IOException
+	{
+		log.warn("truncating " + mPath + " from " + mSize + " to " + size);
+		mChannel.truncate(size);
+		mSize = size;
+		mMap = null;
+	}
+
+	public synchronized void force() throws IOException
+	{
+		mChannel.force(false);
+	}
+
+	public synchronized void close()
+	{
+		try
+		{
+			mChannel.close();
+		}
+		catch (IOException e)
+		{
+			log.debug("closing " + mPath + " failed: " + e);
+		}
+		mMap = null;
+	}
+}
@@ -0,0 +1,744 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmb.program.tilestore.pack;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import osmb.mapsources.ACMapSource;
+import osmb.mapsources.TileAddress;
+import osmb.program.ACSettings;
+import osmb.program.tiles.Tile;
+import osmb.program.tiles.Tile.TileState;
+import osmb.program.tilestore.ACNTileStore;
+import osmb.program.tilestore.TileStoreException;
+import osmb.program.tilestore.TileStoreInfo;
+import osmb.utilities.OSMBStrs;
+
+/**
+ * A tile store keeping the encoded tiles in append-only segment files, which are read through memory mappings. Each map source has its own directory with
+ * the segments and an index file.
+ * <p>
+ * Each write appends a record to the active segment, see {@link PackSegment}. A segment is closed when it reaches {@link #SEGMENT_SIZE}. The
+ * {@link PackIndex} maps each tile to its latest record. It is written to the index file on each segment change and on close, together with the position
+ * up to which it is complete. On opening, the records behind that position are replayed. Without a valid index file all segments are replayed. A record
+ * only partially written is detected by its CRC and cut off.
+ * <p>
+ * Records superseded by newer ones are dead. Segments with less than {@link #COMPACT_LIVE_RATIO} live bytes are compacted on close, or by
+ * {@link #compact()}: their live records are copied to the active segment and the files are deleted. The shutdown hook only writes the index, it never
+ * compacts.
+ * <p>
+ * Readers hold a shared lock and get views of the mapped files, see {@link #getTileData(TileAddress)}. Writers hold the exclusive lock. The views outlive
+ * the lock, so they must not be held across writes to the store.
+ * 
+ * @author humbach
+ */
+public class PackTileStore extends ACNTileStore
+{
+	// class/static data
+	protected static Logger log = Logger.getLogger(PackTileStore.class);
+
+	public static final String EXT_PACK = "tpack";
+	public static final long SEGMENT_SIZE = 64L << 20;
+	public static final double COMPACT_LIVE_RATIO = 0.5;
+	private static final String INDEX_FILE = "index";
+
+	private static final HashMap<ACMapSource, PackTileStore> sStores = new HashMap<>();
+
+	static
+	{
+		// save the indexes before the VM goes down, a compaction would delay the exit
+		Runtime.getRuntime().addShutdownHook(new Thread("PackStoreShutdown")
+		{
+			@Override
+			public void run()
+			{
+				closeAllStores(false);
+			}
+		});
+	}
+
+	/**
+	 * Factory method. The class maintains a hash map with all open instances.
+	 */
+	public static PackTileStore prepareTileStore(ACMapSource mapSource) throws TileStoreException
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		synchronized (sStores)
+		{
+			PackTileStore tStore = sStores.get(mapSource);
+			if (tStore == null)
+			{
+				tStore = new PackTileStore(mapSource);
+				sStores.put(mapSource, tStore);
+			}
+			if (!tStore.isInitialized())
+			{
+				try
+				{
+					tStore.initializeDB();
+				}
+				catch (IOException e)
+				{
+					sStores.remove(mapSource);
+					throw new TileStoreException("Error opening tile pack for '" + mapSource.getName() + "': " + e.getMessage(), e);
+				}
+			}
+			return tStore;
+		}
+	}
+
+	/**
+	 * Closes all open pack stores, compacting them if worthwhile.
+	 */
+	public static void closeAllStores()
+	{
+		closeAllStores(true);
+	}
+
+	/**
+	 * Closes all open pack stores.
+	 * 
+	 * @param bCompact
+	 *          FALSE to only write the indexes, see {@link #close(boolean)}.
+	 */
+	protected static void closeAllStores(boolean bCompact)
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		ArrayList<PackTileStore> stores;
+		synchronized (sStores)
+		{
+			stores = new ArrayList<>(sStores.values());
+		}
+		for (PackTileStore store : stores)
+			store.close(bCompact);
+	}
+
+	/**
+	 * @return The names of all pack stores in the tile store directory.
+	 */
+	public static String[] getStoresList()
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		ArrayList<String> names = new ArrayList<>();
+		Path dir = ACSettings.getInstance().getTileStoreDirectory().toPath();
+		if (Files.isDirectory(dir))
+		{
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*." + EXT_PACK))
+			{
+				for (Path p : ds)
+				{
+					String name = p.getFileName().toString();
+					names.add(name.substring(0, name.length() - EXT_PACK.length() - 1));
+				}
+			}
+			catch (IOException e)
+			{
+				log.error("listing " + dir + " failed", e);
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	// instance data
+	protected final ACMapSource mMapSource;
+	protected final Path mDir;
+	protected final PackIndex mIndex = new PackIndex();
+	protected final TreeMap<Integer, PackSegment> mSegments = new TreeMap<>();
+	protected PackSegment mActive = null;
+	protected final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+	private PackTileStore(ACMapSource mapSource)
+	{
+		mMapSource = mapSource;
+		mDir = sTileStoreDir.resolve(mapSource.getName() + "." + EXT_PACK);
+	}
+
+	/**
+	 * Opens the segments and loads the index, replaying the records not yet in the index file.
+	 */
+	@Override
+	protected void initializeDB() throws IOException
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		mLock.writeLock().lock();
+		try
+		{
+			if (mInitialized)
+				return;
+			long start = System.currentTimeMillis();
+			Files.createDirectories(mDir);
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(mDir))
+			{
+				for (Path p : ds)
+				{
+					int id = PackSegment.getId(p);
+					if (id >= 0)
+						mSegments.put(id, new PackSegment(mDir, id));
+				}
+			}
+			long[] checkpoint = mIndex.read(mDir.resolve(INDEX_FILE));
+			if ((checkpoint != null) && !mSegments.containsKey((int) checkpoint[0]) && !mSegments.isEmpty())
+				checkpoint = null;
+			int replayed;
+			if (checkpoint != null)
+				replayed = replay((int) checkpoint[0], checkpoint[1]);
+			else
+			{
+				log.info("rebuilding index of " + mDir);
+				mIndex.clear();
+				replayed = replay(mSegments.isEmpty() ? 0 : mSegments.firstKey(), 0);
+			}
+			if (!countLive())
+			{
+				log.warn("index of " + mDir + " refers to missing segments, rebuilding it");
+				mIndex.clear();
+				replayed = replay(mSegments.isEmpty() ? 0 : mSegments.firstKey(), 0);
+				countLive();
+			}
+			if (mSegments.isEmpty())
+				mSegments.put(0, new PackSegment(mDir, 0));
+			mActive = mSegments.lastEntry().getValue();
+			if (replayed > 0)
+				checkpoint();
+			deleteDeadSegments();
+			mInitialized = true;
+			log.debug(mIndex.size() + " tiles in " + mSegments.size() + " segments of " + mDir + " opened in " + (System.currentTimeMillis() - start) + "ms");
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Applies all records from the position in the segment onwards to the index.
+	 * 
+	 * @return The number of records replayed.
+	 */
+	protected int replay(int fromSeg, long fromPos) throws IOException
+	{
+		int cnt = 0;
+		for (PackSegment seg : mSegments.tailMap(fromSeg, true).values())
+		{
+			long pos = (seg.getId() == fromSeg) ? fromPos : 0;
+			PackSegment.Record rec;
+			while ((rec = seg.readRecord(pos)) != null)
+			{
+				long key = TileAddress.getKey(rec.mX, rec.mY, rec.mZoom);
+				if (rec.mType == PackSegment.TYPE_EXP)
+					mIndex.updateExpiration(key, rec.mMod, rec.mExp);
+				else
+					mIndex.put(key, new PackIndex.Entry(seg.getId(), (int) rec.mPos, rec.mLength, (rec.mType == PackSegment.TYPE_ERROR) ? -1 : rec.mDataLen,
+					    rec.mMod, rec.mExp, rec.mETag));
+				pos += rec.mLength;
+				cnt++;
+			}
+			if (pos < seg.getSize())
+			{
+				if (seg == mSegments.lastEntry().getValue())
+					seg.truncate(pos);
+				else
+					log.error("damaged record in " + seg.getPath() + " at " + pos + ", the rest of the segment is skipped");
+			}
+		}
+		log.debug(cnt + " records replayed in " + mDir);
+		return cnt;
+	}
+
+	/**
+	 * Counts the live bytes of each segment.
+	 * 
+	 * @return FALSE if the index refers to a segment which does not exist.
+	 */
+	protected boolean countLive()
+	{
+		for (PackSegment seg : mSegments.values())
+			seg.addLive(-seg.getLive());
+		mIndex.merge();
+		for (int i = 0; i < mIndex.size(); i++)
+		{
+			PackIndex.Entry e = mIndex.entry(i);
+			PackSegment seg = mSegments.get(e.mSeg);
+			if (seg == null)
+				return false;
+			seg.addLive(e.mLength);
+		}
+		return true;
+	}
+
+	/**
+	 * Deletes the closed segments without live records. They are left over if a compaction has been interrupted.
+	 */
+	protected void deleteDeadSegments()
+	{
+		for (PackSegment seg : new ArrayList<>(mSegments.values()))
+		{
+			if ((seg != mActive) && (seg.getLive() == 0))
+				deleteSegment(seg);
+		}
+	}
+
+	protected void deleteSegment(PackSegment seg)
+	{
+		seg.close();
+		mSegments.remove(seg.getId());
+		try
+		{
+			Files.deleteIfExists(seg.getPath());
+		}
+		catch (IOException e)
+		{
+			// the mapping may still be in use, the file will be deleted on next opening
+			log.warn("deleting " + seg.getPath() + " failed: " + e);
+		}
+	}
+
+	/**
+	 * Writes the index file. It has to be called holding the write lock.
+	 */
+	protected void checkpoint() throws IOException
+	{
+		mActive.force();
+		mIndex.write(mDir.resolve(INDEX_FILE), mActive.getId(), mActive.getSize());
+	}
+
+	/**
+	 * Appends a record to the active segment and updates the index. A new segment is started if the active one is full. It has to be called holding the write
+	 * lock.
+	 */
+	protected void append(byte type, TileAddress tAddr, long mod, long exp, String eTag, byte[] data) throws IOException
+	{
+		ByteBuffer record = PackSegment.encode(type, tAddr.getZoom(), tAddr.getX(), tAddr.getY(), mod, exp, eTag, data);
+		int length = record.remaining();
+		if ((mActive.getSize() > 0) && (mActive.getSize() + length > SEGMENT_SIZE))
+		{
+			mActive.force();
+			mActive = new PackSegment(mDir, mActive.getId() + 1);
+			mSegments.put(mActive.getId(), mActive);
+			checkpoint();
+		}
+		long pos = mActive.append(record);
+		long key = tAddr.getKey();
+		if (type == PackSegment.TYPE_EXP)
+		{
+			mIndex.updateExpiration(key, mod, exp);
+			return;
+		}
+		PackIndex.Entry old = mIndex.put(key,
+		    new PackIndex.Entry(mActive.getId(), (int) pos, length, (type == PackSegment.TYPE_ERROR) ? -1 : data.length, mod, exp, eTag));
+		mActive.addLive(length);
+		if (old != null)
+			mSegments.get(old.mSeg).addLive(-old.mLength);
+	}
+
+	/**
+	 * Copies the live records of sparsely used segments to the active segment and deletes those segments.
+	 * 
+	 * @return The number of segments deleted.
+	 */
+	public int compact() throws IOException
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		mLock.writeLock().lock();
+		try
+		{
+			HashSet<Integer> victims = new HashSet<>();
+			for (PackSegment seg : mSegments.values())
+			{
+				if ((seg != mActive) && (seg.getLive() < seg.getSize() * COMPACT_LIVE_RATIO))
+					victims.add(seg.getId());
+			}
+			if (victims.isEmpty())
+				return 0;
+			long start = System.currentTimeMillis();
+			int moved = 0;
+			mIndex.merge();
+			for (int i = 0; i < mIndex.size(); i++)
+			{
+				PackIndex.Entry e = mIndex.entry(i);
+				if (!victims.contains(e.mSeg))
+					continue;
+				long key = mIndex.getKey(i);
+				TileAddress tAddr = new TileAddress((int) ((key >> TileAddress.KEY_IDX_BITS) & ((1L << TileAddress.KEY_IDX_BITS) - 1)),
+				    (int) (key & ((1L << TileAddress.KEY_IDX_BITS) - 1)), (int) (key >>> (2 * TileAddress.KEY_IDX_BITS)));
+				if (e.mDataLen < 0)
+					append(PackSegment.TYPE_ERROR, tAddr, e.mMod, e.mExp, e.mETag, null);
+				else
+				{
+					byte[] data = new byte[e.mDataLen];
+					mSegments.get(e.mSeg).read(e.getDataPos(), e.mDataLen).get(data);
+					append(PackSegment.TYPE_TILE, tAddr, e.mMod, e.mExp, e.mETag, data);
+				}
+				moved++;
+			}
+			// the index has to be safe before the old records are gone
+			checkpoint();
+			for (Integer id : victims)
+			{
+				PackSegment seg = mSegments.get(id);
+				if (seg != null)
+					deleteSegment(seg);
+			}
+			log.info(mDir + " compacted: " + moved + " tiles moved, " + victims.size() + " segments deleted in " + (System.currentTimeMillis() - start) + "ms");
+			return victims.size();
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Compacts the store if worthwhile, writes the index and closes all segments.
+	 */
+	public void close()
+	{
+		close(true);
+	}
+
+	/**
+	 * Writes the index and closes all segments.
+	 * 
+	 * @param bCompact
+	 *          TRUE to compact the store before, if worthwhile. The shutdown hook passes FALSE, it has to finish quickly.
+	 */
+	public void close(boolean bCompact)
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		synchronized (sStores)
+		{
+			sStores.remove(mMapSource);
+		}
+		mLock.writeLock().lock();
+		try
+		{
+			if (!mInitialized)
+				return;
+			if (bCompact)
+				compact();
+			checkpoint();
+		}
+		catch (IOException e)
+		{
+			log.error("closing " + mDir + " failed, the index will be rebuilt on next opening", e);
+		}
+		finally
+		{
+			for (PackSegment seg : mSegments.values())
+				seg.close();
+			mSegments.clear();
+			mIndex.clear();
+			mActive = null;
+			mInitialized = false;
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * The returned buffer is a view of the segment's mapping, it is valid only until the next write to the store. {@link #compact()},
+	 * {@link #clearStore()} and {@link #close()} close and delete segments, so a caller must not hold the buffer across them, but copy the bytes it needs
+	 * longer.
+	 * 
+	 * @return A read-only view of the encoded image of the tile, without copying it. Null if the tile is not in the store or is an error tile.
+	 */
+	public ByteBuffer getTileData(TileAddress tAddr) throws IOException
+	{
+		mLock.readLock().lock();
+		try
+		{
+			PackIndex.Entry e = mIndex.get(tAddr.getKey());
+			if ((e == null) || (e.mDataLen < 0))
+				return null;
+			return mSegments.get(e.mSeg).read(e.getDataPos(), e.mDataLen);
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Tile getTile(TileAddress tAddr)
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		Tile tile = new Tile(mMapSource, tAddr);
+		mLock.readLock().lock();
+		try
+		{
+			PackIndex.Entry e = mIndex.get(tAddr.getKey());
+			if (e == null)
+				log.debug("no image found for " + tAddr);
+			else if (e.mDataLen < 0)
+				tile.setErrorImage();
+			else
+			{
+				byte[] data = new byte[e.mDataLen];
+				mSegments.get(e.mSeg).read(e.getDataPos(), e.mDataLen).get(data);
+				tile.loadImage(data);
+				tile.setMod(new Date(e.mMod));
+				tile.setExp(new Date(e.mExp));
+				tile.setETag(e.mETag);
+				tile.setTileState(TileState.TS_LOADED);
+			}
+		}
+		catch (IOException e)
+		{
+			log.error("reading " + tAddr + " from " + mDir + " failed", e);
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+		return tile;
+	}
+
+	@Override
+	public void putTile(Tile tile)
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		try
+		{
+			switch (tile.getTileState())
+			{
+				case TS_LOADED:
+				case TS_EXPIRED:
+					write(PackSegment.TYPE_TILE, tile.getAddress(), tile.getMod().getTime(), tile.getExp().getTime(), tile.getETag(), tile.getImageData());
+					break;
+				case TS_ERROR:
+					write(PackSegment.TYPE_ERROR, tile.getAddress(), tile.getMod().getTime(), tile.getExp().getTime(), tile.getETag(), null);
+					log.warn("error image written for " + tile);
+					break;
+				default:
+					// TS_LOADING, TS_NEW and TS_ZOOMED tiles will not be written into the tile store
+					log.debug("no image written for " + tile);
+					return;
+			}
+			fireTileStored(mMapSource, tile.getAddress());
+		}
+		catch (IOException e)
+		{
+			log.error("writing " + tile + " into " + mDir + " failed", e);
+		}
+	}
+
+	@Override
+	public void putTileData(byte[] tileData, TileAddress tAddr) throws IOException
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		long now = System.currentTimeMillis();
+		putTileData(tileData, tAddr, now, now + ACSettings.getTileDefaultExpirationTime(), "-");
+	}
+
+	/**
+	 * The data are stored as they are, without decoding.
+	 */
+	@Override
+	public void putTileData(byte[] tileData, TileAddress tAddr, long timeLastModified, long timeExpires, String eTag) throws IOException
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		write(PackSegment.TYPE_TILE, tAddr, timeLastModified, timeExpires, eTag, tileData);
+		fireTileStored(mMapSource, tAddr);
+	}
+
+	/**
+	 * Appends a small record with the new expiration and now as modification time, the image is not written again.
+	 */
+	@Override
+	public void updateTileExpiration(TileAddress tAddr, long timeExpires)
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		try
+		{
+			if (containsTile(tAddr))
+				write(PackSegment.TYPE_EXP, tAddr, System.currentTimeMillis(), timeExpires, null, null);
+		}
+		catch (IOException e)
+		{
+			log.error("update of expiration for " + tAddr + " failed", e);
+		}
+	}
+
+	private void write(byte type, TileAddress tAddr, long mod, long exp, String eTag, byte[] data) throws IOException
+	{
+		mLock.writeLock().lock();
+		try
+		{
+			if (!mInitialized)
+				throw new IOException(mDir + " is closed");
+			append(type, tAddr, mod, exp, eTag, data);
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean containsTile(TileAddress tAddr)
+	{
+		mLock.readLock().lock();
+		try
+		{
+			return mIndex.get(tAddr.getKey()) != null;
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Missing tiles and error tiles are expired.
+	 */
+	@Override
+	public boolean isTileExpired(TileAddress tAddr)
+	{
+		mLock.readLock().lock();
+		try
+		{
+			PackIndex.Entry e = mIndex.get(tAddr.getKey());
+			return (e == null) || (e.mDataLen < 0) || (getEffectiveExpiration(e.mMod, e.mExp) < System.currentTimeMillis());
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void clearStore() throws TileStoreException
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		mLock.writeLock().lock();
+		try
+		{
+			for (PackSegment seg : new ArrayList<>(mSegments.values()))
+				deleteSegment(seg);
+			mIndex.clear();
+			mActive = new PackSegment(mDir, 0);
+			mSegments.put(0, mActive);
+			checkpoint();
+		}
+		catch (IOException e)
+		{
+			throw new TileStoreException("clearing " + mDir + " failed: " + e.getMessage(), e);
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String[] getAllStoreNames()
+	{
+		return getStoresList();
+	}
+
+	/**
+	 * The size is the one of all segment files.
+	 */
+	@Override
+	public TileStoreInfo getStoreInfo() throws InterruptedException
+	{
+		mLock.readLock().lock();
+		try
+		{
+			long storeSize = 0;
+			for (PackSegment seg : mSegments.values())
+				storeSize += seg.getSize();
+			return new TileStoreInfo(storeSize, mIndex.size());
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public BufferedImage getCacheCoverage(ACMapSource mapSource, int zoom, Point tileNumMin, Point tileNumMax) throws InterruptedException
+	{
+		if ((mapSource != null) && (mapSource != mMapSource))
+		{
+			try
+			{
+				return prepareTileStore(mapSource).getCacheCoverage(mapSource, zoom, tileNumMin, tileNumMax);
+			}
+			catch (TileStoreException e)
+			{
+				log.error("", e);
+				return null;
+			}
+		}
+		log.debug("Loading cache coverage for region " + tileNumMin + " " + tileNumMax + " of zoom level " + zoom);
+		int width = tileNumMax.x - tileNumMin.x + 1;
+		int height = tileNumMax.y - tileNumMin.y + 1;
+		byte ff = (byte) 0xFF;
+		byte[] colors = new byte[] {120, 120, 120, 120, // alpha-gray
+		    10, ff, 0, 120 // alpha-green
+		};
+		IndexColorModel colorModel = new IndexColorModel(2, 2, colors, 0, true);
+		BufferedImage image = null;
+		boolean[] coverage;
+		try
+		{
+			image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+			coverage = new boolean[width * height];
+		}
+		catch (Throwable e)
+		{
+			log.error("Failed to create coverage image: " + e.toString());
+			return null;
+		}
+		// merging the index needs the write lock
+		mLock.writeLock().lock();
+		try
+		{
+			mIndex.getCoverage(zoom, tileNumMin.x, tileNumMin.y, tileNumMax.x, tileNumMax.y, coverage);
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+		WritableRaster raster = image.getRaster();
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				if (coverage[y * width + x])
+					raster.setSample(x, y, 0, 1);
+			}
+		}
+		return image;
+	}
+}
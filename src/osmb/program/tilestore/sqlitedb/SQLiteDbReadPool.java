@@ -0,0 +1,147 @@
+package osmb.program.tilestore.sqlitedb;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A small pool of connections reading one SQLite database. With the database in WAL mode readers do not block each other nor the writer, so tile reads
+ * from many threads run in parallel.<br>
+ * Connections are opened on demand up to the pool size. Each one keeps its own prepared statements.
+ * 
+ * @author humbach
+ */
+public class SQLiteDbReadPool
+{
+	// class/static data
+	protected static Logger log = Logger.getLogger(SQLiteDbReadPool.class);
+
+	public static final int DEFAULT_POOL_SIZE = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+	/**
+	 * One pooled connection with its statement cache.
+	 */
+	public static class ReadConnection
+	{
+		private final Connection mConn;
+		private final HashMap<String, PreparedStatement> mStmtCache = new HashMap<>();
+
+		ReadConnection(Connection conn)
+		{
+			mConn = conn;
+		}
+
+		/**
+		 * @return The prepared statement for the SQL, prepared on first use.
+		 */
+		public PreparedStatement prepare(String sql) throws SQLException
+		{
+			PreparedStatement prepStmt = mStmtCache.get(sql);
+			if (prepStmt == null)
+			{
+				prepStmt = mConn.prepareStatement(sql);
+				mStmtCache.put(sql, prepStmt);
+			}
+			return prepStmt;
+		}
+
+		public Connection getConnection()
+		{
+			return mConn;
+		}
+
+		void close()
+		{
+			try
+			{
+				for (PreparedStatement prepStmt : mStmtCache.values())
+					prepStmt.close();
+				mStmtCache.clear();
+				mConn.close();
+			}
+			catch (SQLException e)
+			{
+				log.debug("closing read connection failed: " + e);
+			}
+		}
+	}
+
+	// instance data
+	private final Path mDB;
+	private final int mSize;
+	private final LinkedBlockingQueue<ReadConnection> mIdle = new LinkedBlockingQueue<>();
+	private final ArrayList<ReadConnection> mAll = new ArrayList<>();
+	private boolean mClosed = false;
+
+	/**
+	 * @param pDB
+	 *          The database file. It has to be in WAL mode already, see {@link SQLiteDbTileStore#configureConnection(Connection)}.
+	 * @param size
+	 *          The maximum number of connections.
+	 */
+	public SQLiteDbReadPool(Path pDB, int size)
+	{
+		mDB = pDB;
+		mSize = Math.max(1, size);
+	}
+
+	/**
+	 * Takes a connection from the pool, opening a new one if none is idle and the pool is not exhausted. Otherwise it waits for one to be released.<br>
+	 * Each borrowed connection has to be given back by {@link #release(ReadConnection)}.
+	 */
+	public ReadConnection borrow() throws SQLException, InterruptedException
+	{
+		ReadConnection rc = mIdle.poll();
+		if (rc != null)
+			return rc;
+		synchronized (mAll)
+		{
+			if (mClosed)
+				throw new SQLException("read pool for " + mDB + " is closed");
+			if (mAll.size() < mSize)
+			{
+				Connection conn = SQLiteDbTileStore.openConnection(mDB);
+				SQLiteDbTileStore.configureConnection(conn);
+				rc = new ReadConnection(conn);
+				mAll.add(rc);
+				log.debug("read connection " + mAll.size() + " opened for " + mDB);
+				return rc;
+			}
+		}
+		return mIdle.take();
+	}
+
+	public void release(ReadConnection rc)
+	{
+		synchronized (mAll)
+		{
+			if (!mClosed)
+			{
+				mIdle.add(rc);
+				return;
+			}
+		}
+		rc.close();
+	}
+
+	/**
+	 * Closes all idle connections. Connections still borrowed are closed when they are released.
+	 */
+	public void close()
+	{
+		synchronized (mAll)
+		{
+			mClosed = true;
+			ReadConnection rc;
+			while ((rc = mIdle.poll()) != null)
+				rc.close();
+			mAll.clear();
+		}
+	}
+}
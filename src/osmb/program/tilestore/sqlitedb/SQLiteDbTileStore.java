@@ -2,7 +2,10 @@ package osmb.program.tilestore.sqlitedb;
 
 import java.awt.Point;
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -10,6 +13,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Date;
 
 import org.apache.log4j.Logger;
@@ -22,7 +26,9 @@ import osmb.program.tiles.Tile;
 import osmb.program.tiles.Tile.TileState;
 import osmb.program.tilestore.ACNTileStore;
 import osmb.program.tilestore.TileStoreException;
+import osmb.program.tilestore.TilePresenceIndex;
 import osmb.program.tilestore.TileStoreInfo;
+import osmb.program.tilestore.sqlitedb.SQLiteDbTileWriter.PendingWrite;
 import osmb.utilities.OSMBStrs;
 import osmb.utilities.OSMBUtilities;
 
@@ -36,6 +42,11 @@ import osmb.utilities.OSMBUtilities;
  * <p>
  * The class holds an enumeration of all instances.
  * Each map sources tile store is placed in a separate file.
+ * <p>
+ * Tiles are written behind by a {@link SQLiteDbTileWriter}, which groups them into large transactions. Tiles not yet written are served from its queue.
+ * Identical images are stored once, see {@link SQLiteDbTileWriter}; {@link #getDedupRatio()} tells how many tiles share each image on average.<br>
+ * Presence and expiration of all tiles are held in a {@link TilePresenceIndex}, which is loaded when the store is opened and maintained on each write.<br>
+ * The databases run in WAL mode, so tiles are read in parallel through a {@link SQLiteDbReadPool} while the writer holds {@link #mConn}.
  * 
  * @author humbach
  */
@@ -44,12 +55,13 @@ public class SQLiteDbTileStore extends ACNTileStore
 	// class/static data
 	protected static Logger log = Logger.getLogger(SQLiteDbTileStore.class);
 	// common tile store database
-	private static final int MAX_BATCH_SIZE = 1000;
 	private static final String TS_COMMONDB = "TSCommon";
 	private static final String EXT_COMMONDB = "sqlitedb";
 	private static final String BEGIN_TA = "begin transaction";
 	private static final String COMMIT_TA = "commit transaction";
 	private static final String ROLLBACK_TA = "rollback transaction";
+	// connection settings: concurrent readers, commits synced at checkpoints only, 16 MB page cache per connection
+	private static final String[] PRAGMAS = {"pragma journal_mode=WAL", "pragma synchronous=NORMAL", "pragma cache_size=-16000", "pragma busy_timeout=10000"};
 	// tile store info table
 	private static final String CREATE_TSINFO = "create table if not exists TS_INFO (SID int, TS_NAME text, TS_SNAME text, primary key (SID))";
 	private static final String INSERT_TSINFO = "insert or replace into TS_INFO (SID, TS_NAME, TS_SNAME) values (?,?,?)";
@@ -62,19 +74,21 @@ public class SQLiteDbTileStore extends ACNTileStore
 	private static final String INDEXMOD_TILES = "create index if not exists IX_MOD on TILES (MOD)";
 	private static final String INDEXEXP_TILES = "create index if not exists IX_EXP on TILES (EXP)";
 	private static final String INDEXETAG_TILES = "create index if not exists IX_ETAG on TILES (ETAG)";
-	private static final String INSERT_TILES = "insert or replace into TILES (Z,X,Y,MOD,EXP,ETAG,FK_IID) values (?,?,?,?,?,?,?)";
 	private static final String CLEAR_TILES = "delete from TILES";
-	private static final String IID_TILES = "select FK_IID from TILES where (Z=?) and (X=?) and (Y=?)";
-	private static final String EXP_TILES = "select EXP from TILES where (Z=?) and (X=?) and (Y=?)";
-	private static final String MOD_TILES = "select MOD from TILES where (Z=?) and (X=?) and (Y=?)";
-	private static final String ETAG_TILES = "select ETAG from TILES where (Z=?) and (X=?) and (Y=?)";
-	private static final String NIID_TILES = "select max(FK_IID) from TILES";
+	private static final String INDEX_TILES = "select Z, X, Y, MOD, EXP, FK_IID from TILES";
+	private static final String TILE_TILES = "select T.FK_IID, T.MOD, T.EXP, T.ETAG, I.IMAGE from TILES T left join IMAGES I on (I.IID=T.FK_IID) where (T.Z=?) and (T.X=?) and (T.Y=?)";
 	// images table
-	private static final String CREATE_IMAGES = "create table if not exists IMAGES (IID int, IMAGE blob, primary key (IID))";
-	private static final String INSERT_IMAGES = "insert or replace into IMAGES (IID, IMAGE) values (?,?)";
+	private static final String CREATE_IMAGES = "create table if not exists IMAGES (IID int, IMAGE blob, HASH text, REFS int default 0, primary key (IID))";
+	private static final String INDEXHASH_IMAGES = "create index if not exists IX_HASH on IMAGES (HASH)";
+	private static final String COLUMNS_IMAGES = "pragma table_info(IMAGES)";
+	private static final String ADDHASH_IMAGES = "alter table IMAGES add column HASH text";
+	private static final String ADDREFS_IMAGES = "alter table IMAGES add column REFS int default 0";
+	private static final String COUNTREFS_TILES = "select FK_IID, count(*) from TILES where (FK_IID>" + Tile.LAST_SPECIAL_TILE_ID + ") group by FK_IID";
+	private static final String SETREFS_IMAGES = "update IMAGES set REFS=? where (IID=?)";
+	private static final int SETREFS_BATCH = 1000;
+	private static final String COUNT_IMAGES = "select count(*) from IMAGES";
+	private static final String COUNTIMAGED_TILES = "select count(*) from TILES where (FK_IID>" + Tile.LAST_SPECIAL_TILE_ID + ")";
 	private static final String CLEAR_IMAGES = "delete from IMAGES";
-	private static final String IMAGE_IMAGES = "select IMAGE from IMAGES where (IID=?)";
-	private static final String NIID_IMAGES = "select max(IID) from IMAGES";
 	// 'magic' tiles ids come from Tile
 
 	// private static final String TCNT_TILES = "SELECT DISTINCT cnt(id_s) FROM tiles ORDER BY id_s DESC LIMIT 1;";
@@ -99,6 +113,19 @@ public class SQLiteDbTileStore extends ACNTileStore
 	 */
 	protected static Connection sTSConn = null;
 
+	static
+	{
+		// write the queued tiles before the VM goes down
+		Runtime.getRuntime().addShutdownHook(new Thread("TileWriterShutdown")
+		{
+			@Override
+			public void run()
+			{
+				closeAllStores();
+			}
+		});
+	}
+
 	/**
 	 * Factory method. The class maintains a hash map with all instances.
 	 * 
@@ -177,7 +204,17 @@ public class SQLiteDbTileStore extends ACNTileStore
 	 */
 	public static void closeAllStores()
 	{
-		// TODO Auto-generated method stub
+		log.trace(OSMBStrs.RStr("START"));
+		ArrayList<ACNTileStore> stores;
+		synchronized (sHM)
+		{
+			stores = new ArrayList<ACNTileStore>(sHM.values());
+		}
+		for (ACNTileStore store : stores)
+		{
+			if (store instanceof SQLiteDbTileStore)
+				((SQLiteDbTileStore) store).close();
+		}
 	}
 
 	/**
@@ -197,6 +234,17 @@ public class SQLiteDbTileStore extends ACNTileStore
 		return conn;
 	}
 
+	/**
+	 * Switches the connection to WAL mode and applies the performance settings.
+	 */
+	protected static void configureConnection(Connection conn) throws SQLException
+	{
+		Statement stmt = conn.createStatement();
+		for (String pragma : PRAGMAS)
+			stmt.execute(pragma);
+		stmt.close();
+	}
+
 	protected static Connection reopenConnection(Path pDB, Connection conn) throws SQLException
 	{
 		log.trace(OSMBStrs.RStr("START"));
@@ -251,6 +299,9 @@ public class SQLiteDbTileStore extends ACNTileStore
 	protected ACMapSource mMapSource = null;
 	protected int mMS_ID = 0;
 	protected boolean mInitialized = false;
+	protected SQLiteDbTileWriter mWriter = null;
+	protected SQLiteDbReadPool mReadPool = null;
+	protected TilePresenceIndex mIndex = new TilePresenceIndex();
 
 	/**
 	 * 
@@ -269,6 +320,9 @@ public class SQLiteDbTileStore extends ACNTileStore
 		}
 	}
 
+	/**
+	 * Opens the connections of this store. The tables and the index are set up by {@link #initializeDB()}, which calls this.
+	 */
 	public synchronized void initialize()
 	{
 		log.trace(OSMBStrs.RStr("START"));
@@ -280,7 +334,9 @@ public class SQLiteDbTileStore extends ACNTileStore
 			{
 				mTileStoreDB = sTileStoreBase.resolve(mMapSource.getName() + "." + EXT_COMMONDB);
 				mConn = openConnection(mTileStoreDB);
-				initializeDB();
+				configureConnection(mConn);
+				mReadPool = new SQLiteDbReadPool(mTileStoreDB, SQLiteDbReadPool.DEFAULT_POOL_SIZE);
+				mWriter = new SQLiteDbTileWriter(mConn, mMapSource.getName());
 			}
 		}
 		catch (Exception e)
@@ -307,13 +363,26 @@ public class SQLiteDbTileStore extends ACNTileStore
 			}
 			if (mConn != null)
 			{
-				stmt = mConn.createStatement();
-				stmt.executeUpdate(BEGIN_TA);
-				stmt.executeUpdate(CLEAR_TILES);
-				stmt.executeUpdate(CLEAR_IMAGES);
-				stmt.executeUpdate(COMMIT_TA);
+				mWriter.flush();
+				synchronized (mConn)
+				{
+					stmt = mConn.createStatement();
+					stmt.executeUpdate(BEGIN_TA);
+					stmt.executeUpdate(CLEAR_TILES);
+					stmt.executeUpdate(CLEAR_IMAGES);
+					stmt.executeUpdate(COMMIT_TA);
+					mIndex.clear();
+				}
 			}
 		}
+		catch (InterruptedException e)
+		{
+			throw new TileStoreException("clearing " + mMapSource.getName() + " interrupted", e);
+		}
+		catch (IOException e)
+		{
+			throw new TileStoreException("clearing " + mMapSource.getName() + " failed: " + e.getMessage(), e);
+		}
 		catch (SQLException e)
 		{
 			// TODO Auto-generated catch block
@@ -322,122 +391,72 @@ public class SQLiteDbTileStore extends ACNTileStore
 	}
 
 	/**
-	 * Writes the tiles info into TILES table
-	 */
-	protected void writeTileInfo(int x, int y, int z, long mod, long exp, String eTag, long nImg_ID) throws SQLException
-	{
-		// write the tile info
-		mPrepStmt = mConn.prepareStatement(INSERT_TILES);
-		mPrepStmt.setInt(1, z);
-		mPrepStmt.setInt(2, x);
-		mPrepStmt.setInt(3, y);
-		mPrepStmt.setLong(4, mod);
-		mPrepStmt.setLong(5, exp);
-		mPrepStmt.setString(6, eTag);
-		mPrepStmt.setLong(7, nImg_ID);
-		mPrepStmt.addBatch();
-		int[] upd = mPrepStmt.executeBatch();
-	}
-
-	/**
-	 * Writes the tiles image into IMAGES table
+	 * The tile is queued for the writer and will be written with the next batch.
 	 */
-	protected void writeTileData(long nImg_ID, byte[] tileData) throws SQLException
-	{
-		mPrepStmt = mConn.prepareStatement(INSERT_IMAGES);
-		mPrepStmt.setLong(1, nImg_ID);
-		mPrepStmt.setBytes(2, tileData);
-		mPrepStmt.addBatch();
-		mPrepStmt.executeBatch();
-	}
-
 	@Override
 	public void putTile(Tile tile)
 	{
 		log.trace(OSMBStrs.RStr("START"));
 		try
 		{
-			synchronized (mConn)
+			switch (tile.getTileState())
 			{
-				mConn.prepareStatement(BEGIN_TA).executeUpdate();
-				switch (tile.getTileState())
-				{
-					case TS_LOADED:
-					case TS_EXPIRED:
-						// find next free image id
-						long nNextImg_ID = 100;
-						// ResultSet rs = mConn.prepareStatement(NIID_IMAGES).executeQuery();
-						mPrepStmt = mConn.prepareStatement(IID_TILES);
-						mPrepStmt.setInt(1, tile.getZoom());
-						mPrepStmt.setInt(2, tile.getXtile());
-						mPrepStmt.setInt(3, tile.getYtile());
-						ResultSet rs = mPrepStmt.executeQuery();
-						if (rs.next())
-						{
-							nNextImg_ID = rs.getLong(1);
-							log.debug("found image id=" + nNextImg_ID);
-							rs.close();
-						}
-						else
-						{
-							rs.close();
-							rs = mConn.prepareStatement(NIID_TILES).executeQuery();
-							if (rs.next())
-								nNextImg_ID = Math.max(nNextImg_ID, rs.getLong(1) + 1);
-						}
-						writeTileData(nNextImg_ID, tile.getImageData());
-						writeTileInfo(tile.getXtile(), tile.getYtile(), tile.getZoom(), tile.getMod().getTime(), tile.getExp().getTime(), tile.getETag(), nNextImg_ID);
-						log.debug("image " + nNextImg_ID + " written for " + tile);
-						break;
-					case TS_ERROR:
-						writeTileInfo(tile.getXtile(), tile.getYtile(), tile.getZoom(), tile.getMod().getTime(), tile.getExp().getTime(), tile.getETag(),
-						    Tile.ERROR_TILE_ID);
-						log.warn("error image written for " + tile);
-						break;
-					default:
-						// TS_LOADING tiles will not be written into the tile store
-						// TS_NEW tiles will not be written into the tile store
-						// TS_ZOOMED tiles will not be written into the tile store
-						log.debug("no image written for " + tile);
-						break;
-				}
-				mConn.prepareStatement(COMMIT_TA).executeUpdate();
-			}
-		}
-		catch (SQLException e)
-		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			try
-			{
-				mConn.prepareStatement(ROLLBACK_TA).executeUpdate();
-			}
-			catch (SQLException e1)
-			{
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
+				case TS_LOADED:
+				case TS_EXPIRED:
+					mWriter.put(tile.getAddress(), tile.getMod().getTime(), tile.getExp().getTime(), tile.getETag(), tile.getImageData());
+					mIndex.put(tile.getAddress(), getEffectiveExpiration(tile.getMod().getTime(), tile.getExp().getTime()));
+					break;
+				case TS_ERROR:
+					mWriter.put(tile.getAddress(), tile.getMod().getTime(), tile.getExp().getTime(), tile.getETag(), null);
+					mIndex.put(tile.getAddress(), 0);
+					log.warn("error image queued for " + tile);
+					break;
+				default:
+					// TS_LOADING tiles will not be written into the tile store
+					// TS_NEW tiles will not be written into the tile store
+					// TS_ZOOMED tiles will not be written into the tile store
+					log.debug("no image written for " + tile);
+					return;
 			}
+			fireTileStored(mMapSource, tile.getAddress());
 		}
 		catch (IOException e)
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			log.error("encoding of " + tile + " failed", e);
 		}
 	}
 
+	@Override
+	public void updateTileExpiration(TileAddress tAddr, long timeExpires)
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		// the tile has just been revalidated, so the database and the index both take now as its modification time
+		long now = System.currentTimeMillis();
+		mWriter.updateExpiration(tAddr, now, timeExpires);
+		mIndex.updateExpiration(tAddr.getX(), tAddr.getY(), tAddr.getZoom(), getEffectiveExpiration(now, timeExpires));
+	}
+
+	/**
+	 * Waits until all queued tiles have been written into the database.
+	 */
+	@Override
+	public void flush() throws InterruptedException, IOException
+	{
+		if (mWriter != null)
+			mWriter.flush();
+	}
+
 	@Override
 	public void putTileData(byte[] tileData, TileAddress tAddr) throws IOException
 	{
 		log.trace(OSMBStrs.RStr("START"));
-		Tile tile = new Tile(mMapSource, tAddr);
-		tile.loadImage(tileData);
-		putTile(tile);
+		long now = System.currentTimeMillis();
+		putTileData(tileData, tAddr, now, now + ACSettings.getTileDefaultExpirationTime(), "-");
 	}
 
 	public boolean contains(int x, int y, int zoom)
 	{
-		// TODO Auto-generated method stub
-		return false;
+		return mIndex.contains(x, y, zoom);
 	}
 
 	/**
@@ -451,8 +470,10 @@ public class SQLiteDbTileStore extends ACNTileStore
 	protected void initializeDB() throws SQLException
 	{
 		log.trace(OSMBStrs.RStr("START"));
-		if (!mInitialized)
-			initialize();
+		// the tables are set up and the index is built only once
+		if (mInitialized)
+			return;
+		initialize();
 		synchronized (mConn)
 		{
 			Statement stmt = mConn.createStatement();
@@ -463,7 +484,11 @@ public class SQLiteDbTileStore extends ACNTileStore
 			stmt.executeUpdate(INDEXEXP_TILES);
 			stmt.executeUpdate(INDEXETAG_TILES);
 			stmt.executeUpdate(CREATE_IMAGES);
+			upgradeImages(stmt);
+			stmt.executeUpdate(INDEXHASH_IMAGES);
 			stmt.executeUpdate(COMMIT_TA);
+			loadIndex(stmt);
+			stmt.close();
 		}
 		synchronized (sTSConn)
 		{
@@ -492,17 +517,191 @@ public class SQLiteDbTileStore extends ACNTileStore
 		mInitialized = true;
 	}
 
+	/**
+	 * Adds the columns for content addressing to an IMAGES table of an older tile store. The reference counts are taken from the TILES table. The images
+	 * already stored have no hash, they are not shared with new tiles.<br>
+	 * The counts are taken in one pass over TILES and written in batches, a correlated count per image would scan TILES once for every image.
+	 */
+	protected void upgradeImages(Statement stmt) throws SQLException
+	{
+		boolean bHash = false;
+		boolean bRefs = false;
+		ResultSet rs = stmt.executeQuery(COLUMNS_IMAGES);
+		while (rs.next())
+		{
+			String column = rs.getString("name");
+			bHash |= "HASH".equalsIgnoreCase(column);
+			bRefs |= "REFS".equalsIgnoreCase(column);
+		}
+		rs.close();
+		if (!bHash)
+			stmt.executeUpdate(ADDHASH_IMAGES);
+		if (!bRefs)
+		{
+			stmt.executeUpdate(ADDREFS_IMAGES);
+			Statement countStmt = mConn.createStatement();
+			PreparedStatement setStmt = mConn.prepareStatement(SETREFS_IMAGES);
+			try
+			{
+				int nBatch = 0;
+				rs = countStmt.executeQuery(COUNTREFS_TILES);
+				while (rs.next())
+				{
+					setStmt.setLong(1, rs.getLong(2));
+					setStmt.setLong(2, rs.getLong(1));
+					setStmt.addBatch();
+					if (++nBatch >= SETREFS_BATCH)
+					{
+						setStmt.executeBatch();
+						nBatch = 0;
+					}
+				}
+				rs.close();
+				if (nBatch > 0)
+					setStmt.executeBatch();
+			}
+			finally
+			{
+				setStmt.close();
+				countStmt.close();
+			}
+			log.info("images of " + mMapSource.getName() + " upgraded to reference counting");
+		}
+	}
+
+	/**
+	 * The deduplication ratio is the number of tiles with an image divided by the number of images stored. It is 1 if no two tiles share an image.
+	 * 
+	 * @return The deduplication ratio of the committed tiles.
+	 */
+	public double getDedupRatio() throws InterruptedException
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		double ratio = 1.0;
+		try
+		{
+			SQLiteDbReadPool.ReadConnection rc = mReadPool.borrow();
+			try
+			{
+				ResultSet rs = rc.prepare(COUNTIMAGED_TILES).executeQuery();
+				long tiles = rs.next() ? rs.getLong(1) : 0;
+				rs.close();
+				rs = rc.prepare(COUNT_IMAGES).executeQuery();
+				long images = rs.next() ? rs.getLong(1) : 0;
+				rs.close();
+				if (images > 0)
+					ratio = (double) tiles / images;
+				long[] counts = mWriter.getImageCounts();
+				log.debug(mMapSource.getName() + ": tiles=" + tiles + ", images=" + images + ", written=" + counts[0] + ", shared=" + counts[1]);
+			}
+			finally
+			{
+				mReadPool.release(rc);
+			}
+		}
+		catch (SQLException e)
+		{
+			log.error("dedup ratio of " + mMapSource.getName() + " not available", e);
+		}
+		return ratio;
+	}
+
+	/**
+	 * Fills the presence index from the TILES table. It has to be called holding the lock on {@link #mConn}.
+	 */
+	protected void loadIndex(Statement stmt) throws SQLException
+	{
+		long start = System.currentTimeMillis();
+		mIndex.clear();
+		ResultSet rs = stmt.executeQuery(INDEX_TILES);
+		while (rs.next())
+		{
+			long exp = (rs.getLong(6) == Tile.ERROR_TILE_ID) ? 0 : getEffectiveExpiration(rs.getLong(4), rs.getLong(5));
+			mIndex.put(rs.getInt(2), rs.getInt(3), rs.getInt(1), exp);
+		}
+		rs.close();
+		log.debug(mIndex.size() + " tiles indexed for " + mMapSource.getName() + " in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * The tile count is taken from the presence index, the size is the one of the database files including the write ahead log.
+	 */
 	@Override
 	public TileStoreInfo getStoreInfo() throws InterruptedException
 	{
-		// TODO Auto-generated method stub
-		return null;
+		log.trace(OSMBStrs.RStr("START"));
+		long storeSize = 0;
+		if (mTileStoreDB != null)
+		{
+			for (Path pDB : new Path[] {mTileStoreDB, mTileStoreDB.resolveSibling(mTileStoreDB.getFileName() + "-wal")})
+			{
+				try
+				{
+					if (Files.exists(pDB))
+						storeSize += Files.size(pDB);
+				}
+				catch (IOException e)
+				{
+					log.debug("size of " + pDB + " unknown: " + e);
+				}
+			}
+		}
+		return new TileStoreInfo(storeSize, mIndex.size());
 	}
 
 	public BufferedImage getCacheCoverage(int zoom, Point tileNumMin, Point tileNumMax) throws InterruptedException
 	{
-		// TODO Auto-generated method stub
-		return null;
+		return getCacheCoverage(zoom, zoom, tileNumMin, tileNumMax);
+	}
+
+	/**
+	 * This provides an image of the coverage of the tiles of <code>tileZoom</code>, rendered at the coarser <code>zoom</code>. Each pixel is one tile of
+	 * <code>zoom</code>. It is green if all tiles of <code>tileZoom</code> inside it are present, light green if some are, and gray if none is.<br>
+	 * The coverage is taken from the presence index, so no tile data are read.
+	 * 
+	 * @param zoom
+	 *          The zoom level of the image pixels. tileNumMin and tileNumMax are tile indices at this zoom level.
+	 * @param tileZoom
+	 *          The zoom level of the tiles, it is not smaller than zoom.
+	 */
+	public BufferedImage getCacheCoverage(int zoom, int tileZoom, Point tileNumMin, Point tileNumMax) throws InterruptedException
+	{
+		log.debug("Loading cache coverage of zoom level " + tileZoom + " for region " + tileNumMin + " " + tileNumMax + " of zoom level " + zoom);
+		int shift = Math.max(0, tileZoom - zoom);
+		int width = tileNumMax.x - tileNumMin.x + 1;
+		int height = tileNumMax.y - tileNumMin.y + 1;
+		byte ff = (byte) 0xFF;
+		byte[] colors = new byte[] {120, 120, 120, 120, // alpha-gray
+		    10, ff, 0, 120, // alpha-green
+		    120, ff, 120, 120 // alpha-light green
+		};
+		IndexColorModel colorModel = new IndexColorModel(2, 3, colors, 0, true);
+		BufferedImage image = null;
+		int[] counts;
+		try
+		{
+			image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY, colorModel);
+			counts = new int[width * height];
+		}
+		catch (Throwable e)
+		{
+			log.error("Failed to create coverage image: " + e.toString());
+			return null;
+		}
+		mIndex.countTiles(zoom, shift, tileNumMin.x, tileNumMin.y, tileNumMax.x, tileNumMax.y, counts);
+		long full = 1L << Math.min(62, 2 * shift);
+		WritableRaster raster = image.getRaster();
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				int cnt = counts[y * width + x];
+				row[x] = (cnt == 0) ? 0 : ((cnt >= full) ? 1 : 2);
+			}
+			raster.setSamples(0, y, width, 1, 0, row);
+		}
+		return image;
 	}
 
 	/**
@@ -522,10 +721,23 @@ public class SQLiteDbTileStore extends ACNTileStore
 			try
 			{
 				sHM.remove(mMapSource);
+				try
+				{
+					mWriter.close();
+				}
+				catch (IOException e)
+				{
+					log.error("closing " + mMapSource.getName() + ": " + e.getMessage(), e);
+				}
+				mReadPool.close();
 				mConn.commit();
 				mConn.close();
 				mConn = null;
 			}
+			catch (InterruptedException e)
+			{
+				log.error("closing " + mMapSource.getName() + " interrupted, queued tiles may be lost");
+			}
 			catch (SQLException e)
 			{
 				// TODO Auto-generated catch block
@@ -545,49 +757,65 @@ public class SQLiteDbTileStore extends ACNTileStore
 			long nIId = 0;
 			byte[] data = null;
 			tile = new Tile(mMapSource, tAddr);
-			// get image id from tiles
-			synchronized (mConn)
+			PendingWrite pw = mWriter.getPending(tAddr);
+			if (pw != null)
+			{
+				// not yet written
+				if (pw.getData() == null)
+					tile.setErrorImage();
+				else
+				{
+					tile.loadImage(pw.getData());
+					tile.setExp(new Date(pw.getExp()));
+					tile.setMod(new Date(pw.getMod()));
+					tile.setETag(pw.getETag());
+					tile.setTileState(TileState.TS_LOADED);
+				}
+				return tile;
+			}
+			// get tile info and image in one go
+			SQLiteDbReadPool.ReadConnection rc = mReadPool.borrow();
+			try
 			{
-				mPrepStmt = mConn.prepareStatement(IID_TILES);
-				mPrepStmt.setInt(1, tAddr.getZoom());
-				mPrepStmt.setInt(2, tAddr.getX());
-				mPrepStmt.setInt(3, tAddr.getY());
-				ResultSet rs = mPrepStmt.executeQuery();
+				PreparedStatement prepStmt = rc.prepare(TILE_TILES);
+				prepStmt.setInt(1, tAddr.getZoom());
+				prepStmt.setInt(2, tAddr.getX());
+				prepStmt.setInt(3, tAddr.getY());
+				ResultSet rs = prepStmt.executeQuery();
 				if (rs.next())
 				{
 					nIId = rs.getLong(1);
 					log.debug("found image id=" + nIId);
-					rs.close();
 					if (nIId == Tile.ERROR_TILE_ID)
 					{
 						tile.setErrorImage();
 					}
-					else
+					else if ((data = rs.getBytes(5)) != null)
 					{
-						mPrepStmt = mConn.prepareStatement(IMAGE_IMAGES);
-						mPrepStmt.setLong(1, nIId);
-						rs = mPrepStmt.executeQuery();
-						if (rs.next())
-						{
-							data = rs.getBytes(1);
-							tile.loadImage(rs.getBytes(1));
-							tile.setExp(new Date(getExp(tAddr)));
-							tile.setMod(new Date(getMod(tAddr)));
-							tile.setETag(getETag(tAddr));
-							tile.setTileState(TileState.TS_LOADED);
-							log.debug("bytes=" + data.length);
-						}
-						rs.close();
+						tile.loadImage(data);
+						tile.setMod(new Date(rs.getLong(2)));
+						tile.setExp(new Date(rs.getLong(3)));
+						tile.setETag(rs.getString(4));
+						tile.setTileState(TileState.TS_LOADED);
+						log.debug("bytes=" + data.length);
 					}
 				}
 				else
 				{
-					rs.close();
-					// log.debug("no image found for " + tAddr + ". Stmt='" + mPrepStmt + "'");
 					log.debug("no image found for " + tAddr);
 				}
+				rs.close();
+			}
+			finally
+			{
+				mReadPool.release(rc);
 			}
 		}
+		catch (InterruptedException e)
+		{
+			log.debug("reading " + tAddr + " interrupted");
+			Thread.currentThread().interrupt();
+		}
 		catch (SQLException | IOException e)
 		{
 			// TODO Auto-generated catch block
@@ -596,62 +824,22 @@ public class SQLiteDbTileStore extends ACNTileStore
 		return tile;
 	}
 
-	protected long getMod(TileAddress tAddr) throws SQLException
-	{
-		long tMod = System.currentTimeMillis();
-		mPrepStmt = mConn.prepareStatement(MOD_TILES);
-		mPrepStmt.setInt(1, tAddr.getZoom());
-		mPrepStmt.setInt(2, tAddr.getX());
-		mPrepStmt.setInt(3, tAddr.getY());
-		ResultSet rs = mPrepStmt.executeQuery();
-		if (rs.next())
-		{
-			tMod = rs.getLong(1);
-			log.debug("modified=" + new Date(tMod));
-		}
-		rs.close();
-		return tMod;
-	}
-
-	protected long getExp(TileAddress tAddr) throws SQLException
-	{
-		long tExp = System.currentTimeMillis();
-		mPrepStmt = mConn.prepareStatement(EXP_TILES);
-		mPrepStmt.setInt(1, tAddr.getZoom());
-		mPrepStmt.setInt(2, tAddr.getX());
-		mPrepStmt.setInt(3, tAddr.getY());
-		ResultSet rs = mPrepStmt.executeQuery();
-		if (rs.next())
-		{
-			tExp = rs.getLong(1);
-			log.debug("expires=" + new Date(tExp));
-		}
-		rs.close();
-		return tExp;
-	}
-
-	protected String getETag(TileAddress tAddr) throws SQLException
-	{
-		String eTag = "-";
-		mPrepStmt = mConn.prepareStatement(ETAG_TILES);
-		mPrepStmt.setInt(1, tAddr.getZoom());
-		mPrepStmt.setInt(2, tAddr.getX());
-		mPrepStmt.setInt(3, tAddr.getY());
-		ResultSet rs = mPrepStmt.executeQuery();
-		if (rs.next())
-		{
-			eTag = rs.getString(1);
-			log.debug("eTag=" + eTag);
-		}
-		rs.close();
-		return eTag;
-	}
-
 	@Override
 	public BufferedImage getCacheCoverage(ACMapSource mapSource, int zoom, Point tileNumMin, Point tileNumMax) throws InterruptedException
 	{
-		// TODO Auto-generated method stub
-		return null;
+		if ((mapSource != null) && (mapSource != mMapSource))
+		{
+			try
+			{
+				return prepareTileStore(mapSource).getCacheCoverage(zoom, tileNumMin, tileNumMax);
+			}
+			catch (TileStoreException e)
+			{
+				log.error("", e);
+				return null;
+			}
+		}
+		return getCacheCoverage(zoom, tileNumMin, tileNumMax);
 	}
 
 	@Override
@@ -660,24 +848,34 @@ public class SQLiteDbTileStore extends ACNTileStore
 		return mInitialized;
 	}
 
+	/**
+	 * The data are stored as they are, without decoding. They are queued for the writer and will be written with the next batch.
+	 */
 	@Override
 	public void putTileData(byte[] tileData, TileAddress tAddr, long timeLastModified, long timeExpires, String eTag) throws IOException
 	{
-		// TODO Auto-generated method stub
+		log.trace(OSMBStrs.RStr("START"));
+		mWriter.put(tAddr, timeLastModified, timeExpires, eTag, tileData);
+		mIndex.put(tAddr, getEffectiveExpiration(timeLastModified, timeExpires));
+		fireTileStored(mMapSource, tAddr);
 	}
 
+	/**
+	 * This is answered from the presence index, the database is not accessed.
+	 */
 	@Override
 	public boolean containsTile(TileAddress tAddr)
 	{
-		// TODO Auto-generated method stub
-		return false;
+		return mIndex.contains(tAddr);
 	}
 
+	/**
+	 * This is answered from the presence index, the database is not accessed. Missing tiles and error tiles are expired.
+	 */
 	@Override
 	public boolean isTileExpired(TileAddress tAddr)
 	{
-		// TODO Auto-generated method stub
-		return false;
+		return mIndex.isExpired(tAddr, System.currentTimeMillis());
 	}
 
 }
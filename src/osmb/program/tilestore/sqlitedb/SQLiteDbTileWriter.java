@@ -0,0 +1,690 @@
+package osmb.program.tilestore.sqlitedb;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import osmb.mapsources.TileAddress;
+import osmb.program.DelayedInterruptThread;
+import osmb.program.tiles.Tile;
+
+/**
+ * The write-behind writer of a {@link SQLiteDbTileStore}. Puts are queued and written by a background thread in transactions of up to
+ * {@link #MAX_BATCH_SIZE} tiles, or as many as arrived within {@link #MAX_BATCH_DELAY} ms after the first one. The prepared statements are created once and
+ * reused, new image ids are taken from an in-memory sequence initialized from the database.<br>
+ * Images are stored content addressed: Each image row carries the SHA-1 hash of the encoded image and a reference count. A tile whose image already exists
+ * refers to that row instead of storing another copy. Rows no longer referenced are deleted.<br>
+ * Queued tiles are visible to readers by {@link #getPending(TileAddress)} until they have been committed.
+ * 
+ * @author humbach
+ */
+public class SQLiteDbTileWriter implements Runnable
+{
+	// class/static data
+	protected static Logger log = Logger.getLogger(SQLiteDbTileWriter.class);
+
+	public static final int MAX_BATCH_SIZE = 1000;
+	public static final long MAX_BATCH_DELAY = 500;
+	/**
+	 * Callers putting tiles wait while more writes than this are queued.
+	 */
+	public static final int MAX_QUEUED = 4 * MAX_BATCH_SIZE;
+	/**
+	 * A failed batch is retried this often, after a delay starting with {@link #RETRY_DELAY} ms and doubled on each retry, before its tiles are given up.
+	 */
+	public static final int MAX_RETRIES = 4;
+	public static final long RETRY_DELAY = 1000;
+	private static final long FIRST_IMAGE_ID = 100;
+
+	private static final String BEGIN_TA = "begin transaction";
+	private static final String COMMIT_TA = "commit transaction";
+	private static final String ROLLBACK_TA = "rollback transaction";
+	private static final String INSERT_TILES = "insert or replace into TILES (Z,X,Y,MOD,EXP,ETAG,FK_IID) values (?,?,?,?,?,?,?)";
+	private static final String IID_TILES = "select FK_IID from TILES where (Z=?) and (X=?) and (Y=?)";
+	private static final String NIID_TILES = "select max(FK_IID) from TILES";
+	private static final String UPDATEEXP_TILES = "update TILES set MOD=?, EXP=? where (Z=?) and (X=?) and (Y=?)";
+	private static final String INSERT_IMAGES = "insert or replace into IMAGES (IID, IMAGE, HASH, REFS) values (?,?,?,0)";
+	private static final String NIID_IMAGES = "select max(IID) from IMAGES";
+	private static final String HASH_IMAGES = "select IID from IMAGES where (HASH=?)";
+	private static final String ADDREFS_IMAGES = "update IMAGES set REFS=REFS+? where (IID=?)";
+	private static final String DELETEUNREF_IMAGES = "delete from IMAGES where (IID=?) and (REFS<=0)";
+
+	/**
+	 * One queued write.
+	 */
+	public static class PendingWrite
+	{
+		final TileAddress mTAddr;
+		final long mMod;
+		final long mExp;
+		final String mETag;
+		/**
+		 * The encoded image, null for an error tile or an expiration update.
+		 */
+		final byte[] mData;
+		/**
+		 * TRUE if only the expiration is to be updated.
+		 */
+		final boolean mExpOnly;
+		final CountDownLatch mFlush;
+
+		PendingWrite(TileAddress tAddr, long mod, long exp, String eTag, byte[] data, boolean expOnly)
+		{
+			mTAddr = tAddr;
+			mMod = mod;
+			mExp = exp;
+			mETag = eTag;
+			mData = data;
+			mExpOnly = expOnly;
+			mFlush = null;
+		}
+
+		PendingWrite(CountDownLatch flush)
+		{
+			mTAddr = null;
+			mMod = 0;
+			mExp = 0;
+			mETag = null;
+			mData = null;
+			mExpOnly = false;
+			mFlush = flush;
+		}
+
+		public TileAddress getAddress()
+		{
+			return mTAddr;
+		}
+
+		public long getMod()
+		{
+			return mMod;
+		}
+
+		public long getExp()
+		{
+			return mExp;
+		}
+
+		public String getETag()
+		{
+			return mETag;
+		}
+
+		/**
+		 * @return The encoded image, null for an error tile.
+		 */
+		public byte[] getData()
+		{
+			return mData;
+		}
+	}
+
+	// instance data
+	private final Connection mConn;
+	private final String mName;
+	private final LinkedBlockingQueue<PendingWrite> mQueue = new LinkedBlockingQueue<PendingWrite>();
+	/**
+	 * The latest queued tile write per tile key, until it is committed.
+	 */
+	private final ConcurrentHashMap<Long, PendingWrite> mPending = new ConcurrentHashMap<Long, PendingWrite>();
+	private Thread mThread = null;
+	/**
+	 * For the transaction control, kept for the lifetime of the writer like the prepared statements.
+	 */
+	private Statement mStmt = null;
+	private PreparedStatement mInsertTiles = null;
+	private PreparedStatement mInsertImages = null;
+	private PreparedStatement mSelectIID = null;
+	private PreparedStatement mUpdateExp = null;
+	private PreparedStatement mSelectHash = null;
+	private PreparedStatement mAddRefs = null;
+	private PreparedStatement mDeleteUnref = null;
+	private long mNextImageID = FIRST_IMAGE_ID;
+	private MessageDigest mDigest = null;
+	/**
+	 * Per batch: The image id for each hash of an image written, and the change of the reference count for each image id.
+	 */
+	private final HashMap<String, Long> mBatchHashes = new HashMap<>();
+	private final HashMap<Long, Integer> mBatchRefs = new HashMap<>();
+	/**
+	 * The image counts of the current transaction, they are added to the totals only when it has been committed.
+	 */
+	private long mBatchWritten = 0;
+	private long mBatchShared = 0;
+	private long mImagesWritten = 0;
+	private long mImagesShared = 0;
+	/**
+	 * The number of writes given up after failed retries, and the last failure.
+	 */
+	private long mFailedWrites = 0;
+	private Throwable mLastFailure = null;
+
+	/**
+	 * @param conn
+	 *          The connection of the tile store. All access to it is synchronized on it.
+	 * @param name
+	 *          The name of the tile store, used for the thread name.
+	 */
+	public SQLiteDbTileWriter(Connection conn, String name)
+	{
+		mConn = conn;
+		mName = name;
+	}
+
+	/**
+	 * Queues a tile to be written. <code>data</code> null writes an error tile.<br>
+	 * If more than {@link #MAX_QUEUED} writes are queued, the caller waits until the writer has caught up. So bulk writes cannot exhaust the memory.
+	 */
+	public void put(TileAddress tAddr, long mod, long exp, String eTag, byte[] data)
+	{
+		awaitCapacity();
+		PendingWrite pw = new PendingWrite(tAddr, mod, exp, eTag, data, false);
+		mPending.put(tAddr.getKey(), pw);
+		enqueue(pw);
+	}
+
+	/**
+	 * Queues an update of the modification and expiration time of a revalidated tile. It is applied in order with the queued puts.
+	 */
+	public void updateExpiration(TileAddress tAddr, long mod, long exp)
+	{
+		enqueue(new PendingWrite(tAddr, mod, exp, null, null, true));
+	}
+
+	/**
+	 * @return The queued but not yet committed write of the tile, or null.
+	 */
+	public PendingWrite getPending(TileAddress tAddr)
+	{
+		return mPending.get(tAddr.getKey());
+	}
+
+	/**
+	 * @return The number of queued writes.
+	 */
+	public int getQueueSize()
+	{
+		return mQueue.size();
+	}
+
+	/**
+	 * Waits until all writes queued so far have been committed.
+	 * 
+	 * @throws IOException
+	 *           If some of these writes could not be committed even after {@link #MAX_RETRIES} retries and have been given up.
+	 */
+	public void flush() throws InterruptedException, IOException
+	{
+		long failedWrites;
+		synchronized (this)
+		{
+			if (mThread == null)
+				return;
+			failedWrites = mFailedWrites;
+		}
+		CountDownLatch latch = new CountDownLatch(1);
+		enqueue(new PendingWrite(latch));
+		latch.await();
+		synchronized (this)
+		{
+			if (mFailedWrites > failedWrites)
+				throw new IOException((mFailedWrites - failedWrites) + " tiles could not be written into " + mName, mLastFailure);
+		}
+	}
+
+	/**
+	 * @return The number of writes given up after failed retries since the writer has been created.
+	 */
+	public synchronized long getFailedWrites()
+	{
+		return mFailedWrites;
+	}
+
+	/**
+	 * Writes all queued tiles and stops the writer thread. Further puts restart it.
+	 */
+	public void close() throws InterruptedException, IOException
+	{
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			Thread thread;
+			synchronized (this)
+			{
+				thread = mThread;
+				mThread = null;
+			}
+			if (thread != null)
+			{
+				thread.interrupt();
+				thread.join();
+			}
+			closeStatements();
+		}
+	}
+
+	private void awaitCapacity()
+	{
+		if (mQueue.size() < MAX_QUEUED)
+			return;
+		synchronized (mQueue)
+		{
+			try
+			{
+				while (mQueue.size() >= MAX_QUEUED)
+					mQueue.wait(MAX_BATCH_DELAY);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void enqueue(PendingWrite pw)
+	{
+		mQueue.add(pw);
+		synchronized (this)
+		{
+			if (mThread == null)
+			{
+				mThread = new DelayedInterruptThread(this, "TileWriter-" + mName);
+				mThread.setDaemon(true);
+				mThread.start();
+			}
+		}
+	}
+
+	/**
+	 * The writer thread stays alive on any failure of a batch, it only ends when it is interrupted by {@link #close()}.
+	 */
+	@Override
+	public void run()
+	{
+		ArrayList<PendingWrite> batch = new ArrayList<PendingWrite>(MAX_BATCH_SIZE);
+		try
+		{
+			while (true)
+			{
+				batch.add(mQueue.take());
+				long deadline = System.currentTimeMillis() + MAX_BATCH_DELAY;
+				while ((batch.size() < MAX_BATCH_SIZE) && (batch.get(batch.size() - 1).mFlush == null))
+				{
+					PendingWrite pw = mQueue.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+					if (pw == null)
+						break;
+					batch.add(pw);
+				}
+				try
+				{
+					writeBatch(batch);
+				}
+				catch (Throwable t)
+				{
+					log.error("tile writer for " + mName + " failed", t);
+					finishBatch(batch, batch.size(), t);
+				}
+				batch.clear();
+				synchronized (mQueue)
+				{
+					mQueue.notifyAll();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			writeBatch(batch);
+			log.debug("tile writer for " + mName + " stopped");
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				if (mThread == Thread.currentThread())
+					mThread = null;
+			}
+		}
+	}
+
+	/**
+	 * Writes the batch in one transaction. Several writes of the same tile are merged, so each tile is written at most once.<br>
+	 * If the transaction fails, it is retried up to {@link #MAX_RETRIES} times. The tiles stay visible by {@link #getPending(TileAddress)} meanwhile. If all
+	 * retries fail, the tiles are given up and the failure is reported by {@link #flush()}.
+	 */
+	protected void writeBatch(ArrayList<PendingWrite> batch)
+	{
+		if (batch.isEmpty())
+			return;
+		LinkedHashMap<Long, PendingWrite> merged = new LinkedHashMap<Long, PendingWrite>(batch.size() * 2);
+		for (PendingWrite pw : batch)
+		{
+			if (pw.mFlush != null)
+				continue;
+			Long key = pw.mTAddr.getKey();
+			PendingWrite prev = merged.get(key);
+			if (pw.mExpOnly && (prev != null) && !prev.mExpOnly)
+				pw = new PendingWrite(prev.mTAddr, pw.mMod, pw.mExp, prev.mETag, prev.mData, false);
+			merged.put(key, pw);
+		}
+		long start = System.currentTimeMillis();
+		Throwable failure = null;
+		for (int retry = 0; !merged.isEmpty(); retry++)
+		{
+			failure = writeTransaction(merged);
+			if ((failure == null) || (retry >= MAX_RETRIES))
+				break;
+			long delay = RETRY_DELAY << retry;
+			log.warn("writing " + merged.size() + " tiles into " + mName + " failed, retry in " + delay + "ms: " + failure);
+			try
+			{
+				Thread.sleep(delay);
+			}
+			catch (InterruptedException e)
+			{
+				// the writer is being closed, give up
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		if (failure != null)
+			log.error("writing " + merged.size() + " tiles into " + mName + " failed, tiles given up", failure);
+		else
+			log.debug(merged.size() + " tiles written into " + mName + " in " + (System.currentTimeMillis() - start) + "ms");
+		finishBatch(batch, merged.size(), failure);
+	}
+
+	/**
+	 * Writes the merged writes in one transaction, which is rolled back on any failure.
+	 * 
+	 * @return null on success, otherwise the failure.
+	 */
+	private Throwable writeTransaction(LinkedHashMap<Long, PendingWrite> merged)
+	{
+		// a transaction is not to be interrupted halfway
+		DelayedInterruptThread diThread = (Thread.currentThread() instanceof DelayedInterruptThread) ? (DelayedInterruptThread) Thread.currentThread() : null;
+		if (diThread != null)
+			diThread.pauseInterrupt();
+		try
+		{
+			synchronized (mConn)
+			{
+				prepareStatements();
+				mBatchWritten = 0;
+				mBatchShared = 0;
+				mStmt.executeUpdate(BEGIN_TA);
+				try
+				{
+					for (PendingWrite pw : merged.values())
+					{
+						if (pw.mExpOnly)
+							addExpUpdate(pw);
+						else
+							addTile(pw);
+					}
+					mInsertImages.executeBatch();
+					mInsertTiles.executeBatch();
+					mUpdateExp.executeBatch();
+					updateRefs();
+					mStmt.executeUpdate(COMMIT_TA);
+					mImagesWritten += mBatchWritten;
+					mImagesShared += mBatchShared;
+					return null;
+				}
+				catch (Throwable t)
+				{
+					mInsertImages.clearBatch();
+					mInsertTiles.clearBatch();
+					mUpdateExp.clearBatch();
+					mAddRefs.clearBatch();
+					mDeleteUnref.clearBatch();
+					mStmt.executeUpdate(ROLLBACK_TA);
+					return t;
+				}
+				finally
+				{
+					mBatchHashes.clear();
+					mBatchRefs.clear();
+				}
+			}
+		}
+		catch (Throwable t)
+		{
+			return t;
+		}
+		finally
+		{
+			if (diThread != null)
+				diThread.resumeInterrupt();
+		}
+	}
+
+	/**
+	 * Releases the writes of the batch, committed or given up, and the flushes waiting for them.
+	 */
+	private void finishBatch(ArrayList<PendingWrite> batch, int nWrites, Throwable failure)
+	{
+		if (failure != null)
+		{
+			synchronized (this)
+			{
+				mFailedWrites += nWrites;
+				mLastFailure = failure;
+			}
+		}
+		for (PendingWrite pw : batch)
+		{
+			if (pw.mFlush != null)
+				pw.mFlush.countDown();
+			else if (!pw.mExpOnly)
+				mPending.remove(pw.mTAddr.getKey(), pw);
+		}
+	}
+
+	private void addTile(PendingWrite pw) throws SQLException
+	{
+		TileAddress tAddr = pw.mTAddr;
+		// the image the tile refers to so far
+		long nOld_ID = -1;
+		mSelectIID.setInt(1, tAddr.getZoom());
+		mSelectIID.setInt(2, tAddr.getX());
+		mSelectIID.setInt(3, tAddr.getY());
+		ResultSet rs = mSelectIID.executeQuery();
+		if (rs.next())
+			nOld_ID = rs.getLong(1);
+		rs.close();
+		long nImg_ID = Tile.ERROR_TILE_ID;
+		if (pw.mData != null)
+			nImg_ID = findOrAddImage(pw.mData);
+		if (nImg_ID != nOld_ID)
+		{
+			addRef(nImg_ID, 1);
+			addRef(nOld_ID, -1);
+		}
+		mInsertTiles.setInt(1, tAddr.getZoom());
+		mInsertTiles.setInt(2, tAddr.getX());
+		mInsertTiles.setInt(3, tAddr.getY());
+		mInsertTiles.setLong(4, pw.mMod);
+		mInsertTiles.setLong(5, pw.mExp);
+		mInsertTiles.setString(6, pw.mETag);
+		mInsertTiles.setLong(7, nImg_ID);
+		mInsertTiles.addBatch();
+	}
+
+	/**
+	 * @return The id of the image row with the same content. If there is none, a new row is added to the batch.
+	 */
+	private long findOrAddImage(byte[] data) throws SQLException
+	{
+		String hash = toHex(mDigest.digest(data));
+		Long nImg_ID = mBatchHashes.get(hash);
+		if (nImg_ID == null)
+		{
+			mSelectHash.setString(1, hash);
+			ResultSet rs = mSelectHash.executeQuery();
+			if (rs.next())
+				nImg_ID = rs.getLong(1);
+			rs.close();
+		}
+		if (nImg_ID != null)
+		{
+			mBatchShared++;
+		}
+		else
+		{
+			nImg_ID = mNextImageID++;
+			mInsertImages.setLong(1, nImg_ID);
+			mInsertImages.setBytes(2, data);
+			mInsertImages.setString(3, hash);
+			mInsertImages.addBatch();
+			mBatchWritten++;
+		}
+		mBatchHashes.put(hash, nImg_ID);
+		return nImg_ID;
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			hex[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+			hex[2 * i + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Notes a change of the reference count of an image. The special image ids are not counted.
+	 */
+	private void addRef(long nImg_ID, int delta)
+	{
+		if (nImg_ID <= Tile.LAST_SPECIAL_TILE_ID)
+			return;
+		Integer refs = mBatchRefs.get(nImg_ID);
+		mBatchRefs.put(nImg_ID, (refs == null) ? delta : refs + delta);
+	}
+
+	/**
+	 * Applies the changes of the reference counts of the batch and deletes the images no longer referenced.
+	 */
+	private void updateRefs() throws SQLException
+	{
+		boolean bDelete = false;
+		for (Map.Entry<Long, Integer> entry : mBatchRefs.entrySet())
+		{
+			int delta = entry.getValue();
+			if (delta == 0)
+				continue;
+			mAddRefs.setInt(1, delta);
+			mAddRefs.setLong(2, entry.getKey());
+			mAddRefs.addBatch();
+			if (delta < 0)
+			{
+				mDeleteUnref.setLong(1, entry.getKey());
+				mDeleteUnref.addBatch();
+				bDelete = true;
+			}
+		}
+		mAddRefs.executeBatch();
+		if (bDelete)
+			mDeleteUnref.executeBatch();
+	}
+
+	/**
+	 * @return The number of images written by this writer, and the number of tiles that referred to an already stored image instead.
+	 */
+	public long[] getImageCounts()
+	{
+		return new long[] {mImagesWritten, mImagesShared};
+	}
+
+	private void addExpUpdate(PendingWrite pw) throws SQLException
+	{
+		mUpdateExp.setLong(1, pw.mMod);
+		mUpdateExp.setLong(2, pw.mExp);
+		mUpdateExp.setInt(3, pw.mTAddr.getZoom());
+		mUpdateExp.setInt(4, pw.mTAddr.getX());
+		mUpdateExp.setInt(5, pw.mTAddr.getY());
+		mUpdateExp.addBatch();
+	}
+
+	/**
+	 * Prepares the statements and initializes the image id sequence, once.
+	 */
+	private void prepareStatements() throws SQLException
+	{
+		if (mInsertTiles != null)
+			return;
+		Statement stmt = mConn.createStatement();
+		for (String query : new String[] {NIID_IMAGES, NIID_TILES})
+		{
+			ResultSet rs = stmt.executeQuery(query);
+			if (rs.next())
+				mNextImageID = Math.max(mNextImageID, rs.getLong(1) + 1);
+			rs.close();
+		}
+		stmt.close();
+		mStmt = mConn.createStatement();
+		mInsertTiles = mConn.prepareStatement(INSERT_TILES);
+		mInsertImages = mConn.prepareStatement(INSERT_IMAGES);
+		mSelectIID = mConn.prepareStatement(IID_TILES);
+		mUpdateExp = mConn.prepareStatement(UPDATEEXP_TILES);
+		mSelectHash = mConn.prepareStatement(HASH_IMAGES);
+		mAddRefs = mConn.prepareStatement(ADDREFS_IMAGES);
+		mDeleteUnref = mConn.prepareStatement(DELETEUNREF_IMAGES);
+		try
+		{
+			mDigest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new SQLException("no SHA-1 for image hashes", e);
+		}
+		log.debug("next image id=" + mNextImageID + " for " + mName);
+	}
+
+	private void closeStatements()
+	{
+		synchronized (mConn)
+		{
+			for (Statement ps : new Statement[] {mStmt, mInsertTiles, mInsertImages, mSelectIID, mUpdateExp, mSelectHash, mAddRefs, mDeleteUnref})
+			{
+				try
+				{
+					if (ps != null)
+						ps.close();
+				}
+				catch (SQLException e)
+				{
+					log.debug("closing statement failed: " + e);
+				}
+			}
+			mStmt = null;
+			mInsertTiles = null;
+			mInsertImages = null;
+			mSelectIID = null;
+			mUpdateExp = null;
+			mSelectHash = null;
+			mAddRefs = null;
+			mDeleteUnref = null;
+		}
+	}
+}